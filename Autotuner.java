@@ -0,0 +1,325 @@
+///usr/bin/env jbang "$0" "$@" ; exit $?
+//DEPS org.hibernate.reactive:hibernate-reactive-core:1.0.0.CR10
+//DEPS io.vertx:vertx-mysql-client:4.1.5
+//DEPS io.vertx:vertx-pg-client:4.1.5
+//DEPS org.hdrhistogram:HdrHistogram:2.1.12
+//DEPS org.slf4j:slf4j-simple:1.7.30
+//SOURCES TuningProperties.java
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.persistence.Entity;
+import javax.persistence.FetchType;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.ManyToOne;
+import javax.persistence.SequenceGenerator;
+import javax.persistence.Table;
+
+import org.hibernate.boot.registry.StandardServiceRegistry;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.reactive.mutiny.Mutiny;
+import org.hibernate.reactive.provider.ReactiveServiceRegistryBuilder;
+import org.hibernate.reactive.provider.Settings;
+import org.hibernate.reactive.vertx.VertxInstance;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import io.smallrye.mutiny.Multi;
+import io.smallrye.mutiny.Uni;
+import io.vertx.core.Vertx;
+
+//DESCRIPTION Finds the batch size, batch fetch size and pool size with the best throughput for a database,
+//DESCRIPTION and writes them to hreact-tuning.properties (see TuningProperties.java).
+//DESCRIPTION The workload alternates transactions inserting `tune.items` items with sessions reading as many items
+//DESCRIPTION and their lazy categories, `tune.concurrency` at a time.
+//DESCRIPTION Each setting is tuned in turn, keeping the best values found so far for the others.
+//DESCRIPTION Only a trial without errors and under `tune.maxP99` ms can change a value, and the file is
+//DESCRIPTION not written when there is no such trial.
+//DESCRIPTION Usage examples, the first one through ProxySQL after `docker-compose up` in issue881:
+//DESCRIPTION   jbang Autotuner.java
+//DESCRIPTION   jbang -Dtune.url=postgres://localhost:5432/postgres -Dtune.user=postgres -Dtune.password=vertx-in-action Autotuner.java
+//DESCRIPTION   jbang -Dtune.maxP99=50 -Dtune.poolSizes=8,16,32,64 -Dtuning.file=proxysql-tuning.properties Autotuner.java
+//DESCRIPTION Then Issue881.java and StageVerticle.java use the file in the current directory, if there is one.
+public class Autotuner {
+
+	private static final String URL = System.getProperty( "tune.url", "mysql://127.0.0.1:6033/hreact" );
+	private static final String USER = System.getProperty( "tune.user", "hreact" );
+	private static final String PASSWORD = System.getProperty( "tune.password", "hreact" );
+
+	private static final int CONCURRENCY = Integer.getInteger( "tune.concurrency", 32 );
+	private static final int OPERATIONS = Integer.getInteger( "tune.operations", 2000 );
+	private static final int WARMUP = Integer.getInteger( "tune.warmup", 200 );
+	private static final int ITEMS = Integer.getInteger( "tune.items", 100 );
+	private static final int CATEGORIES = 1000;
+
+	/**
+	 * Trials with a p99 latency above this value, in milliseconds, are never recommended.
+	 */
+	private static final double MAX_P99 = Double.parseDouble( System.getProperty( "tune.maxP99", "Infinity" ) );
+
+	/**
+	 * The fetch size of Hibernate ORM ({@code hibernate.jdbc.fetch_size}) doesn't apply: Hibernate Reactive
+	 * reads whole result sets. The batch fetch size is the number of lazy entities loaded with one query.
+	 */
+	private static final String[] SETTINGS = { Settings.STATEMENT_BATCH_SIZE, Settings.DEFAULT_BATCH_FETCH_SIZE, Settings.POOL_SIZE };
+
+	private static int[] candidates(String setting) {
+		switch ( setting ) {
+			case Settings.STATEMENT_BATCH_SIZE:
+				return values( "tune.batchSizes", "1,10,50,100,500" );
+			case Settings.DEFAULT_BATCH_FETCH_SIZE:
+				return values( "tune.batchFetchSizes", "1,8,32,128" );
+			default:
+				return values( "tune.poolSizes", "4,8,16,32" );
+		}
+	}
+
+	private static int[] values(String property, String defaultValues) {
+		return Arrays.stream( System.getProperty( property, defaultValues ).split( "," ) )
+				.mapToInt( value -> Integer.parseInt( value.trim() ) )
+				.toArray();
+	}
+
+	/**
+	 * One run of the workload.
+	 */
+	static class Trial {
+		final Properties settings;
+		double throughput;
+		double p50;
+		double p99;
+		long errors;
+
+		Trial(Properties settings) {
+			this.settings = settings;
+		}
+
+		// No errors and under the p99 limit
+		boolean isEligible() {
+			return errors == 0 && p99 <= MAX_P99;
+		}
+
+		boolean isBetterThan(Trial other) {
+			if ( other == null ) {
+				return true;
+			}
+			if ( isEligible() != other.isEligible() ) {
+				return isEligible();
+			}
+			return isEligible() ? throughput > other.throughput : p99 < other.p99;
+		}
+
+		@Override
+		public String toString() {
+			return String.format( "batch %4s, batch fetch %4s, pool %3s: %9.1f ops/s %8.2f ms p50 %8.2f ms p99 %5d errors",
+					settings.getProperty( Settings.STATEMENT_BATCH_SIZE ),
+					settings.getProperty( Settings.DEFAULT_BATCH_FETCH_SIZE ),
+					settings.getProperty( Settings.POOL_SIZE ),
+					throughput, p50, p99, errors );
+		}
+	}
+
+	private static Configuration createConfiguration(Properties settings) {
+		Configuration configuration = new Configuration();
+
+		// JDBC url
+		configuration.setProperty( Settings.URL, URL );
+
+		// Credentials
+		configuration.setProperty( Settings.USER, USER );
+		configuration.setProperty( Settings.PASS, PASSWORD );
+
+		// Schema generation: each trial starts from empty tables
+		configuration.setProperty( Settings.HBM2DDL_AUTO, "create" );
+
+		configuration.addAnnotatedClass( Category.class );
+		configuration.addAnnotatedClass( Item.class );
+
+		settings.forEach( (key, value) -> configuration.setProperty( (String) key, (String) value ) );
+		return configuration;
+	}
+
+	private static Mutiny.SessionFactory createSessionFactory(Vertx vertx, Properties settings) {
+		Configuration configuration = createConfiguration( settings );
+		StandardServiceRegistry registry = new ReactiveServiceRegistryBuilder()
+				// The same Vert.x for all the trials
+				.addService( VertxInstance.class, (VertxInstance) () -> vertx )
+				.applySettings( configuration.getProperties() )
+				.build();
+		return configuration.buildSessionFactory( registry ).unwrap( Mutiny.SessionFactory.class );
+	}
+
+	private static Trial measure(Vertx vertx, Properties settings) {
+		Trial trial = new Trial( settings );
+		Mutiny.SessionFactory factory = createSessionFactory( vertx, settings );
+		try {
+			factory.withTransaction( (session, tx) -> {
+				Category[] categories = new Category[CATEGORIES];
+				for ( int i = 0; i < CATEGORIES; i++ ) {
+					categories[i] = new Category( i, "category-" + i );
+				}
+				return session.persistAll( (Object[]) categories );
+			} ).await().indefinitely();
+
+			AtomicLong lastId = new AtomicLong();
+			run( factory, WARMUP, lastId, new ConcurrentHistogram( 3 ), new AtomicLong() );
+
+			Histogram latency = new ConcurrentHistogram( TimeUnit.MINUTES.toNanos( 1 ), 3 );
+			AtomicLong errors = new AtomicLong();
+			long start = System.nanoTime();
+			run( factory, OPERATIONS, lastId, latency, errors );
+			trial.throughput = OPERATIONS / ( ( System.nanoTime() - start ) / 1e9 );
+			trial.p50 = latency.getValueAtPercentile( 50 ) / 1e6;
+			trial.p99 = latency.getValueAtPercentile( 99 ) / 1e6;
+			trial.errors = errors.get();
+			return trial;
+		}
+		finally {
+			factory.close();
+		}
+	}
+
+	private static void run(Mutiny.SessionFactory factory, int operations, AtomicLong lastId, Histogram latency, AtomicLong errors) {
+		Multi.createFrom().range( 0, operations )
+				.onItem().transformToUni( i -> {
+					long start = System.nanoTime();
+					Uni<?> operation = i % 2 == 0
+							? insert( factory, lastId )
+							: read( factory, lastId.get() );
+					return operation
+							.onItem().invoke( () -> latency.recordValue( Math.min( System.nanoTime() - start, latency.getHighestTrackableValue() ) ) )
+							.onFailure().recoverWithItem( err -> {
+								errors.incrementAndGet();
+								return null;
+							} );
+				} )
+				.merge( CONCURRENCY )
+				.collect().last()
+				.await().indefinitely();
+	}
+
+	// Many inserts in one transaction, batched with hibernate.jdbc.batch_size
+	private static Uni<Void> insert(Mutiny.SessionFactory factory, AtomicLong lastId) {
+		return factory.withTransaction( (session, tx) -> {
+			Item[] items = new Item[ITEMS];
+			for ( int i = 0; i < ITEMS; i++ ) {
+				int category = ThreadLocalRandom.current().nextInt( CATEGORIES );
+				items[i] = new Item( "item-" + i, session.getReference( Category.class, category ) );
+			}
+			return session.persistAll( (Object[]) items )
+					.invoke( () -> lastId.accumulateAndGet( items[ITEMS - 1].id, Math::max ) );
+		} );
+	}
+
+	// The lazy categories of many items, loaded together with hibernate.default_batch_fetch_size
+	private static Uni<Void> read(Mutiny.SessionFactory factory, long lastId) {
+		long from = lastId <= ITEMS ? 0 : ThreadLocalRandom.current().nextLong( lastId - ITEMS );
+		return factory.withSession( session -> session
+				.createQuery( "from Item where id > :from order by id", Item.class )
+				.setParameter( "from", from )
+				.setMaxResults( ITEMS )
+				.getResultList()
+				.chain( items -> {
+					Uni<?> loop = Uni.createFrom().voidItem();
+					for ( Item item : items ) {
+						loop = loop.chain( () -> Mutiny.fetch( item.category ) );
+					}
+					return loop.replaceWithVoid();
+				} ) );
+	}
+
+	public static void main(String[] args) {
+		Vertx vertx = Vertx.vertx();
+		List<Trial> trials = new ArrayList<>();
+		Properties best = new Properties();
+		best.setProperty( Settings.STATEMENT_BATCH_SIZE, "1" );
+		best.setProperty( Settings.DEFAULT_BATCH_FETCH_SIZE, "1" );
+		best.setProperty( Settings.POOL_SIZE, "10" );
+		try {
+			System.out.printf( "Tuning %s with %d concurrent operations%n", URL, CONCURRENCY );
+			for ( String setting : SETTINGS ) {
+				Trial winner = null;
+				for ( int value : candidates( setting ) ) {
+					Properties settings = (Properties) best.clone();
+					settings.setProperty( setting, String.valueOf( value ) );
+					Trial trial = measure( vertx, settings );
+					System.out.println( trial );
+					trials.add( trial );
+					if ( trial.isBetterThan( winner ) ) {
+						winner = trial;
+					}
+				}
+				if ( winner.isEligible() ) {
+					best = winner.settings;
+				}
+				else {
+					System.out.println( "⚠ No value of " + setting + " without errors and under the p99 limit, keeping "
+							+ best.getProperty( setting ) );
+				}
+			}
+		}
+		finally {
+			vertx.close();
+		}
+
+		if ( trials.stream().noneMatch( Trial::isEligible ) ) {
+			System.err.println( "🔥 No trial without errors and with a p99 under " + MAX_P99 + " ms, "
+					+ TuningProperties.file().toAbsolutePath() + " is unchanged" );
+			System.exit( 1 );
+		}
+
+		StringBuilder comments = new StringBuilder( "Recommended by Autotuner.java for " + URL )
+				.append( ", " ).append( CONCURRENCY ).append( " concurrent operations of " ).append( ITEMS ).append( " items" );
+		trials.forEach( trial -> comments.append( '\n' ).append( trial ) );
+		TuningProperties.store( best, comments.toString() );
+		System.out.println( "✅ " + best + " written to " + TuningProperties.file().toAbsolutePath() );
+	}
+
+	@Entity(name = "Category")
+	@Table(name = "tuning_category")
+	public static class Category {
+		@Id
+		public Integer id;
+
+		public String name;
+
+		public Category() {
+		}
+
+		public Category(Integer id, String name) {
+			this.id = id;
+			this.name = name;
+		}
+	}
+
+	@Entity(name = "Item")
+	@Table(name = "tuning_item")
+	public static class Item {
+		@Id
+		// Large blocks of ids: the batch size is the only variable
+		@GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "tuning_item_seq")
+		@SequenceGenerator(name = "tuning_item_seq", allocationSize = 10_000)
+		public Long id;
+
+		public String name;
+
+		@ManyToOne(fetch = FetchType.LAZY)
+		public Category category;
+
+		public Item() {
+		}
+
+		public Item(String name, Category category) {
+			this.name = name;
+			this.category = category;
+		}
+	}
+}
@@ -0,0 +1,160 @@
+///usr/bin/env jbang "$0" "$@" ; exit $?
+//DEPS org.hibernate.reactive:hibernate-reactive-core:1.0.0.CR10
+//DEPS io.vertx:vertx-pg-client:4.1.5
+//DEPS io.vertx:vertx-web:4.1.5
+//DEPS io.netty:netty-transport-native-epoll:4.1.68.Final:linux-x86_64
+//DEPS com.fasterxml.jackson.core:jackson-databind:2.12.3
+//DEPS ch.qos.logback:logback-classic:1.2.3
+//DEPS org.testcontainers:postgresql:1.16.0
+//DEPS org.hdrhistogram:HdrHistogram:2.1.12
+//SOURCES StageVerticle.java
+//SOURCES ChaosProxy.java
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.RequestOptions;
+import io.vertx.core.json.JsonObject;
+
+//DESCRIPTION Throughput and p99 latency of the StageVerticle REST API with ChaosProxy.java between the verticle and PostgreSQL,
+//DESCRIPTION for each fault profile, compared to the first one. All the connections to the database go through the proxy.
+//DESCRIPTION Usage examples:
+//DESCRIPTION   jbang -Dchaos.seconds=20 -Dchaos.profiles=baseline,wan,resets ChaosHarness.java
+//DESCRIPTION   jbang -Dchaos.path=/products/{id} '-Dchaos.profiles=baseline,flaky:delay=5;jitter=20;resetEvery=500' ChaosHarness.java
+//DESCRIPTION The `stage.*` properties configure the verticle. The same measurements for Issue881: issue881/Issue881Chaos.java.
+public class ChaosHarness {
+
+	private static final Logger logger = LoggerFactory.getLogger( ChaosHarness.class );
+
+	private static final int PRODUCTS = Integer.getInteger( "chaos.products", 200 );
+	private static final int CONCURRENCY = Integer.getInteger( "chaos.concurrency", 32 );
+	private static final int SECONDS = Integer.getInteger( "chaos.seconds", 10 );
+	private static final long TIMEOUT = Long.getLong( "chaos.timeout", 5000 );
+	private static final String PATH = System.getProperty( "chaos.path", "/products/{id}/overview" );
+	private static final String PROFILES = System.getProperty( "chaos.profiles", "baseline,lan,wan,jitter,narrow,resets" );
+
+	private static Future<Void> seed(HttpClient client) {
+		Future<Void> loop = Future.succeededFuture();
+		for ( int i = 0; i < PRODUCTS; i++ ) {
+			JsonObject product = new JsonObject()
+					.put( "name", "Product " + i )
+					.put( "price", ( i % 100 ) + ".99" );
+			loop = loop.compose( v -> client.request( HttpMethod.POST, "/products" )
+					.compose( request -> request.send( product.toBuffer() ) )
+					.compose( HttpClientResponse::body )
+					.mapEmpty() );
+		}
+		return loop;
+	}
+
+	private static Future<ChaosProxy.Measurement> run(HttpClient client, String name) {
+		ChaosProxy.Measurement measurement = new ChaosProxy.Measurement( name );
+		long start = System.nanoTime();
+		long deadline = start + TimeUnit.SECONDS.toNanos( SECONDS );
+		// CompositeFuture.all only takes raw futures
+		@SuppressWarnings("rawtypes")
+		List<Future> workers = new ArrayList<>();
+		for ( int i = 0; i < CONCURRENCY; i++ ) {
+			Promise<Void> worker = Promise.promise();
+			next( client, measurement, deadline, worker );
+			workers.add( worker.future() );
+		}
+		return CompositeFuture.all( workers )
+				.map( v -> {
+					measurement.elapsed( System.nanoTime() - start );
+					return measurement;
+				} );
+	}
+
+	// Errors and timeouts are part of the results, the worker keeps going
+	private static void next(HttpClient client, ChaosProxy.Measurement measurement, long deadline, Promise<Void> worker) {
+		long start = System.nanoTime();
+		if ( start >= deadline ) {
+			worker.complete();
+			return;
+		}
+		RequestOptions options = new RequestOptions()
+				.setMethod( HttpMethod.GET )
+				.setURI( path() )
+				.setTimeout( TIMEOUT );
+		client.request( options )
+				.compose( request -> request.send() )
+				.compose( response -> response.body()
+						.onSuccess( body -> {
+							if ( response.statusCode() < 400 ) {
+								measurement.record( System.nanoTime() - start );
+							}
+							else {
+								measurement.error();
+							}
+						} ) )
+				.onFailure( err -> measurement.error() )
+				.onComplete( v -> next( client, measurement, deadline, worker ) );
+	}
+
+	private static String path() {
+		// Ids start from 1
+		int id = ThreadLocalRandom.current().nextInt( PRODUCTS ) + 1;
+		return PATH.replace( "{id}", String.valueOf( id ) );
+	}
+
+	private static <T> T join(Future<T> future) {
+		return future.toCompletionStage().toCompletableFuture().join();
+	}
+
+	public static void main(String... args) {
+		logger.info( "🚀 Starting a PostgreSQL container" );
+		StageVerticle.postgreSQLContainer.start();
+
+		Vertx vertx = Vertx.vertx();
+		ChaosProxy proxy = join( ChaosProxy.start( vertx, 0, StageVerticle.postgreSQLContainer.getHost(),
+				StageVerticle.postgreSQLContainer.getMappedPort( 5432 ), ChaosProxy.Profile.BASELINE ) );
+
+		JsonObject config = StageVerticle.systemConfig();
+		config.put( "jdbcUrl", "postgres://127.0.0.1:" + proxy.port() + "/postgres" )
+				// One line of SQL for each request would be the bottleneck
+				.put( "showSql", config.getBoolean( "showSql", false ) );
+		HttpClient client = vertx.createHttpClient( new HttpClientOptions()
+				.setDefaultHost( "localhost" )
+				.setDefaultPort( config.getInteger( "httpPort", 8080 ) )
+				.setMaxPoolSize( CONCURRENCY ) );
+
+		List<ChaosProxy.Measurement> results = new ArrayList<>();
+		try {
+			join( vertx.deployVerticle( StageVerticle::new, new DeploymentOptions().setConfig( config ) ) );
+			join( seed( client ) );
+			for ( ChaosProxy.Profile profile : ChaosProxy.Profile.parseAll( PROFILES ) ) {
+				logger.info( "⏱ {}: {} concurrent requests for {}s on {}", profile, CONCURRENCY, SECONDS, PATH );
+				// The open connections of the pools get the new faults too
+				proxy.profile( profile );
+				results.add( join( run( client, profile.name ) ) );
+				logger.info( "💡 Proxy: {}", proxy.stats().encode() );
+			}
+		}
+		finally {
+			client.close();
+			join( proxy.close() );
+			join( vertx.close() );
+			StageVerticle.postgreSQLContainer.stop();
+		}
+
+		System.out.println();
+		System.out.println( "Results (" + PATH + ", " + CONCURRENCY + " concurrent requests, " + SECONDS + "s per profile):" );
+		System.out.println( ChaosProxy.Measurement.header() );
+		results.forEach( result -> System.out.println( result.toString( results.get( 0 ) ) ) );
+	}
+}
@@ -0,0 +1,399 @@
+///usr/bin/env jbang "$0" "$@" ; exit $?
+//DEPS io.vertx:vertx-core:${vertx.version:4.1.5}
+//DEPS org.hdrhistogram:HdrHistogram:2.1.12
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import io.netty.channel.ChannelOption;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.net.NetClient;
+import io.vertx.core.net.NetClientOptions;
+import io.vertx.core.net.NetServer;
+import io.vertx.core.net.NetServerOptions;
+import io.vertx.core.net.NetSocket;
+import io.vertx.core.net.impl.NetSocketInternal;
+
+//DESCRIPTION A TCP proxy adding latency, jitter, bandwidth limits and connection resets in front of a database.
+//DESCRIPTION Usage example, in front of the ProxySQL of issue881 (then run Issue881.java with -Dissue881.url=mysql://127.0.0.1:16033/hreact):
+//DESCRIPTION   jbang ChaosProxy.java 16033 127.0.0.1:6033 wan
+//DESCRIPTION   jbang ChaosProxy.java 16033 127.0.0.1:6033 'flaky:delay=5;jitter=20;bandwidth=262144;resetEvery=2000'
+//DESCRIPTION Built-in profiles: baseline, lan, wan, jitter, narrow, resets.
+//DESCRIPTION Scripts include it with `//SOURCES ChaosProxy.java`, see ChaosHarness.java and issue881/Issue881Chaos.java.
+public class ChaosProxy {
+
+	/**
+	 * The faults to inject. Delay and jitter apply to each chunk of data, in both directions,
+	 * the bandwidth to each direction of each connection.
+	 */
+	public static class Profile {
+
+		public static final Profile BASELINE = new Profile( "baseline", 0, 0, 0, 0 );
+
+		private static final List<Profile> BUILT_IN = Arrays.asList(
+				BASELINE,
+				new Profile( "lan", 1, 1, 0, 0 ),
+				new Profile( "wan", 40, 10, 0, 0 ),
+				new Profile( "jitter", 5, 50, 0, 0 ),
+				new Profile( "narrow", 0, 0, 256 * 1024, 0 ),
+				new Profile( "resets", 0, 0, 0, 2000 )
+		);
+
+		final String name;
+		// Milliseconds
+		final long delay;
+		// Milliseconds, a random value between 0 and jitter is added to the delay
+		final long jitter;
+		// Bytes per second, 0 for no limit
+		final long bandwidth;
+		// Average milliseconds between two resets of a connection, 0 for never
+		final long resetEvery;
+
+		public Profile(String name, long delay, long jitter, long bandwidth, long resetEvery) {
+			this.name = name;
+			this.delay = delay;
+			this.jitter = jitter;
+			this.bandwidth = bandwidth;
+			this.resetEvery = resetEvery;
+		}
+
+		/**
+		 * A built-in profile, or a new one: {@code name:delay=10;jitter=2;bandwidth=65536;resetEvery=500}.
+		 */
+		public static Profile parse(String spec) {
+			String[] nameAndValues = spec.trim().split( ":", 2 );
+			if ( nameAndValues.length == 1 ) {
+				return BUILT_IN.stream()
+						.filter( profile -> profile.name.equals( nameAndValues[0] ) )
+						.findFirst()
+						.orElseThrow( () -> new IllegalArgumentException( "Unknown profile: " + spec ) );
+			}
+			JsonObject values = new JsonObject();
+			for ( String value : nameAndValues[1].split( ";" ) ) {
+				String[] keyValue = value.split( "=", 2 );
+				values.put( keyValue[0].trim(), Long.parseLong( keyValue[1].trim() ) );
+			}
+			return new Profile( nameAndValues[0], values.getLong( "delay", 0L ), values.getLong( "jitter", 0L ),
+								values.getLong( "bandwidth", 0L ), values.getLong( "resetEvery", 0L ) );
+		}
+
+		/**
+		 * Comma-separated profiles.
+		 */
+		public static List<Profile> parseAll(String specs) {
+			List<Profile> profiles = new ArrayList<>();
+			for ( String spec : specs.split( "," ) ) {
+				profiles.add( parse( spec ) );
+			}
+			return profiles;
+		}
+
+		boolean isTransparent() {
+			return delay == 0 && jitter == 0 && bandwidth == 0;
+		}
+
+		@Override
+		public String toString() {
+			return name + ":delay=" + delay + ";jitter=" + jitter + ";bandwidth=" + bandwidth + ";resetEvery=" + resetEvery;
+		}
+	}
+
+	/**
+	 * Throughput and latency of the operations of a harness under one profile.
+	 */
+	public static class Measurement {
+		private final String name;
+		// Fixed size whatever the number of operations, slower ones are recorded as the highest value
+		private final Histogram latency = new ConcurrentHistogram( TimeUnit.MINUTES.toNanos( 1 ), 3 );
+		private final LongAdder errors = new LongAdder();
+		private volatile long elapsed;
+
+		public Measurement(String name) {
+			this.name = name;
+		}
+
+		public void record(long nanos) {
+			latency.recordValue( Math.min( nanos, latency.getHighestTrackableValue() ) );
+		}
+
+		public void error() {
+			errors.increment();
+		}
+
+		public void elapsed(long nanos) {
+			elapsed = nanos;
+		}
+
+		public double throughput() {
+			return latency.getTotalCount() / ( elapsed / 1e9 );
+		}
+
+		/**
+		 * In milliseconds.
+		 */
+		public double percentile(double percentile) {
+			return latency.getValueAtPercentile( percentile ) / 1e6;
+		}
+
+		public static String header() {
+			return String.format( "%-12s %10s %10s %10s %8s %12s %10s", "Profile", "Ops/s", "p50 ms", "p99 ms", "Errors", "Throughput", "p99" );
+		}
+
+		/**
+		 * The results, and how much worse they are than the baseline.
+		 */
+		public String toString(Measurement baseline) {
+			return String.format( "%-12s %10.1f %10.2f %10.2f %8d %11.0f%% %9.1fx",
+					name, throughput(), percentile( 50 ), percentile( 99 ), errors.sum(),
+					100 * throughput() / baseline.throughput(), percentile( 99 ) / baseline.percentile( 99 ) );
+		}
+	}
+
+	private static final int HIGH_WATER_MARK = 1024 * 1024;
+	private static final int LOW_WATER_MARK = 256 * 1024;
+
+	private final Vertx vertx;
+	private final String targetHost;
+	private final int targetPort;
+	private final NetClient client;
+	private NetServer server;
+	private volatile Profile profile;
+
+	private final Set<Connection> open = ConcurrentHashMap.newKeySet();
+
+	private final LongAdder connections = new LongAdder();
+	private final LongAdder resets = new LongAdder();
+	private final LongAdder bytes = new LongAdder();
+
+	private ChaosProxy(Vertx vertx, String targetHost, int targetPort, Profile profile) {
+		this.vertx = vertx;
+		this.targetHost = targetHost;
+		this.targetPort = targetPort;
+		this.profile = profile;
+		this.client = vertx.createNetClient( new NetClientOptions().setTcpNoDelay( true ) );
+	}
+
+	/**
+	 * Listens on {@code port} (0 for a random one) and forwards everything to the target.
+	 */
+	public static Future<ChaosProxy> start(Vertx vertx, int port, String targetHost, int targetPort, Profile profile) {
+		ChaosProxy proxy = new ChaosProxy( vertx, targetHost, targetPort, profile );
+		return vertx.createNetServer( new NetServerOptions().setTcpNoDelay( true ) )
+				.connectHandler( proxy::connected )
+				.listen( port, "127.0.0.1" )
+				.map( server -> {
+					proxy.server = server;
+					return proxy;
+				} );
+	}
+
+	public int port() {
+		return server.actualPort();
+	}
+
+	/**
+	 * Changes the faults of all the connections, including the open ones.
+	 */
+	public void profile(Profile profile) {
+		this.profile = profile;
+		open.forEach( Connection::scheduleReset );
+	}
+
+	public JsonObject stats() {
+		return new JsonObject()
+				.put( "profile", profile.name )
+				.put( "connections", connections.sum() )
+				.put( "open", open.size() )
+				.put( "resets", resets.sum() )
+				.put( "bytes", bytes.sum() );
+	}
+
+	public Future<Void> close() {
+		return server.close().eventually( v -> client.close() );
+	}
+
+	private void connected(NetSocket downstream) {
+		downstream.pause();
+		client.connect( targetPort, targetHost )
+				.onSuccess( upstream -> {
+					connections.increment();
+					new Link( downstream, upstream );
+					new Link( upstream, downstream );
+					Connection connection = new Connection( downstream, upstream );
+					open.add( connection );
+					downstream.closeHandler( v -> connection.closed() );
+					connection.scheduleReset();
+					downstream.resume();
+				} )
+				.onFailure( err -> downstream.close() );
+	}
+
+	/**
+	 * Both sides of a proxied connection, and when to break them.
+	 */
+	private class Connection {
+		private final NetSocket downstream;
+		private final NetSocket upstream;
+		private long timer = -1;
+
+		Connection(NetSocket downstream, NetSocket upstream) {
+			this.downstream = downstream;
+			this.upstream = upstream;
+		}
+
+		synchronized void scheduleReset() {
+			if ( timer != -1 ) {
+				vertx.cancelTimer( timer );
+				timer = -1;
+			}
+			long resetEvery = profile.resetEvery;
+			if ( resetEvery > 0 ) {
+				// Exponential distribution: the resets of different connections are independent
+				long delay = (long) ( -Math.log( 1 - ThreadLocalRandom.current().nextDouble() ) * resetEvery );
+				timer = vertx.setTimer( Math.max( 1, delay ), id -> reset() );
+			}
+		}
+
+		// SO_LINGER 0: the peers get a RST, as with a broken network, instead of a FIN
+		private void reset() {
+			resets.increment();
+			for ( NetSocket socket : Arrays.asList( downstream, upstream ) ) {
+				( (NetSocketInternal) socket ).channelHandlerContext().channel().config().setOption( ChannelOption.SO_LINGER, 0 );
+				socket.close();
+			}
+		}
+
+		synchronized void closed() {
+			open.remove( this );
+			if ( timer != -1 ) {
+				vertx.cancelTimer( timer );
+			}
+		}
+	}
+
+	/**
+	 * One direction of a connection. The data keeps its order, even with jitter,
+	 * and the source is paused while too much of it is waiting.
+	 */
+	private class Link {
+		private final NetSocket from;
+		private final NetSocket to;
+
+		private final Deque<Object[]> queue = new ArrayDeque<>();
+		private long queuedBytes;
+		private long lastDeliveryTime;
+		private long linkFreeTime;
+		private long timer = -1;
+		private boolean ended;
+		private boolean paused;
+
+		Link(NetSocket from, NetSocket to) {
+			this.from = from;
+			this.to = to;
+			from.handler( this::received );
+			from.endHandler( v -> {
+				ended = true;
+				deliver();
+			} );
+			from.exceptionHandler( err -> to.close() );
+			to.drainHandler( v -> resumeIfPossible() );
+		}
+
+		private void received(Buffer buffer) {
+			bytes.add( buffer.length() );
+			Profile current = profile;
+			if ( current.isTransparent() && queue.isEmpty() ) {
+				to.write( buffer );
+				pauseIfNeeded();
+				return;
+			}
+
+			long now = System.nanoTime();
+			long sent = now;
+			if ( current.bandwidth > 0 ) {
+				// Serialization first, then propagation
+				sent = Math.max( now, linkFreeTime ) + buffer.length() * TimeUnit.SECONDS.toNanos( 1 ) / current.bandwidth;
+				linkFreeTime = sent;
+			}
+			long jitter = current.jitter > 0 ? ThreadLocalRandom.current().nextLong( current.jitter + 1 ) : 0;
+			long deliveryTime = Math.max( lastDeliveryTime, sent + TimeUnit.MILLISECONDS.toNanos( current.delay + jitter ) );
+			lastDeliveryTime = deliveryTime;
+
+			queue.add( new Object[] { deliveryTime, buffer } );
+			queuedBytes += buffer.length();
+			pauseIfNeeded();
+			if ( timer == -1 ) {
+				schedule( now );
+			}
+		}
+
+		private void deliver() {
+			timer = -1;
+			long now = System.nanoTime();
+			while ( !queue.isEmpty() && (long) queue.peek()[0] <= now ) {
+				Buffer buffer = (Buffer) queue.poll()[1];
+				queuedBytes -= buffer.length();
+				to.write( buffer );
+			}
+			if ( !queue.isEmpty() ) {
+				schedule( now );
+			}
+			else if ( ended ) {
+				to.close();
+			}
+			resumeIfPossible();
+		}
+
+		private void schedule(long now) {
+			long delay = TimeUnit.NANOSECONDS.toMillis( (long) queue.peek()[0] - now );
+			timer = vertx.setTimer( Math.max( 1, delay ), id -> deliver() );
+		}
+
+		private void pauseIfNeeded() {
+			if ( !paused && ( queuedBytes > HIGH_WATER_MARK || to.writeQueueFull() ) ) {
+				paused = true;
+				from.pause();
+			}
+		}
+
+		private void resumeIfPossible() {
+			if ( paused && queuedBytes < LOW_WATER_MARK && !to.writeQueueFull() ) {
+				paused = false;
+				from.resume();
+			}
+		}
+	}
+
+	public static void main(String... args) {
+		if ( args.length < 2 ) {
+			System.err.println( "Usage: ChaosProxy <port> <target host>:<target port> [profile]" );
+			System.exit( 1 );
+		}
+		String[] target = args[1].split( ":" );
+		Profile profile = args.length > 2 ? Profile.parse( args[2] ) : Profile.BASELINE;
+		Vertx vertx = Vertx.vertx();
+		start( vertx, Integer.parseInt( args[0] ), target[0], Integer.parseInt( target[1] ), profile )
+				.onSuccess( proxy -> {
+					System.out.println( "✅ 127.0.0.1:" + proxy.port() + " -> " + args[1] + " with " + profile );
+					vertx.setPeriodic( 10_000, id -> System.out.println( proxy.stats().encode() ) );
+				} )
+				.onFailure( err -> {
+					err.printStackTrace();
+					vertx.close();
+				} );
+	}
+}
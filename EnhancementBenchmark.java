@@ -0,0 +1,204 @@
+///usr/bin/env jbang "$0" "$@" ; exit $?
+//DEPS org.hibernate:hibernate-core:${hibernate-orm.version:5.5.0.Final}
+//DEPS com.h2database:h2:1.4.200
+//SOURCES EnhancingClassLoader.java
+//JAVA_OPTIONS -Xmx2g
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.persistence.Entity;
+import javax.persistence.FetchType;
+import javax.persistence.Id;
+import javax.persistence.JoinColumn;
+import javax.persistence.ManyToOne;
+import javax.persistence.Table;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.boot.MetadataSources;
+import org.hibernate.boot.registry.StandardServiceRegistryBuilder;
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.engine.spi.PersistentAttributeInterceptable;
+import org.hibernate.proxy.HibernateProxy;
+
+//DESCRIPTION Flush cost and heap per managed entity, with and without bytecode enhancement.
+//DESCRIPTION The same code runs twice: with the original classes (lazy proxies, snapshot dirty checking)
+//DESCRIPTION and with the classes enhanced by EnhancingClassLoader.java (inline dirty tracking, no proxy classes).
+//DESCRIPTION The startup time of the first run includes the loading of Hibernate itself.
+//DESCRIPTION Usage example:
+//DESCRIPTION   jbang -Dentities=100000 -Dflushes=5 EnhancementBenchmark.java
+public class EnhancementBenchmark {
+
+	private static final int ENTITIES = Integer.getInteger( "entities", 100_000 );
+	private static final int FLUSHES = Integer.getInteger( "flushes", 5 );
+	private static final int OWNERS = 1000;
+	private static final int BATCH_SIZE = 50;
+
+	private static SessionFactory createSessionFactory(String database) {
+		StandardServiceRegistryBuilder srb = new StandardServiceRegistryBuilder( EnhancingClassLoader.bootstrapRegistry( EnhancementBenchmark.class ) )
+				.applySetting( AvailableSettings.URL, "jdbc:h2:mem:" + database + ";DB_CLOSE_DELAY=-1" )
+				.applySetting( AvailableSettings.DIALECT, "org.hibernate.dialect.H2Dialect" )
+				.applySetting( AvailableSettings.HBM2DDL_AUTO, "create-drop" )
+				.applySetting( AvailableSettings.STATEMENT_BATCH_SIZE, String.valueOf( BATCH_SIZE ) )
+				.applySetting( AvailableSettings.ORDER_INSERTS, "true" )
+				.applySetting( EnhancingClassLoader.ALLOW_ENHANCEMENT_AS_PROXY_SETTING, String.valueOf( isEnhanced() ) );
+
+		return new MetadataSources( srb.build() )
+				.addAnnotatedClass( Owner.class )
+				.addAnnotatedClass( Item.class )
+				.buildMetadata()
+				.buildSessionFactory();
+	}
+
+	private static boolean isEnhanced() {
+		return PersistentAttributeInterceptable.class.isAssignableFrom( Item.class );
+	}
+
+	/**
+	 * Called once for each class loader.
+	 */
+	public static void measure() {
+		String mode = isEnhanced() ? "enhanced" : "proxies";
+		long start = System.nanoTime();
+		SessionFactory factory = createSessionFactory( mode );
+		long startup = System.nanoTime() - start;
+		try {
+			insert( factory );
+
+			try (Session session = factory.openSession()) {
+				session.beginTransaction();
+				long before = usedHeap();
+				start = System.nanoTime();
+				List<Item> items = session.createQuery( "from Item", Item.class ).getResultList();
+				long load = System.nanoTime() - start;
+				long heap = usedHeap() - before;
+				// Through the getter: the field of an enhanced entity stays null until the association is read
+				long proxies = items.stream().filter( item -> item.getOwner() instanceof HibernateProxy ).count();
+
+				// Nothing has changed: the cost of finding out
+				long cleanFlush = Long.MAX_VALUE;
+				for ( int i = 0; i < FLUSHES; i++ ) {
+					start = System.nanoTime();
+					session.flush();
+					cleanFlush = Math.min( cleanFlush, System.nanoTime() - start );
+				}
+
+				// 1% of the entities has changed
+				long dirtyFlush = Long.MAX_VALUE;
+				for ( int i = 0; i < FLUSHES; i++ ) {
+					for ( int j = i; j < items.size(); j += 100 ) {
+						Item item = items.get( j );
+						// Not the field: only the entity itself is enhanced
+						item.setQuantity( item.getQuantity() + 1 );
+					}
+					start = System.nanoTime();
+					session.flush();
+					dirtyFlush = Math.min( dirtyFlush, System.nanoTime() - start );
+				}
+				session.getTransaction().rollback();
+
+				System.out.printf( "%-9s %10d %10d %12d %12.2f %12.2f %10.1f %10d%n",
+						mode,
+						TimeUnit.NANOSECONDS.toMillis( startup ),
+						TimeUnit.NANOSECONDS.toMillis( load ),
+						items.size(),
+						cleanFlush / 1e6,
+						dirtyFlush / 1e6,
+						(double) heap / items.size(),
+						proxies );
+			}
+		}
+		finally {
+			factory.close();
+		}
+	}
+
+	private static void insert(SessionFactory factory) {
+		try (Session session = factory.openSession()) {
+			session.beginTransaction();
+			Owner[] owners = new Owner[OWNERS];
+			for ( int i = 0; i < OWNERS; i++ ) {
+				owners[i] = new Owner( i, "owner-" + i );
+				session.persist( owners[i] );
+			}
+			for ( int i = 0; i < ENTITIES; i++ ) {
+				session.persist( new Item( i, "item-" + i, i % 10, owners[i % OWNERS] ) );
+				if ( i % BATCH_SIZE == 0 ) {
+					session.flush();
+					session.clear();
+				}
+			}
+			session.getTransaction().commit();
+		}
+	}
+
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for ( int i = 0; i < 3; i++ ) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	public static void main(String... args) throws Exception {
+		System.out.printf( "%-9s %10s %10s %12s %12s %12s %10s %10s%n",
+				"Mode", "Startup ms", "Load ms", "Entities", "Clean flush", "1% dirty", "B/entity", "Proxy refs" );
+		measure();
+		// The same class, but with enhanced entities
+		EnhancingClassLoader.reload( EnhancementBenchmark.class ).getMethod( "measure" ).invoke( null );
+	}
+
+	@Entity(name = "Owner")
+	@Table(name = "owners")
+	public static class Owner {
+		@Id
+		public Integer id;
+
+		public String name;
+
+		public Owner() {
+		}
+
+		public Owner(Integer id, String name) {
+			this.id = id;
+			this.name = name;
+		}
+	}
+
+	@Entity(name = "Item")
+	@Table(name = "items")
+	public static class Item {
+		@Id
+		public Integer id;
+
+		public String name;
+
+		public int quantity;
+
+		@ManyToOne(fetch = FetchType.LAZY)
+		@JoinColumn(name = "owner_id")
+		public Owner owner;
+
+		public Item() {
+		}
+
+		public Item(Integer id, String name, int quantity, Owner owner) {
+			this.id = id;
+			this.name = name;
+			this.quantity = quantity;
+			this.owner = owner;
+		}
+
+		public int getQuantity() {
+			return quantity;
+		}
+
+		public void setQuantity(int quantity) {
+			this.quantity = quantity;
+		}
+
+		public Owner getOwner() {
+			return owner;
+		}
+	}
+}
@@ -0,0 +1,180 @@
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.hibernate.boot.registry.BootstrapServiceRegistry;
+import org.hibernate.boot.registry.BootstrapServiceRegistryBuilder;
+import org.hibernate.boot.registry.StandardServiceRegistry;
+import org.hibernate.boot.registry.StandardServiceRegistryBuilder;
+import org.hibernate.bytecode.enhance.spi.DefaultEnhancementContext;
+import org.hibernate.bytecode.enhance.spi.Enhancer;
+import org.hibernate.bytecode.enhance.spi.UnloadedClass;
+import org.hibernate.bytecode.enhance.spi.UnloadedField;
+import org.hibernate.bytecode.spi.BytecodeProvider;
+import org.hibernate.cfg.AvailableSettings;
+
+/**
+ * Loads a script class, and its nested classes, with the entities enhanced by Hibernate:
+ * the same result of the Hibernate Gradle or Maven plugin, without a build.
+ * <p>
+ * The enhanced entities track their changes (no snapshot comparison at flush), load their lazy
+ * attributes without proxy classes and keep both sides of bidirectional associations in sync.
+ * Enhancement is enabled with {@code -Denhance=true}, the features can be disabled with
+ * {@code -Denhance.dirtyTracking=false}, {@code -Denhance.lazy=false} and {@code -Denhance.associations=false}.
+ * <p>
+ * Usage, in the main method of a script including this file with {@code //SOURCES EnhancingClassLoader.java}:
+ * <pre>
+ * Class&lt;?&gt; testClass = EnhancingClassLoader.enabled()
+ *         ? EnhancingClassLoader.reload( MyTest.class )
+ *         : MyTest.class;
+ * </pre>
+ * Hibernate must look up the entities in the class loader of the script, see {@link #bootstrapRegistry(Class)}.
+ * When loading lazy associations without proxies, set {@code hibernate.bytecode.allow_enhancement_as_proxy}
+ * to {@code true} (see {@link #ALLOW_ENHANCEMENT_AS_PROXY_SETTING} and {@link #ALLOW_ENHANCEMENT_AS_PROXY}).
+ */
+public class EnhancingClassLoader extends ClassLoader {
+
+	/**
+	 * The name of the setting enabling the enhanced entities as lazy proxies. The constant is deprecated
+	 * in Hibernate ORM 5.5, but the setting is still needed: the scripts use this one instead.
+	 */
+	@SuppressWarnings("deprecation")
+	public static final String ALLOW_ENHANCEMENT_AS_PROXY_SETTING = AvailableSettings.ALLOW_ENHANCEMENT_AS_PROXY;
+
+	/**
+	 * Value of {@link #ALLOW_ENHANCEMENT_AS_PROXY_SETTING} when enhancement is enabled.
+	 */
+	public static final String ALLOW_ENHANCEMENT_AS_PROXY = String.valueOf( enabled() );
+
+	static {
+		registerAsParallelCapable();
+	}
+
+	private final String prefix;
+	private final Enhancer enhancer;
+
+	private EnhancingClassLoader(Class<?> scriptClass) {
+		super( scriptClass.getClassLoader() );
+		this.prefix = scriptClass.getName();
+		this.enhancer = enhancer( new Context( this ) );
+	}
+
+	/**
+	 * The enhancer of the bytecode provider configured with {@code hibernate.bytecode.provider}
+	 * (Byte Buddy by default), from a registry built only for this.
+	 */
+	private static Enhancer enhancer(Context context) {
+		StandardServiceRegistry registry = new StandardServiceRegistryBuilder().build();
+		try {
+			return registry.getService( BytecodeProvider.class ).getEnhancer( context );
+		}
+		finally {
+			StandardServiceRegistryBuilder.destroy( registry );
+		}
+	}
+
+	public static boolean enabled() {
+		return Boolean.getBoolean( "enhance" );
+	}
+
+	/**
+	 * The script class loaded again, with all the entities it contains enhanced.
+	 * The current thread uses the new class loader, so that Hibernate finds the enhanced classes by name.
+	 */
+	public static Class<?> reload(Class<?> scriptClass) {
+		EnhancingClassLoader loader = new EnhancingClassLoader( scriptClass );
+		Thread.currentThread().setContextClassLoader( loader );
+		try {
+			return loader.loadClass( scriptClass.getName() );
+		}
+		catch (ClassNotFoundException e) {
+			throw new IllegalStateException( e );
+		}
+	}
+
+	/**
+	 * A registry finding the classes in the class loader of the script first: the enhanced
+	 * entities, when the script has been reloaded.
+	 */
+	public static BootstrapServiceRegistry bootstrapRegistry(Class<?> scriptClass) {
+		return new BootstrapServiceRegistryBuilder()
+				.applyClassLoader( scriptClass.getClassLoader() )
+				.enableAutoClose()
+				.build();
+	}
+
+	private boolean isScriptClass(String name) {
+		return name.equals( prefix ) || name.startsWith( prefix + "$" );
+	}
+
+	@Override
+	protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+		if ( !isScriptClass( name ) ) {
+			return super.loadClass( name, resolve );
+		}
+		// Child first: the parent has already loaded the original classes
+		synchronized ( getClassLoadingLock( name ) ) {
+			Class<?> type = findLoadedClass( name );
+			if ( type == null ) {
+				type = findClass( name );
+			}
+			if ( resolve ) {
+				resolveClass( type );
+			}
+			return type;
+		}
+	}
+
+	@Override
+	protected Class<?> findClass(String name) throws ClassNotFoundException {
+		byte[] original = originalBytes( name );
+		byte[] enhanced = enhancer.enhance( name, original );
+		byte[] bytes = enhanced == null ? original : enhanced;
+		return defineClass( name, bytes, 0, bytes.length, getParent().loadClass( prefix ).getProtectionDomain() );
+	}
+
+	private byte[] originalBytes(String name) throws ClassNotFoundException {
+		try (InputStream in = getParent().getResourceAsStream( name.replace( '.', '/' ) + ".class" )) {
+			if ( in == null ) {
+				throw new ClassNotFoundException( name );
+			}
+			return in.readAllBytes();
+		}
+		catch (IOException e) {
+			throw new ClassNotFoundException( name, e );
+		}
+	}
+
+	private static class Context extends DefaultEnhancementContext {
+		private final ClassLoader loader;
+
+		Context(ClassLoader loader) {
+			this.loader = loader;
+		}
+
+		@Override
+		public ClassLoader getLoadingClassLoader() {
+			// The original bytes, to resolve the types of the fields
+			return loader.getParent();
+		}
+
+		@Override
+		public boolean doDirtyCheckingInline(UnloadedClass classDescriptor) {
+			return Boolean.parseBoolean( System.getProperty( "enhance.dirtyTracking", "true" ) );
+		}
+
+		@Override
+		public boolean hasLazyLoadableAttributes(UnloadedClass classDescriptor) {
+			return Boolean.parseBoolean( System.getProperty( "enhance.lazy", "true" ) );
+		}
+
+		@Override
+		public boolean isLazyLoadable(UnloadedField field) {
+			return Boolean.parseBoolean( System.getProperty( "enhance.lazy", "true" ) );
+		}
+
+		@Override
+		public boolean doBiDirectionalAssociationManagement(UnloadedField field) {
+			return Boolean.parseBoolean( System.getProperty( "enhance.associations", "true" ) );
+		}
+	}
+}
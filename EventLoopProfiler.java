@@ -0,0 +1,367 @@
+///usr/bin/env jbang "$0" "$@" ; exit $?
+//DEPS org.hdrhistogram:HdrHistogram:2.1.12
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import jdk.jfr.Category;
+import jdk.jfr.Configuration;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.Timespan;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import io.netty.util.concurrent.EventExecutor;
+import io.vertx.core.Vertx;
+import io.vertx.core.VertxOptions;
+import io.vertx.core.impl.VertxInternal;
+import io.vertx.core.impl.VertxThread;
+import io.vertx.core.metrics.MetricsOptions;
+import io.vertx.core.spi.metrics.PoolMetrics;
+import io.vertx.core.spi.metrics.VertxMetrics;
+
+//DESCRIPTION Finds what blocks the Vert.x event loops and the worker pools.
+//DESCRIPTION Add it to a script with `//SOURCES EventLoopProfiler.java` and enable it with `-Dprofiler=true`:
+//DESCRIPTION   jbang -Dprofiler=true -Dprofiler.threshold=20 StageVerticle.java
+//DESCRIPTION When the application stops, it prints a summary and writes in `profiler.dir`:
+//DESCRIPTION   <name>.jfr            a JFR recording with the `profile` settings and the slow tasks as `vertx.SlowTask` events
+//DESCRIPTION   <name>-collapsed.txt  the stacks sampled during the slow tasks, for flamegraph.pl or speedscope
+//DESCRIPTION Options (milliseconds): profiler.threshold (20) and profiler.workerThreshold (1000) for the slow tasks,
+//DESCRIPTION profiler.sampleInterval (5) for the stacks, profiler.probeInterval (100) for the event loop lag.
+public class EventLoopProfiler implements AutoCloseable {
+
+	private static final boolean ENABLED = Boolean.getBoolean( "profiler" );
+	private static final long THRESHOLD = TimeUnit.MILLISECONDS.toNanos( Long.getLong( "profiler.threshold", 20 ) );
+	private static final long WORKER_THRESHOLD = TimeUnit.MILLISECONDS.toNanos( Long.getLong( "profiler.workerThreshold", 1000 ) );
+	private static final long SAMPLE_INTERVAL = Long.getLong( "profiler.sampleInterval", 5 );
+	private static final long PROBE_INTERVAL = Long.getLong( "profiler.probeInterval", 100 );
+	private static final Path DIR = Paths.get( System.getProperty( "profiler.dir", "." ) );
+
+	private static final long HIGHEST_NANOS = TimeUnit.HOURS.toNanos( 1 );
+
+	/**
+	 * The queue and execution times of the tasks of each worker pool, by pool name.
+	 */
+	private static final Map<String, PoolStats> pools = new ConcurrentHashMap<>();
+
+	private final String name;
+	private final Vertx vertx;
+	private final Recording recording;
+	private final ScheduledExecutorService sampler;
+
+	private final Histogram lag = new ConcurrentHistogram( HIGHEST_NANOS, 2 );
+	private final Histogram slowEventLoopTasks = new Histogram( HIGHEST_NANOS, 2 );
+	private final Histogram slowWorkerTasks = new Histogram( HIGHEST_NANOS, 2 );
+
+	// Only used by the sampler thread
+	private final Map<VertxThread, SlowTask> running = new HashMap<>();
+	private final Map<String, Long> stacks = new HashMap<>();
+	private List<VertxThread> threads = new ArrayList<>();
+	private long threadsRefreshedAt;
+
+	private volatile boolean closed;
+
+	/**
+	 * A task that has been running for longer than the threshold, seen by the sampler.
+	 */
+	private static class SlowTask {
+		final VertxThread thread;
+		final long start;
+		long lastSeen;
+
+		SlowTask(VertxThread thread, long start) {
+			this.thread = thread;
+			this.start = start;
+		}
+	}
+
+	@Name("vertx.SlowTask")
+	@Label("Slow Vert.x Task")
+	@Category("Vert.x")
+	static class SlowTaskEvent extends Event {
+		@Label("Thread")
+		String thread;
+
+		@Label("Worker")
+		boolean worker;
+
+		// At least this long, it's measured by sampling
+		@Label("Running Time")
+		@Timespan(Timespan.NANOSECONDS)
+		long runningTime;
+	}
+
+	private static class PoolStats implements PoolMetrics<Long> {
+		final String name;
+		final Histogram queue = new ConcurrentHistogram( HIGHEST_NANOS, 2 );
+		final Histogram execution = new ConcurrentHistogram( HIGHEST_NANOS, 2 );
+
+		PoolStats(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public Long submitted() {
+			return System.nanoTime();
+		}
+
+		@Override
+		public Long begin(Long submitted) {
+			long now = System.nanoTime();
+			queue.recordValue( Math.min( now - submitted, HIGHEST_NANOS ) );
+			return now;
+		}
+
+		@Override
+		public void end(Long begin, boolean succeeded) {
+			execution.recordValue( Math.min( System.nanoTime() - begin, HIGHEST_NANOS ) );
+		}
+	}
+
+	public static boolean enabled() {
+		return ENABLED;
+	}
+
+	/**
+	 * Adds the metrics for the worker pools to the options, when the profiler is enabled.
+	 */
+	public static VertxOptions instrument(VertxOptions options) {
+		if ( !ENABLED ) {
+			return options;
+		}
+		return options.setMetricsOptions( new MetricsOptions()
+				.setEnabled( true )
+				.setFactory( vertxOptions -> new VertxMetrics() {
+					@Override
+					public PoolMetrics<?> createPoolMetrics(String poolType, String poolName, int maxPoolSize) {
+						return pools.computeIfAbsent( poolName, PoolStats::new );
+					}
+				} ) );
+	}
+
+	/**
+	 * Starts profiling, if enabled, until {@link #close()} is called or the JVM shuts down.
+	 *
+	 * @param name the name of the output files
+	 * @param vertx the {@link Vertx} to probe, created with the options returned by {@link #instrument(VertxOptions)}
+	 * @return null if the profiler is not enabled
+	 */
+	public static EventLoopProfiler start(String name, Vertx vertx) {
+		if ( !ENABLED ) {
+			return null;
+		}
+		EventLoopProfiler profiler = new EventLoopProfiler( name, vertx );
+		Runtime.getRuntime().addShutdownHook( new Thread( profiler::close, "profiler-shutdown" ) );
+		return profiler;
+	}
+
+	private EventLoopProfiler(String name, Vertx vertx) {
+		this.name = name;
+		this.vertx = vertx;
+		try {
+			Files.createDirectories( DIR );
+			recording = new Recording( Configuration.getConfiguration( "profile" ) );
+			recording.setName( name );
+			recording.setDestination( DIR.resolve( name + ".jfr" ) );
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException( e );
+		}
+		catch (ParseException e) {
+			throw new IllegalStateException( e );
+		}
+		recording.start();
+
+		sampler = Executors.newSingleThreadScheduledExecutor( runnable -> {
+			Thread thread = new Thread( runnable, "profiler-sampler" );
+			thread.setDaemon( true );
+			return thread;
+		} );
+		sampler.scheduleAtFixedRate( this::sample, SAMPLE_INTERVAL, SAMPLE_INTERVAL, TimeUnit.MILLISECONDS );
+
+		for ( EventExecutor eventLoop : ( (VertxInternal) vertx ).getEventLoopGroup() ) {
+			probe( eventLoop );
+		}
+	}
+
+	public Vertx vertx() {
+		return vertx;
+	}
+
+	/**
+	 * Measures how late a task scheduled on the event loop runs.
+	 */
+	private void probe(EventExecutor eventLoop) {
+		long expected = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( PROBE_INTERVAL );
+		eventLoop.schedule( () -> {
+			lag.recordValue( Math.min( Math.max( System.nanoTime() - expected, 0 ), HIGHEST_NANOS ) );
+			if ( !closed ) {
+				probe( eventLoop );
+			}
+		}, PROBE_INTERVAL, TimeUnit.MILLISECONDS );
+	}
+
+	private void sample() {
+		long now = System.nanoTime();
+		for ( VertxThread thread : threads( now ) ) {
+			// 0 when the thread is idle
+			long start = thread.startTime();
+			SlowTask task = running.get( thread );
+			if ( task != null && task.start != start ) {
+				running.remove( thread );
+				finished( task );
+				task = null;
+			}
+			if ( start == 0 || now - start < ( thread.isWorker() ? WORKER_THRESHOLD : THRESHOLD ) ) {
+				continue;
+			}
+			if ( task == null ) {
+				task = new SlowTask( thread, start );
+				running.put( thread, task );
+			}
+			task.lastSeen = now;
+			stacks.merge( collapse( thread ), 1L, Long::sum );
+		}
+	}
+
+	/**
+	 * The Vert.x threads, refreshed every 100ms: Vert.x starts them when needed.
+	 */
+	private List<VertxThread> threads(long now) {
+		if ( now - threadsRefreshedAt > TimeUnit.MILLISECONDS.toNanos( 100 ) ) {
+			threadsRefreshedAt = now;
+			ThreadGroup root = Thread.currentThread().getThreadGroup();
+			while ( root.getParent() != null ) {
+				root = root.getParent();
+			}
+			Thread[] all = new Thread[root.activeCount() + 16];
+			int count = root.enumerate( all );
+			List<VertxThread> refreshed = new ArrayList<>();
+			for ( int i = 0; i < count; i++ ) {
+				if ( all[i] instanceof VertxThread ) {
+					refreshed.add( (VertxThread) all[i] );
+				}
+			}
+			threads = refreshed;
+			Iterator<Map.Entry<VertxThread, SlowTask>> iterator = running.entrySet().iterator();
+			while ( iterator.hasNext() ) {
+				Map.Entry<VertxThread, SlowTask> entry = iterator.next();
+				if ( !entry.getKey().isAlive() ) {
+					iterator.remove();
+					finished( entry.getValue() );
+				}
+			}
+		}
+		return threads;
+	}
+
+	private void finished(SlowTask task) {
+		long runningTime = Math.min( task.lastSeen - task.start, HIGHEST_NANOS );
+		( task.thread.isWorker() ? slowWorkerTasks : slowEventLoopTasks ).recordValue( runningTime );
+
+		SlowTaskEvent event = new SlowTaskEvent();
+		event.thread = task.thread.getName();
+		event.worker = task.thread.isWorker();
+		event.runningTime = runningTime;
+		event.commit();
+	}
+
+	/**
+	 * The stack in the folded format: the pool, then the frames from the root, separated by {@code ;}.
+	 */
+	private static String collapse(Thread thread) {
+		StackTraceElement[] frames = thread.getStackTrace();
+		StringBuilder collapsed = new StringBuilder( pool( thread ) );
+		for ( int i = frames.length - 1; i >= 0; i-- ) {
+			collapsed.append( ';' ).append( frames[i].getClassName() ).append( '.' ).append( frames[i].getMethodName() );
+		}
+		return collapsed.toString();
+	}
+
+	// vert.x-eventloop-thread-3 -> vert.x-eventloop-thread
+	private static String pool(Thread thread) {
+		return thread.getName().replaceFirst( "-\\d+$", "" );
+	}
+
+	/**
+	 * Stops profiling, writes the output files and prints the summary. Only the first call has any effect.
+	 */
+	@Override
+	public synchronized void close() {
+		if ( closed ) {
+			return;
+		}
+		closed = true;
+		sampler.shutdown();
+		try {
+			sampler.awaitTermination( 1, TimeUnit.SECONDS );
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		running.values().forEach( this::finished );
+		running.clear();
+		recording.stop();
+		recording.close();
+
+		Path collapsed = DIR.resolve( name + "-collapsed.txt" );
+		try ( PrintWriter writer = new PrintWriter( Files.newBufferedWriter( collapsed ) ) ) {
+			stacks.forEach( (stack, count) -> writer.println( stack + " " + count ) );
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException( e );
+		}
+
+		System.out.println();
+		System.out.println( "Profiler summary (" + DIR.resolve( name + ".jfr" ) + ", " + collapsed + "):" );
+		System.out.println( "  Event loop lag:        " + percentiles( lag ) );
+		System.out.println( "  Slow event loop tasks: " + percentiles( slowEventLoopTasks ) );
+		System.out.println( "  Slow worker tasks:     " + percentiles( slowWorkerTasks ) );
+		for ( PoolStats pool : pools.values() ) {
+			System.out.println( "  " + pool.name + " queue:     " + percentiles( pool.queue ) );
+			System.out.println( "  " + pool.name + " execution: " + percentiles( pool.execution ) );
+		}
+		System.out.println( "  Top frames while slow:" );
+		topFrames().entrySet().stream()
+				.sorted( Map.Entry.<String, Long>comparingByValue().reversed() )
+				.limit( 10 )
+				.forEach( entry -> System.out.printf( "  %8d %s%n", entry.getValue(), entry.getKey() ) );
+	}
+
+	/**
+	 * The samples by the frame on top of the stack.
+	 */
+	private Map<String, Long> topFrames() {
+		Map<String, Long> frames = new HashMap<>();
+		stacks.forEach( (stack, count) -> frames.merge( stack.substring( stack.lastIndexOf( ';' ) + 1 ), count, Long::sum ) );
+		return frames;
+	}
+
+	private static String percentiles(Histogram histogram) {
+		return String.format(
+				"%8d samples %8.2f ms p50 %8.2f ms p99 %8.2f ms p99.9 %8.2f ms max",
+				histogram.getTotalCount(),
+				histogram.getValueAtPercentile( 50 ) / 1e6,
+				histogram.getValueAtPercentile( 99 ) / 1e6,
+				histogram.getValueAtPercentile( 99.9 ) / 1e6,
+				histogram.getMaxValue() / 1e6
+		);
+	}
+}
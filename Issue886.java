@@ -17,6 +17,9 @@
 //// Hibernate Reactive doesn't need it
 //DEPS mysql:mysql-connector-java:8.0.25
 
+//SOURCES EventLoopProfiler.java
+//SOURCES EnhancingClassLoader.java
+
 import java.io.Serializable;
 import javax.persistence.Column;
 import javax.persistence.Entity;
@@ -34,8 +37,10 @@ import org.hibernate.cfg.Configuration;
 import org.hibernate.reactive.mutiny.Mutiny;
 import org.hibernate.reactive.provider.ReactiveServiceRegistryBuilder;
 import org.hibernate.reactive.provider.Settings;
+import org.hibernate.reactive.vertx.VertxInstance;
 
 import org.junit.After;
+import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.ClassRule;
@@ -45,6 +50,8 @@ import org.junit.runner.Result;
 import org.junit.runner.RunWith;
 import org.junit.runner.notification.Failure;
 
+import io.vertx.core.Vertx;
+import io.vertx.core.VertxOptions;
 import io.vertx.ext.unit.TestContext;
 import io.vertx.ext.unit.junit.VertxUnitRunner;
 import org.testcontainers.containers.MySQLContainer;
@@ -57,16 +64,30 @@ public class Issue886 {
 
 	private Mutiny.SessionFactory sessionFactory;
 
+	// Only with -Dprofiler=true, see EventLoopProfiler.java
+	private static EventLoopProfiler profiler;
+
 	@BeforeClass
 	public static void startContainer() {
 		database.start();
+		if ( EventLoopProfiler.enabled() ) {
+			profiler = EventLoopProfiler.start( "Issue886", Vertx.vertx( EventLoopProfiler.instrument( new VertxOptions() ) ) );
+		}
+	}
+
+	@AfterClass
+	public static void stopProfiler() {
+		if ( profiler != null ) {
+			profiler.close();
+			profiler.vertx().close();
+		}
 	}
 
 	/**
 	 * The {@link Configuration} for the {@link Mutiny.SessionFactory}.
 	 */
 	private Configuration createConfiguration() {
-		Configuration configuration = new Configuration();
+		Configuration configuration = new Configuration( EnhancingClassLoader.bootstrapRegistry( getClass() ) );
 
 		// JDBC url
 		configuration.setProperty( Settings.URL, database.getJdbcUrl() );
@@ -75,6 +96,9 @@ public class Issue886 {
 		configuration.setProperty( Settings.USER, database.getUsername() );
 		configuration.setProperty( Settings.PASS, database.getPassword() );
 
+		// Enhanced entities as lazy proxies, with -Denhance=true (see EnhancingClassLoader.java)
+		configuration.setProperty( EnhancingClassLoader.ALLOW_ENHANCEMENT_AS_PROXY_SETTING, EnhancingClassLoader.ALLOW_ENHANCEMENT_AS_PROXY );
+
 		// Schema generation. Supported values are create, drop, create-drop, drop-create, none
 		configuration.setProperty( Settings.HBM2DDL_AUTO, "create" );
 
@@ -102,8 +126,12 @@ public class Issue886 {
 	@Before
 	public void createSessionFactory() {
 		Configuration configuration = createConfiguration();
-		StandardServiceRegistryBuilder builder = new ReactiveServiceRegistryBuilder()
+		StandardServiceRegistryBuilder builder = new ReactiveServiceRegistryBuilder( EnhancingClassLoader.bootstrapRegistry( getClass() ) )
 				.applySettings( configuration.getProperties() );
+		if ( profiler != null ) {
+			// Hibernate Reactive uses the profiled Vert.x instance
+			builder.addService( VertxInstance.class, (VertxInstance) profiler::vertx );
+		}
 		StandardServiceRegistry registry = builder.build();
 
 		sessionFactory = configuration.buildSessionFactory( registry )
@@ -181,7 +209,11 @@ public class Issue886 {
 	public static void main(String[] args) {
 		System.out.println( "Starting the test suite with MySQL" );
 
-		Result result = JUnitCore.runClasses( Issue886.class );
+		// With -Denhance=true, the entities are enhanced as with the Hibernate build plugins
+		Class<?> testClass = EnhancingClassLoader.enabled()
+				? EnhancingClassLoader.reload( Issue886.class )
+				: Issue886.class;
+		Result result = JUnitCore.runClasses( testClass );
 
 		for ( Failure failure : result.getFailures() ) {
 			System.out.println();
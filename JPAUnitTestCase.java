@@ -20,6 +20,8 @@
 //DEPS mysql:mysql-connector-java:8.0.25
 //
 
+//SOURCES ParallelSchemaManager.java
+
 import javax.persistence.Entity;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
@@ -73,7 +75,8 @@ public class JPAUnitTestCase {
 //				.applySetting( AvailableSettings.USER, "testuser" )
 //				.applySetting( AvailableSettings.PASS, "testpass" )
 
-				.applySetting( AvailableSettings.HBM2DDL_AUTO, "create-drop" )
+				// With -Dschema.manager, ParallelSchemaManager.java creates the schema instead
+				.applySetting( AvailableSettings.HBM2DDL_AUTO, ParallelSchemaManager.hbm2ddlAuto( "create-drop" ) )
 				.applySetting( AvailableSettings.SHOW_SQL, "true" )
 				.applySetting( AvailableSettings.HIGHLIGHT_SQL, "true" )
 				.applySetting( AvailableSettings.FORMAT_SQL, "true" );
@@ -82,6 +85,7 @@ public class JPAUnitTestCase {
 				// Add your entities here.
 				.addAnnotatedClass( MyEntity.class )
 				.buildMetadata();
+		ParallelSchemaManager.apply( metadata );
 
 		factory = metadata.buildSessionFactory();
 	}
@@ -0,0 +1,352 @@
+///usr/bin/env jbang "$0" "$@" ; exit $?
+//DEPS io.vertx:vertx-web-client:4.1.5
+//DEPS org.hdrhistogram:HdrHistogram:2.1.12
+//DEPS ch.qos.logback:logback-classic:1.2.3
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.HdrHistogram.Histogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.client.HttpRequest;
+import io.vertx.ext.web.client.HttpResponse;
+import io.vertx.ext.web.client.WebClient;
+import io.vertx.ext.web.client.WebClientOptions;
+
+//DESCRIPTION Open-model load generator for the StageVerticle REST API.
+//DESCRIPTION Requests start at a fixed rate, whether or not the previous ones have completed,
+//DESCRIPTION and the latency is measured from when each request should have started (no coordinated omission).
+//DESCRIPTION The sequence of requests only depends on the seed.
+//DESCRIPTION Usage example, with StageVerticle running:
+//DESCRIPTION   jbang LoadGenerator.java
+//DESCRIPTION   jbang -Dload.rate=5000 -Dload.duration=60 -Dload.mix=list=1,get=8,create=1 -Dload.output=run.json LoadGenerator.java
+//DESCRIPTION Options: load.url, load.rate (requests/s), load.duration and load.warmup (s), load.mix, load.ids (the `get` ids
+//DESCRIPTION go from 1 to load.ids), load.seed, load.connections, load.maxInFlight, load.timeout (ms), load.output (JSON file)
+public class LoadGenerator {
+
+	private static final Logger logger = LoggerFactory.getLogger( LoadGenerator.class );
+
+	private static final long HIGHEST_NANOS = TimeUnit.MINUTES.toNanos( 1 );
+
+	public enum Operation {
+		LIST, GET, CREATE
+	}
+
+	/**
+	 * What to send and how fast.
+	 */
+	public static class Options {
+		private String url = "http://localhost:8080";
+		private int rate = 1000;
+		private int duration = 30;
+		private int warmup = 5;
+		private final Map<Operation, Integer> mix = new EnumMap<>( Operation.class );
+		private int ids = 1000;
+		private long seed = 42;
+		private int connections = 64;
+		private int maxInFlight = 10_000;
+		private int timeout = 10_000;
+
+		public Options() {
+			mix.put( Operation.LIST, 1 );
+			mix.put( Operation.GET, 8 );
+			mix.put( Operation.CREATE, 1 );
+		}
+
+		/**
+		 * The options from the system properties starting with {@code load.}.
+		 */
+		public static Options fromSystemProperties() {
+			Options options = new Options()
+					.setUrl( System.getProperty( "load.url", "http://localhost:8080" ) )
+					.setRate( Integer.getInteger( "load.rate", 1000 ) )
+					.setDuration( Integer.getInteger( "load.duration", 30 ) )
+					.setWarmup( Integer.getInteger( "load.warmup", 5 ) )
+					.setIds( Integer.getInteger( "load.ids", 1000 ) )
+					.setSeed( Long.getLong( "load.seed", 42 ) )
+					.setConnections( Integer.getInteger( "load.connections", 64 ) )
+					.setMaxInFlight( Integer.getInteger( "load.maxInFlight", 10_000 ) )
+					.setTimeout( Integer.getInteger( "load.timeout", 10_000 ) );
+			if ( System.getProperty( "load.mix" ) != null ) {
+				options.setMix( System.getProperty( "load.mix" ) );
+			}
+			return options;
+		}
+
+		public Options setUrl(String url) {
+			this.url = url;
+			return this;
+		}
+
+		public Options setRate(int rate) {
+			this.rate = rate;
+			return this;
+		}
+
+		public Options setDuration(int duration) {
+			this.duration = duration;
+			return this;
+		}
+
+		public Options setWarmup(int warmup) {
+			this.warmup = warmup;
+			return this;
+		}
+
+		/**
+		 * The weight of each operation, for example {@code list=1,get=8,create=1}.
+		 */
+		public Options setMix(String mix) {
+			this.mix.clear();
+			for ( String entry : mix.split( "," ) ) {
+				String[] weight = entry.split( "=" );
+				this.mix.put( Operation.valueOf( weight[0].trim().toUpperCase() ), Integer.parseInt( weight[1].trim() ) );
+			}
+			return this;
+		}
+
+		public Options setIds(int ids) {
+			this.ids = ids;
+			return this;
+		}
+
+		public Options setSeed(long seed) {
+			this.seed = seed;
+			return this;
+		}
+
+		public Options setConnections(int connections) {
+			this.connections = connections;
+			return this;
+		}
+
+		public Options setMaxInFlight(int maxInFlight) {
+			this.maxInFlight = maxInFlight;
+			return this;
+		}
+
+		public Options setTimeout(int timeout) {
+			this.timeout = timeout;
+			return this;
+		}
+
+		JsonObject toJson() {
+			JsonObject weights = new JsonObject();
+			mix.forEach( (operation, weight) -> weights.put( operation.name().toLowerCase(), weight ) );
+			return new JsonObject()
+					.put( "url", url )
+					.put( "rate", rate )
+					.put( "duration", duration )
+					.put( "warmup", warmup )
+					.put( "mix", weights )
+					.put( "ids", ids )
+					.put( "seed", seed )
+					.put( "connections", connections );
+		}
+	}
+
+	private static class Stats {
+		// From when the request should have started
+		final Histogram latency = new Histogram( HIGHEST_NANOS, 3 );
+		// From when the request actually started
+		final Histogram serviceTime = new Histogram( HIGHEST_NANOS, 3 );
+		long errors;
+
+		void record(long intended, long sent, boolean success) {
+			long now = System.nanoTime();
+			latency.recordValue( Math.min( now - intended, HIGHEST_NANOS ) );
+			serviceTime.recordValue( Math.min( now - sent, HIGHEST_NANOS ) );
+			if ( !success ) {
+				errors++;
+			}
+		}
+
+		JsonObject toJson() {
+			return new JsonObject()
+					.put( "requests", latency.getTotalCount() )
+					.put( "errors", errors )
+					.put( "latency", percentiles( latency ) )
+					.put( "serviceTime", percentiles( serviceTime ) );
+		}
+
+		private static JsonObject percentiles(Histogram histogram) {
+			return new JsonObject()
+					.put( "mean", histogram.getMean() / 1e6 )
+					.put( "p50", histogram.getValueAtPercentile( 50 ) / 1e6 )
+					.put( "p90", histogram.getValueAtPercentile( 90 ) / 1e6 )
+					.put( "p99", histogram.getValueAtPercentile( 99 ) / 1e6 )
+					.put( "p99.9", histogram.getValueAtPercentile( 99.9 ) / 1e6 )
+					.put( "p99.99", histogram.getValueAtPercentile( 99.99 ) / 1e6 )
+					.put( "max", histogram.getMaxValue() / 1e6 );
+		}
+	}
+
+	private final Vertx vertx;
+	private final Options options;
+	private final Random random;
+	private final Operation[] operations;
+	// Names of the products created by this run
+	private final String runId = Long.toString( System.currentTimeMillis(), 36 );
+
+	private final Stats total = new Stats();
+	private final Map<Operation, Stats> byOperation = new EnumMap<>( Operation.class );
+	private final Promise<JsonObject> completion = Promise.promise();
+
+	private WebClient client;
+	private long start;
+	private long recordFrom;
+	private long end;
+	private long sent;
+	private int inFlight;
+	private long dropped;
+
+	public LoadGenerator(Vertx vertx, Options options) {
+		this.vertx = vertx;
+		this.options = options;
+		this.random = new Random( options.seed );
+		int weights = options.mix.values().stream().mapToInt( Integer::intValue ).sum();
+		this.operations = new Operation[weights];
+		int i = 0;
+		for ( Map.Entry<Operation, Integer> entry : options.mix.entrySet() ) {
+			for ( int w = 0; w < entry.getValue(); w++ ) {
+				operations[i++] = entry.getKey();
+			}
+			byOperation.put( entry.getKey(), new Stats() );
+		}
+	}
+
+	/**
+	 * Runs the load for warmup plus duration seconds, then waits for the requests still running.
+	 *
+	 * @return the results, as printed by {@link #main(String...)}
+	 */
+	public Future<JsonObject> run() {
+		// All the callbacks run on the same event loop
+		vertx.getOrCreateContext().runOnContext( v -> {
+			client = WebClient.create( vertx, new WebClientOptions()
+					.setKeepAlive( true )
+					.setMaxPoolSize( options.connections ) );
+			start = System.nanoTime();
+			recordFrom = start + TimeUnit.SECONDS.toNanos( options.warmup );
+			end = recordFrom + TimeUnit.SECONDS.toNanos( options.duration );
+			vertx.setPeriodic( 1, this::tick );
+		} );
+		return completion.future()
+				.eventually( v -> {
+					client.close();
+					return Future.succeededFuture();
+				} );
+	}
+
+	/**
+	 * Sends all the requests due by now.
+	 */
+	private void tick(long timerId) {
+		long now = System.nanoTime();
+		long interval = TimeUnit.SECONDS.toNanos( 1 ) / options.rate;
+		while ( true ) {
+			long intended = start + sent * interval;
+			if ( intended >= end ) {
+				vertx.cancelTimer( timerId );
+				completeWhenIdle();
+				return;
+			}
+			if ( intended > now ) {
+				return;
+			}
+			sent++;
+			send( intended );
+		}
+	}
+
+	private void send(long intended) {
+		Operation operation = operations[random.nextInt( operations.length )];
+		// Always drawn, so the sequence doesn't depend on the operation
+		int id = random.nextInt( options.ids ) + 1;
+		boolean recorded = intended >= recordFrom;
+		if ( inFlight >= options.maxInFlight ) {
+			if ( recorded ) {
+				dropped++;
+			}
+			return;
+		}
+
+		HttpRequest<Buffer> request;
+		Future<HttpResponse<Buffer>> response;
+		switch ( operation ) {
+			case LIST:
+				request = client.getAbs( options.url + "/products" );
+				response = request.timeout( options.timeout ).send();
+				break;
+			case GET:
+				request = client.getAbs( options.url + "/products/" + id );
+				response = request.timeout( options.timeout ).send();
+				break;
+			default:
+				request = client.postAbs( options.url + "/products" );
+				response = request.timeout( options.timeout ).sendJsonObject( new JsonObject()
+						.put( "name", "load-" + runId + "-" + sent )
+						.put( "price", id + ".99" ) );
+		}
+		long sentAt = System.nanoTime();
+		inFlight++;
+		response.onComplete( result -> {
+			inFlight--;
+			if ( recorded ) {
+				boolean success = result.succeeded() && result.result().statusCode() < 400;
+				total.record( intended, sentAt, success );
+				byOperation.get( operation ).record( intended, sentAt, success );
+			}
+			if ( System.nanoTime() >= end ) {
+				completeWhenIdle();
+			}
+		} );
+	}
+
+	private void completeWhenIdle() {
+		if ( inFlight == 0 && System.nanoTime() >= end ) {
+			completion.tryComplete( results() );
+		}
+	}
+
+	private JsonObject results() {
+		JsonObject operationResults = new JsonObject();
+		byOperation.forEach( (operation, stats) -> operationResults.put( operation.name().toLowerCase(), stats.toJson() ) );
+		return new JsonObject()
+				.put( "options", options.toJson() )
+				.put( "throughput", total.latency.getTotalCount() / (double) options.duration )
+				.put( "dropped", dropped )
+				.mergeIn( total.toJson() )
+				.put( "operations", operationResults );
+	}
+
+	public static void main(String... args) throws Exception {
+		Options options = Options.fromSystemProperties();
+		Vertx vertx = Vertx.vertx();
+		try {
+			logger.info( "⏱ {} requests/s for {}s (after {}s of warmup) on {}", options.rate, options.duration, options.warmup, options.url );
+			JsonObject results = new LoadGenerator( vertx, options ).run()
+					.toCompletionStage().toCompletableFuture().join();
+			String output = System.getProperty( "load.output" );
+			if ( output != null ) {
+				Files.writeString( Paths.get( output ), results.encodePrettily() );
+				logger.info( "✅ Results written to {}", output );
+			}
+			System.out.println( results.encodePrettily() );
+		}
+		finally {
+			vertx.close();
+		}
+	}
+}
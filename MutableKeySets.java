@@ -0,0 +1,1072 @@
+///usr/bin/env jbang "$0" "$@" ; exit $?
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.IntSupplier;
+import java.util.function.ToLongFunction;
+
+import static java.lang.System.out;
+
+// Sets and maps that keep working when their elements (or keys) are mutated after being added,
+// unlike the HashSet in StringBuilderInHashMap.java:
+//        - IdentityKeyMap and IdentityHashSet: compared by reference;
+//        - SnapshotHashMap and SnapshotHashSet: compared with equals, using the hash code they had when added;
+//        - LongHashMap, LongKeySet and LongHashSet: primitive keys (e.g. the entity ids), no boxing and no Node allocation.
+// All of them use open addressing with linear probing and backward-shift deletion.
+// The sets are views of the maps, like HashSet and HashMap, except for LongHashSet.
+// See MutableKeySetsBenchmark.java for the comparison with HashSet and IdentityHashMap.
+public class MutableKeySets {
+
+	private static final int MIN_CAPACITY = 16;
+
+	// The value of the keys in the maps behind the sets
+	private static final Object PRESENT = Boolean.TRUE;
+
+	/**
+	 * The table capacity, a power of two, for the expected number of elements
+	 * with a load factor of 0.5.
+	 */
+	static int capacityFor(int expectedSize) {
+		int capacity = MIN_CAPACITY;
+		while ( capacity < 2L * expectedSize ) {
+			capacity <<= 1;
+		}
+		return capacity;
+	}
+
+	/**
+	 * Spreads the bits of a hash code, so that the low bits can be used as a table index.
+	 */
+	static int mix(int hash) {
+		int h = hash * 0x9E3779B9;
+		return h ^ ( h >>> 16 );
+	}
+
+	static int identitySlot(Object key, int mask) {
+		return mix( System.identityHashCode( key ) ) & mask;
+	}
+
+	static int longSlot(long key, int mask) {
+		return (int) ( ( key * 0x9E3779B97F4A7C15L ) >>> 32 ) & mask;
+	}
+
+	/**
+	 * A {@link Map} that compares keys by reference, like {@link java.util.IdentityHashMap}.
+	 * <p>
+	 * The identity hash code of an object never changes, so mutating a key has no effect on the map.
+	 */
+	public static class IdentityKeyMap<K, V> extends AbstractMap<K, V> {
+
+		private Object[] keys;
+		private Object[] values;
+		private int size;
+		private int modCount;
+
+		public IdentityKeyMap() {
+			this( MIN_CAPACITY );
+		}
+
+		public IdentityKeyMap(int expectedSize) {
+			keys = new Object[capacityFor( expectedSize )];
+			values = new Object[keys.length];
+		}
+
+		private int indexOf(Object key) {
+			int mask = keys.length - 1;
+			for ( int i = identitySlot( key, mask ); keys[i] != null; i = ( i + 1 ) & mask ) {
+				if ( keys[i] == key ) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return key != null && indexOf( key ) >= 0;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public V get(Object key) {
+			int index = key == null ? -1 : indexOf( key );
+			return index < 0 ? null : (V) values[index];
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public V put(K key, V value) {
+			if ( key == null ) {
+				throw new NullPointerException( "Null keys are not supported" );
+			}
+			int mask = keys.length - 1;
+			int i = identitySlot( key, mask );
+			for ( ; keys[i] != null; i = ( i + 1 ) & mask ) {
+				if ( keys[i] == key ) {
+					V old = (V) values[i];
+					values[i] = value;
+					return old;
+				}
+			}
+			keys[i] = key;
+			values[i] = value;
+			modCount++;
+			if ( ++size * 2 > keys.length ) {
+				resize();
+			}
+			return null;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public V remove(Object key) {
+			int index = key == null ? -1 : indexOf( key );
+			if ( index < 0 ) {
+				return null;
+			}
+			V old = (V) values[index];
+			int mask = keys.length - 1;
+			// Backward-shift the following entries, so that there are no tombstones
+			int gap = index;
+			for ( int i = ( gap + 1 ) & mask; keys[i] != null; i = ( i + 1 ) & mask ) {
+				int home = identitySlot( keys[i], mask );
+				if ( ( ( i - home ) & mask ) >= ( ( i - gap ) & mask ) ) {
+					keys[gap] = keys[i];
+					values[gap] = values[i];
+					gap = i;
+				}
+			}
+			keys[gap] = null;
+			values[gap] = null;
+			size--;
+			modCount++;
+			return old;
+		}
+
+		private void resize() {
+			Object[] oldKeys = keys;
+			Object[] oldValues = values;
+			keys = new Object[oldKeys.length * 2];
+			values = new Object[keys.length];
+			int mask = keys.length - 1;
+			for ( int j = 0; j < oldKeys.length; j++ ) {
+				if ( oldKeys[j] != null ) {
+					int i = identitySlot( oldKeys[j], mask );
+					while ( keys[i] != null ) {
+						i = ( i + 1 ) & mask;
+					}
+					keys[i] = oldKeys[j];
+					values[i] = oldValues[j];
+				}
+			}
+		}
+
+		@Override
+		public void clear() {
+			Arrays.fill( keys, null );
+			Arrays.fill( values, null );
+			size = 0;
+			modCount++;
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		public Set<Entry<K, V>> entrySet() {
+			return new AbstractSet<Entry<K, V>>() {
+				@Override
+				public Iterator<Entry<K, V>> iterator() {
+					return IdentityKeyMap.this.iterator( true );
+				}
+
+				@Override
+				public int size() {
+					return size;
+				}
+			};
+		}
+
+		/**
+		 * The keys, or the entries, without a {@link #keySet()} view in between.
+		 */
+		@SuppressWarnings("unchecked")
+		<T> Iterator<T> iterator(boolean entries) {
+			return new TableIterator<T>( () -> modCount ) {
+				private Object[] iteratedKeys = keys;
+				private Object[] iteratedValues = values;
+
+				@Override
+				int capacity() {
+					return iteratedKeys.length;
+				}
+
+				@Override
+				boolean occupied(int index) {
+					return iteratedKeys[index] != null;
+				}
+
+				@Override
+				T item(int index) {
+					return entries
+							? (T) new MapEntry<>( IdentityKeyMap.this, (K) iteratedKeys[index], (V) iteratedValues[index] )
+							: (T) iteratedKeys[index];
+				}
+
+				@Override
+				void detach() {
+					iteratedKeys = iteratedKeys.clone();
+					iteratedValues = iteratedValues.clone();
+				}
+
+				@Override
+				void remove(int index) {
+					IdentityKeyMap.this.remove( iteratedKeys[index] );
+				}
+			};
+		}
+	}
+
+	/**
+	 * A {@link Set} that compares elements by reference, a view of an {@link IdentityKeyMap}.
+	 */
+	public static class IdentityHashSet<E> extends AbstractSet<E> {
+
+		private final IdentityKeyMap<E, Object> map;
+
+		public IdentityHashSet() {
+			this( MIN_CAPACITY );
+		}
+
+		public IdentityHashSet(int expectedSize) {
+			map = new IdentityKeyMap<>( expectedSize );
+		}
+
+		@Override
+		public boolean contains(Object element) {
+			return map.containsKey( element );
+		}
+
+		@Override
+		public boolean add(E element) {
+			return map.put( element, PRESENT ) == null;
+		}
+
+		@Override
+		public boolean remove(Object element) {
+			return map.remove( element ) != null;
+		}
+
+		@Override
+		public void clear() {
+			map.clear();
+		}
+
+		@Override
+		public int size() {
+			return map.size();
+		}
+
+		@Override
+		public Iterator<E> iterator() {
+			return map.iterator( false );
+		}
+	}
+
+	/**
+	 * A {@link Map} that compares keys with {@link Object#equals(Object)}, using the
+	 * hash code they had when they were added.
+	 * <p>
+	 * A key stays reachable after it's been mutated: the map finds it by reference,
+	 * and never recomputes its hash code (not even when the table grows).
+	 * An equal object finds it as long as it has the hash code the key had when added.
+	 * <p>
+	 * It keeps two tables: one by snapshot hash, with the values, for the equality lookups,
+	 * and one by identity hash, for the lookups by reference.
+	 */
+	public static class SnapshotHashMap<K, V> extends AbstractMap<K, V> {
+
+		private Object[] keys;
+		private int[] hashes;
+		private Object[] values;
+		private Object[] byIdentity;
+		private int[] byIdentityHashes;
+		private int size;
+		private int modCount;
+
+		public SnapshotHashMap() {
+			this( MIN_CAPACITY );
+		}
+
+		public SnapshotHashMap(int expectedSize) {
+			int capacity = capacityFor( expectedSize );
+			keys = new Object[capacity];
+			hashes = new int[capacity];
+			values = new Object[capacity];
+			byIdentity = new Object[capacity];
+			byIdentityHashes = new int[capacity];
+		}
+
+		private int indexOfEqual(Object key, int hash) {
+			int mask = keys.length - 1;
+			for ( int i = mix( hash ) & mask; keys[i] != null; i = ( i + 1 ) & mask ) {
+				if ( hashes[i] == hash && ( keys[i] == key || keys[i].equals( key ) ) ) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		// The index of a stored key in the table by snapshot hash
+		private int indexOfStored(Object stored, int hash) {
+			int mask = keys.length - 1;
+			int i = mix( hash ) & mask;
+			while ( keys[i] != stored ) {
+				i = ( i + 1 ) & mask;
+			}
+			return i;
+		}
+
+		private int identityIndexOf(Object key) {
+			int mask = byIdentity.length - 1;
+			for ( int i = identitySlot( key, mask ); byIdentity[i] != null; i = ( i + 1 ) & mask ) {
+				if ( byIdentity[i] == key ) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * The index in the table by snapshot hash: by reference first, a mutated key might not have
+		 * the same hash code anymore.
+		 */
+		private int indexOf(Object key) {
+			if ( key == null ) {
+				return -1;
+			}
+			int identityIndex = identityIndexOf( key );
+			return identityIndex >= 0
+					? indexOfStored( byIdentity[identityIndex], byIdentityHashes[identityIndex] )
+					: indexOfEqual( key, key.hashCode() );
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return indexOf( key ) >= 0;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public V get(Object key) {
+			int index = indexOf( key );
+			return index < 0 ? null : (V) values[index];
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public V put(K key, V value) {
+			if ( key == null ) {
+				throw new NullPointerException( "Null keys are not supported" );
+			}
+			int index = indexOf( key );
+			if ( index >= 0 ) {
+				V old = (V) values[index];
+				values[index] = value;
+				return old;
+			}
+			insert( key, key.hashCode(), value );
+			modCount++;
+			if ( ++size * 2 > keys.length ) {
+				resize();
+			}
+			return null;
+		}
+
+		private void insert(Object key, int hash, Object value) {
+			int mask = keys.length - 1;
+			int i = mix( hash ) & mask;
+			while ( keys[i] != null ) {
+				i = ( i + 1 ) & mask;
+			}
+			keys[i] = key;
+			hashes[i] = hash;
+			values[i] = value;
+
+			int j = identitySlot( key, mask );
+			while ( byIdentity[j] != null ) {
+				j = ( j + 1 ) & mask;
+			}
+			byIdentity[j] = key;
+			byIdentityHashes[j] = hash;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public V remove(Object key) {
+			int index = indexOf( key );
+			if ( index < 0 ) {
+				return null;
+			}
+			V old = (V) values[index];
+			removeByIdentity( identityIndexOf( keys[index] ) );
+			removeByHash( index );
+			size--;
+			modCount++;
+			return old;
+		}
+
+		private void removeByHash(int gap) {
+			int mask = keys.length - 1;
+			for ( int i = ( gap + 1 ) & mask; keys[i] != null; i = ( i + 1 ) & mask ) {
+				int home = mix( hashes[i] ) & mask;
+				if ( ( ( i - home ) & mask ) >= ( ( i - gap ) & mask ) ) {
+					keys[gap] = keys[i];
+					hashes[gap] = hashes[i];
+					values[gap] = values[i];
+					gap = i;
+				}
+			}
+			keys[gap] = null;
+			hashes[gap] = 0;
+			values[gap] = null;
+		}
+
+		private void removeByIdentity(int gap) {
+			int mask = byIdentity.length - 1;
+			for ( int i = ( gap + 1 ) & mask; byIdentity[i] != null; i = ( i + 1 ) & mask ) {
+				int home = identitySlot( byIdentity[i], mask );
+				if ( ( ( i - home ) & mask ) >= ( ( i - gap ) & mask ) ) {
+					byIdentity[gap] = byIdentity[i];
+					byIdentityHashes[gap] = byIdentityHashes[i];
+					gap = i;
+				}
+			}
+			byIdentity[gap] = null;
+			byIdentityHashes[gap] = 0;
+		}
+
+		private void resize() {
+			Object[] oldKeys = keys;
+			int[] oldHashes = hashes;
+			Object[] oldValues = values;
+			int capacity = oldKeys.length * 2;
+			keys = new Object[capacity];
+			hashes = new int[capacity];
+			values = new Object[capacity];
+			byIdentity = new Object[capacity];
+			byIdentityHashes = new int[capacity];
+			for ( int i = 0; i < oldKeys.length; i++ ) {
+				if ( oldKeys[i] != null ) {
+					insert( oldKeys[i], oldHashes[i], oldValues[i] );
+				}
+			}
+		}
+
+		@Override
+		public void clear() {
+			Arrays.fill( keys, null );
+			Arrays.fill( hashes, 0 );
+			Arrays.fill( values, null );
+			Arrays.fill( byIdentity, null );
+			Arrays.fill( byIdentityHashes, 0 );
+			size = 0;
+			modCount++;
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		public Set<Entry<K, V>> entrySet() {
+			return new AbstractSet<Entry<K, V>>() {
+				@Override
+				public Iterator<Entry<K, V>> iterator() {
+					return SnapshotHashMap.this.iterator( true );
+				}
+
+				@Override
+				public int size() {
+					return size;
+				}
+			};
+		}
+
+		/**
+		 * The keys, or the entries, without a {@link #keySet()} view in between.
+		 */
+		@SuppressWarnings("unchecked")
+		<T> Iterator<T> iterator(boolean entries) {
+			return new TableIterator<T>( () -> modCount ) {
+				private Object[] iteratedKeys = keys;
+				private Object[] iteratedValues = values;
+
+				@Override
+				int capacity() {
+					return iteratedKeys.length;
+				}
+
+				@Override
+				boolean occupied(int index) {
+					return iteratedKeys[index] != null;
+				}
+
+				@Override
+				T item(int index) {
+					return entries
+							? (T) new MapEntry<>( SnapshotHashMap.this, (K) iteratedKeys[index], (V) iteratedValues[index] )
+							: (T) iteratedKeys[index];
+				}
+
+				@Override
+				void detach() {
+					iteratedKeys = iteratedKeys.clone();
+					iteratedValues = iteratedValues.clone();
+				}
+
+				@Override
+				void remove(int index) {
+					// By reference, it works even if the key has been mutated
+					SnapshotHashMap.this.remove( iteratedKeys[index] );
+				}
+			};
+		}
+	}
+
+	/**
+	 * A {@link Set} that compares elements with {@link Object#equals(Object)}, using the
+	 * hash code they had when they were added: a view of a {@link SnapshotHashMap}.
+	 */
+	public static class SnapshotHashSet<E> extends AbstractSet<E> {
+
+		private final SnapshotHashMap<E, Object> map;
+
+		public SnapshotHashSet() {
+			this( MIN_CAPACITY );
+		}
+
+		public SnapshotHashSet(int expectedSize) {
+			map = new SnapshotHashMap<>( expectedSize );
+		}
+
+		@Override
+		public boolean contains(Object element) {
+			return map.containsKey( element );
+		}
+
+		@Override
+		public boolean add(E element) {
+			return map.put( element, PRESENT ) == null;
+		}
+
+		@Override
+		public boolean remove(Object element) {
+			return map.remove( element ) != null;
+		}
+
+		@Override
+		public void clear() {
+			map.clear();
+		}
+
+		@Override
+		public int size() {
+			return map.size();
+		}
+
+		@Override
+		public Iterator<E> iterator() {
+			return map.iterator( false );
+		}
+	}
+
+	/**
+	 * A map from primitive {@code long} keys: no boxing and no allocation per entry.
+	 * <p>
+	 * Null values are not supported, an empty slot has a null value.
+	 */
+	public static class LongHashMap<V> {
+
+		private long[] keys;
+		private Object[] values;
+		private int size;
+		private int modCount;
+
+		public LongHashMap() {
+			this( MIN_CAPACITY );
+		}
+
+		public LongHashMap(int expectedSize) {
+			keys = new long[capacityFor( expectedSize )];
+			values = new Object[keys.length];
+		}
+
+		private int indexOf(long key) {
+			int mask = keys.length - 1;
+			for ( int i = longSlot( key, mask ); values[i] != null; i = ( i + 1 ) & mask ) {
+				if ( keys[i] == key ) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		public boolean containsKey(long key) {
+			return indexOf( key ) >= 0;
+		}
+
+		@SuppressWarnings("unchecked")
+		public V get(long key) {
+			int index = indexOf( key );
+			return index < 0 ? null : (V) values[index];
+		}
+
+		@SuppressWarnings("unchecked")
+		public V put(long key, V value) {
+			Objects.requireNonNull( value, "Null values are not supported" );
+			int mask = keys.length - 1;
+			int i = longSlot( key, mask );
+			for ( ; values[i] != null; i = ( i + 1 ) & mask ) {
+				if ( keys[i] == key ) {
+					V old = (V) values[i];
+					values[i] = value;
+					return old;
+				}
+			}
+			keys[i] = key;
+			values[i] = value;
+			modCount++;
+			if ( ++size * 2 > keys.length ) {
+				resize();
+			}
+			return null;
+		}
+
+		@SuppressWarnings("unchecked")
+		public V remove(long key) {
+			int index = indexOf( key );
+			if ( index < 0 ) {
+				return null;
+			}
+			V old = (V) values[index];
+			int mask = keys.length - 1;
+			int gap = index;
+			for ( int i = ( gap + 1 ) & mask; values[i] != null; i = ( i + 1 ) & mask ) {
+				int home = longSlot( keys[i], mask );
+				if ( ( ( i - home ) & mask ) >= ( ( i - gap ) & mask ) ) {
+					keys[gap] = keys[i];
+					values[gap] = values[i];
+					gap = i;
+				}
+			}
+			keys[gap] = 0;
+			values[gap] = null;
+			size--;
+			modCount++;
+			return old;
+		}
+
+		private void resize() {
+			long[] oldKeys = keys;
+			Object[] oldValues = values;
+			keys = new long[oldKeys.length * 2];
+			values = new Object[keys.length];
+			int mask = keys.length - 1;
+			for ( int j = 0; j < oldKeys.length; j++ ) {
+				if ( oldValues[j] != null ) {
+					int i = longSlot( oldKeys[j], mask );
+					while ( values[i] != null ) {
+						i = ( i + 1 ) & mask;
+					}
+					keys[i] = oldKeys[j];
+					values[i] = oldValues[j];
+				}
+			}
+		}
+
+		public void clear() {
+			Arrays.fill( keys, 0 );
+			Arrays.fill( values, null );
+			size = 0;
+			modCount++;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public boolean isEmpty() {
+			return size == 0;
+		}
+
+		/**
+		 * The values, {@link Iterator#remove()} removes their entries.
+		 */
+		public Iterator<V> values() {
+			return new TableIterator<V>( () -> modCount ) {
+				private long[] iteratedKeys = keys;
+				private Object[] iteratedValues = values;
+
+				@Override
+				int capacity() {
+					return iteratedValues.length;
+				}
+
+				@Override
+				boolean occupied(int index) {
+					return iteratedValues[index] != null;
+				}
+
+				@Override
+				@SuppressWarnings("unchecked")
+				V item(int index) {
+					return (V) iteratedValues[index];
+				}
+
+				@Override
+				void detach() {
+					iteratedKeys = iteratedKeys.clone();
+					iteratedValues = iteratedValues.clone();
+				}
+
+				@Override
+				void remove(int index) {
+					LongHashMap.this.remove( iteratedKeys[index] );
+				}
+			};
+		}
+	}
+
+	/**
+	 * A {@link Set} of objects identified by a {@code long}, e.g. entities by id, in a {@link LongHashMap}.
+	 * <p>
+	 * Two elements are the same when they have the same key. The key of an element is read when it's added
+	 * and when it's looked up: mutating anything else has no effect on the set.
+	 */
+	public static class LongKeySet<E> extends AbstractSet<E> {
+
+		private final LongHashMap<E> map;
+		private final ToLongFunction<? super E> key;
+		private final Class<E> type;
+
+		public LongKeySet(Class<E> type, ToLongFunction<? super E> key) {
+			this( type, key, MIN_CAPACITY );
+		}
+
+		public LongKeySet(Class<E> type, ToLongFunction<? super E> key, int expectedSize) {
+			this.type = type;
+			this.key = key;
+			this.map = new LongHashMap<>( expectedSize );
+		}
+
+		@Override
+		public boolean contains(Object element) {
+			return type.isInstance( element ) && map.containsKey( key.applyAsLong( type.cast( element ) ) );
+		}
+
+		@Override
+		public boolean add(E element) {
+			long elementKey = key.applyAsLong( element );
+			if ( map.containsKey( elementKey ) ) {
+				return false;
+			}
+			map.put( elementKey, element );
+			return true;
+		}
+
+		@Override
+		public boolean remove(Object element) {
+			return type.isInstance( element ) && map.remove( key.applyAsLong( type.cast( element ) ) ) != null;
+		}
+
+		@Override
+		public void clear() {
+			map.clear();
+		}
+
+		@Override
+		public int size() {
+			return map.size();
+		}
+
+		@Override
+		public Iterator<E> iterator() {
+			return map.values();
+		}
+	}
+
+	/**
+	 * A set of primitive {@code long} values, no boxing and no allocation per element.
+	 * <p>
+	 * 0 is used as the empty slot marker and tracked separately.
+	 */
+	public static class LongHashSet {
+
+		private long[] table;
+		private boolean containsZero;
+		private int size;
+
+		public LongHashSet() {
+			this( MIN_CAPACITY );
+		}
+
+		public LongHashSet(int expectedSize) {
+			table = new long[capacityFor( expectedSize )];
+		}
+
+		public boolean contains(long value) {
+			if ( value == 0 ) {
+				return containsZero;
+			}
+			int mask = table.length - 1;
+			for ( int i = longSlot( value, mask ); table[i] != 0; i = ( i + 1 ) & mask ) {
+				if ( table[i] == value ) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		public boolean add(long value) {
+			if ( value == 0 ) {
+				if ( containsZero ) {
+					return false;
+				}
+				containsZero = true;
+				size++;
+				return true;
+			}
+			int mask = table.length - 1;
+			int i = longSlot( value, mask );
+			for ( ; table[i] != 0; i = ( i + 1 ) & mask ) {
+				if ( table[i] == value ) {
+					return false;
+				}
+			}
+			table[i] = value;
+			if ( ++size * 2 > table.length ) {
+				resize();
+			}
+			return true;
+		}
+
+		public boolean remove(long value) {
+			if ( value == 0 ) {
+				if ( !containsZero ) {
+					return false;
+				}
+				containsZero = false;
+				size--;
+				return true;
+			}
+			int mask = table.length - 1;
+			int gap = longSlot( value, mask );
+			while ( table[gap] != value ) {
+				if ( table[gap] == 0 ) {
+					return false;
+				}
+				gap = ( gap + 1 ) & mask;
+			}
+			for ( int i = ( gap + 1 ) & mask; table[i] != 0; i = ( i + 1 ) & mask ) {
+				int home = longSlot( table[i], mask );
+				if ( ( ( i - home ) & mask ) >= ( ( i - gap ) & mask ) ) {
+					table[gap] = table[i];
+					gap = i;
+				}
+			}
+			table[gap] = 0;
+			size--;
+			return true;
+		}
+
+		private void resize() {
+			long[] old = table;
+			table = new long[old.length * 2];
+			int mask = table.length - 1;
+			for ( long value : old ) {
+				if ( value != 0 ) {
+					int i = longSlot( value, mask );
+					while ( table[i] != 0 ) {
+						i = ( i + 1 ) & mask;
+					}
+					table[i] = value;
+				}
+			}
+		}
+
+		public void clear() {
+			Arrays.fill( table, 0 );
+			containsZero = false;
+			size = 0;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public boolean isEmpty() {
+			return size == 0;
+		}
+	}
+
+	/**
+	 * An entry returned by the iterators of the maps, {@link #setValue} writes through.
+	 */
+	private static class MapEntry<K, V> extends AbstractMap.SimpleEntry<K, V> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final transient Map<K, V> map;
+
+		MapEntry(Map<K, V> map, K key, V value) {
+			super( key, value );
+			this.map = map;
+		}
+
+		@Override
+		public V setValue(V value) {
+			super.setValue( value );
+			// Same key, the map doesn't change structure
+			return map.put( getKey(), value );
+		}
+	}
+
+	/**
+	 * Iterates over the occupied slots of a table.
+	 * <p>
+	 * Removing an entry shifts the following ones backward, and a cluster can wrap around the end of the table:
+	 * an entry already returned could move into a slot not visited yet, or the other way around.
+	 * So, like {@link java.util.IdentityHashMap}, the first {@link #remove()} switches the iteration
+	 * to copies of the arrays (see {@link #detach()}) and the entries are removed from the real ones.
+	 * The copies never change, each entry is returned exactly once.
+	 */
+	private abstract static class TableIterator<T> implements Iterator<T> {
+
+		private final IntSupplier modCount;
+		private int expectedModCount;
+		private boolean detached;
+		private boolean positioned;
+		private int next = -1;
+		private int current = -1;
+
+		TableIterator(IntSupplier modCount) {
+			this.modCount = modCount;
+			this.expectedModCount = modCount.getAsInt();
+		}
+
+		abstract int capacity();
+
+		abstract boolean occupied(int index);
+
+		abstract T item(int index);
+
+		/**
+		 * Replaces the arrays of the iterator with copies.
+		 */
+		abstract void detach();
+
+		/**
+		 * Removes the entry at the index in the arrays of the iterator from the collection.
+		 */
+		abstract void remove(int index);
+
+		// Lazy, the arrays of the subclasses aren't set yet in the constructor
+		@Override
+		public boolean hasNext() {
+			if ( !positioned ) {
+				do {
+					next++;
+				}
+				while ( next < capacity() && !occupied( next ) );
+				positioned = true;
+			}
+			return next < capacity();
+		}
+
+		@Override
+		public T next() {
+			if ( modCount.getAsInt() != expectedModCount ) {
+				throw new ConcurrentModificationException();
+			}
+			if ( !hasNext() ) {
+				throw new NoSuchElementException();
+			}
+			current = next;
+			positioned = false;
+			return item( current );
+		}
+
+		@Override
+		public void remove() {
+			if ( current < 0 ) {
+				throw new IllegalStateException();
+			}
+			if ( modCount.getAsInt() != expectedModCount ) {
+				throw new ConcurrentModificationException();
+			}
+			if ( !detached ) {
+				detach();
+				detached = true;
+			}
+			remove( current );
+			expectedModCount = modCount.getAsInt();
+			current = -1;
+		}
+	}
+
+	// Like StringBuilderInHashMap, but with a key whose hash code changes when it's mutated.
+	// HashSet and HashMap print 'true' then 'false' and can't remove it, the others print 'true' twice.
+	public static void main(String... args) {
+		check( "HashSet", new HashSet<>() );
+		check( "IdentityHashSet", new IdentityHashSet<>() );
+		check( "SnapshotHashSet", new SnapshotHashSet<>() );
+		check( "HashMap", new HashMap<>() );
+		check( "IdentityKeyMap", new IdentityKeyMap<>() );
+		check( "SnapshotHashMap", new SnapshotHashMap<>() );
+
+		LongHashSet ids = new LongHashSet();
+		ids.add( 0 );
+		ids.add( 42 );
+		out.println( "LongHashSet: " + ids.contains( 0 ) + " " + ids.contains( 42 ) + " " + ids.contains( 7 ) );
+
+		// Keyed by the length: another word with the same length is the same element
+		LongKeySet<String> words = new LongKeySet<>( String.class, String::length );
+		words.add( "one" );
+		out.println( "LongKeySet: " + words.contains( "one" ) + " " + words.contains( "two" ) + " " + words.contains( "three" ) );
+	}
+
+	private static void check(String name, Set<List<String>> set) {
+		List<String> key = new ArrayList<>();
+		set.add( key );
+		boolean before = set.contains( key );
+		key.add( "oops" );
+		boolean after = set.contains( key );
+		boolean removed = set.remove( key );
+		out.println( name + ": " + before + " " + after + " (removed: " + removed + ", size: " + set.size() + ")" );
+	}
+
+	private static void check(String name, Map<List<String>, String> map) {
+		List<String> key = new ArrayList<>();
+		map.put( key, "value" );
+		boolean before = map.containsKey( key );
+		key.add( "oops" );
+		boolean after = map.containsKey( key );
+		String removed = map.remove( key );
+		out.println( name + ": " + before + " " + after + " (removed: " + removed + ", size: " + map.size() + ")" );
+	}
+}
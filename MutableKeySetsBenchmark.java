@@ -0,0 +1,199 @@
+///usr/bin/env jbang "$0" "$@" ; exit $?
+//DEPS org.openjdk.jmh:jmh-core:1.33
+//DEPS org.openjdk.jmh:jmh-generator-annprocess:1.33
+//SOURCES MutableKeySets.java
+//JAVA_OPTIONS -Xmx8g
+
+// JMH doesn't support benchmarks in the default package
+package mutablekeys;
+
+import java.lang.ref.Reference;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+//DESCRIPTION Lookup throughput and memory footprint of the sets in MutableKeySets.java, keyed by mutable objects,
+//DESCRIPTION compared to HashSet and IdentityHashMap.
+//DESCRIPTION Usage example:
+//DESCRIPTION   1. Throughput, JMH options are accepted: `jbang MutableKeySetsBenchmark.java -p size=1000000`
+//DESCRIPTION   2. Memory footprint: `jbang MutableKeySetsBenchmark.java footprint 10000000`
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class MutableKeySetsBenchmark {
+
+	/**
+	 * An entity-like key: mutable, with equals and hashCode based on its state.
+	 */
+	public static class MutableKey {
+		long id;
+
+		MutableKey(long id) {
+			this.id = id;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof MutableKey && ( (MutableKey) o ).id == id;
+		}
+
+		@Override
+		public int hashCode() {
+			return Long.hashCode( id );
+		}
+	}
+
+	public enum Implementation {
+		HASH_SET {
+			@Override
+			Set<MutableKey> create(int size) {
+				return new HashSet<>( size * 4 / 3 + 1 );
+			}
+		},
+		IDENTITY_HASH_MAP {
+			@Override
+			Set<MutableKey> create(int size) {
+				return Collections.newSetFromMap( new IdentityHashMap<>( size ) );
+			}
+		},
+		IDENTITY_HASH_SET {
+			@Override
+			Set<MutableKey> create(int size) {
+				return mutableKeySet( "IdentityHashSet", new Class<?>[] { int.class }, size );
+			}
+		},
+		SNAPSHOT_HASH_SET {
+			@Override
+			Set<MutableKey> create(int size) {
+				return mutableKeySet( "SnapshotHashSet", new Class<?>[] { int.class }, size );
+			}
+		},
+		// Stores the ids and the keys, the lookups hash the ids
+		LONG_KEY_SET {
+			@Override
+			Set<MutableKey> create(int size) {
+				ToLongFunction<MutableKey> id = key -> key.id;
+				return mutableKeySet( "LongKeySet", new Class<?>[] { Class.class, ToLongFunction.class, int.class },
+						MutableKey.class, id, size );
+			}
+		};
+
+		abstract Set<MutableKey> create(int size);
+	}
+
+	/**
+	 * The sets of MutableKeySets.java are in the default package, which this one can't import.
+	 */
+	@SuppressWarnings("unchecked")
+	private static Set<MutableKey> mutableKeySet(String name, Class<?>[] parameterTypes, Object... arguments) {
+		try {
+			return (Set<MutableKey>) Class.forName( "MutableKeySets$" + name )
+					.getConstructor( parameterTypes )
+					.newInstance( arguments );
+		}
+		catch (ReflectiveOperationException e) {
+			throw new IllegalStateException( "Cannot create MutableKeySets." + name, e );
+		}
+	}
+
+	private static final int LOOKUPS = 1 << 16;
+
+	@Param({ "10000000" })
+	public int size;
+
+	@Param({ "HASH_SET", "IDENTITY_HASH_MAP", "IDENTITY_HASH_SET", "SNAPSHOT_HASH_SET", "LONG_KEY_SET" })
+	public Implementation implementation;
+
+	private MutableKey[] keys;
+	private Set<MutableKey> set;
+	private MutableKey[] lookups;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		keys = createKeys( size );
+		set = implementation.create( size );
+		Collections.addAll( set, keys );
+
+		// Random hits, the same for all the implementations
+		Random random = new Random( 42 );
+		lookups = new MutableKey[LOOKUPS];
+		for ( int i = 0; i < LOOKUPS; i++ ) {
+			lookups[i] = keys[random.nextInt( size )];
+		}
+	}
+
+	private static MutableKey[] createKeys(int size) {
+		MutableKey[] keys = new MutableKey[size];
+		for ( int i = 0; i < size; i++ ) {
+			// Spread the ids like a sequence with gaps
+			keys[i] = new MutableKey( 1 + i * 3L );
+		}
+		return keys;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(LOOKUPS)
+	public int contains() {
+		int found = 0;
+		for ( MutableKey key : lookups ) {
+			if ( set.contains( key ) ) {
+				found++;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * The heap retained by each set, not counting the keys.
+	 */
+	private static void footprint(int size) {
+		MutableKey[] keys = createKeys( size );
+		System.out.printf( "%-18s %12s %10s%n", "Implementation", "MB", "B/element" );
+		for ( Implementation implementation : Implementation.values() ) {
+			long before = usedHeap();
+			Set<MutableKey> set = implementation.create( size );
+			Collections.addAll( set, keys );
+			long used = usedHeap() - before;
+			System.out.printf( "%-18s %12.1f %10.1f%n", implementation, used / ( 1024.0 * 1024 ), (double) used / size );
+			Reference.reachabilityFence( set );
+		}
+	}
+
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for ( int i = 0; i < 3; i++ ) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	public static void main(String... args) throws Exception {
+		if ( args.length > 0 && "footprint".equals( args[0] ) ) {
+			footprint( args.length > 1 ? Integer.parseInt( args[1] ) : 10_000_000 );
+		}
+		else {
+			org.openjdk.jmh.Main.main( args );
+		}
+	}
+}
@@ -21,6 +21,9 @@
 //DEPS com.microsoft.sqlserver:mssql-jdbc:9.2.1.jre11
 //
 
+//SOURCES EnhancingClassLoader.java
+//SOURCES ParallelSchemaManager.java
+
 import java.io.Serializable;
 import javax.persistence.Column;
 import javax.persistence.Entity;
@@ -72,7 +75,7 @@ public class ORMStatelessUpdateProxy {
 	 */
 	@Before
 	public void createSessionFactory() {
-		StandardServiceRegistryBuilder srb = new StandardServiceRegistryBuilder()
+		StandardServiceRegistryBuilder srb = new StandardServiceRegistryBuilder( EnhancingClassLoader.bootstrapRegistry( getClass() ) )
 				// Add in any settings that are specific to your test.
 				.applySetting( AvailableSettings.URL, DATABASE.getJdbcUrl() )
 				.applySetting( AvailableSettings.DIALECT, DATABASE.getDialect() )
@@ -84,7 +87,11 @@ public class ORMStatelessUpdateProxy {
 //				.applySetting( AvailableSettings.USER, DATABASE.getUsername() )
 //				.applySetting( AvailableSettings.PASS, mssqlserver.getPassword() )
 
-				.applySetting( AvailableSettings.HBM2DDL_AUTO, "create-drop" )
+				// Enhanced entities as lazy proxies, with -Denhance=true (see EnhancingClassLoader.java)
+				.applySetting( EnhancingClassLoader.ALLOW_ENHANCEMENT_AS_PROXY_SETTING, EnhancingClassLoader.ALLOW_ENHANCEMENT_AS_PROXY )
+
+				// With -Dschema.manager, ParallelSchemaManager.java creates the schema instead
+				.applySetting( AvailableSettings.HBM2DDL_AUTO, ParallelSchemaManager.hbm2ddlAuto( "create-drop" ) )
 				.applySetting( AvailableSettings.SHOW_SQL, "true" )
 				.applySetting( AvailableSettings.HIGHLIGHT_SQL, "true" )
 				.applySetting( AvailableSettings.FORMAT_SQL, "true" );
@@ -94,6 +101,7 @@ public class ORMStatelessUpdateProxy {
 				.addAnnotatedClass( SampleEntity.class )
 				.addAnnotatedClass( SampleJoinEntity.class )
 				.buildMetadata();
+		ParallelSchemaManager.apply( metadata );
 
 		factory = metadata.buildSessionFactory();
 	}
@@ -232,7 +240,11 @@ public class ORMStatelessUpdateProxy {
 	public static void main(String[] args) {
 		System.out.println( "Starting the test suite" );
 
-		Result result = JUnitCore.runClasses( ORMStatelessUpdateProxy.class );
+		// With -Denhance=true, the entities are enhanced as with the Hibernate build plugins
+		Class<?> testClass = EnhancingClassLoader.enabled()
+				? EnhancingClassLoader.reload( ORMStatelessUpdateProxy.class )
+				: ORMStatelessUpdateProxy.class;
+		Result result = JUnitCore.runClasses( testClass );
 
 		for ( Failure failure : result.getFailures() ) {
 			System.out.println();
@@ -0,0 +1,308 @@
+///usr/bin/env jbang "$0" "$@" ; exit $?
+//DEPS org.hibernate:hibernate-core:${hibernate-orm.version:5.5.0.Final}
+//DEPS com.h2database:h2:1.4.200
+//DEPS org.hdrhistogram:HdrHistogram:2.1.12
+//DEPS org.testcontainers:postgresql:1.15.3
+//
+//// Testcontainer needs the JDBC drivers to start the containers
+//DEPS org.postgresql:postgresql:42.2.16
+
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.LockModeType;
+import javax.persistence.Table;
+import javax.persistence.Version;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.boot.MetadataSources;
+import org.hibernate.boot.registry.StandardServiceRegistryBuilder;
+import org.hibernate.cfg.AvailableSettings;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+//DESCRIPTION Bulk updates of versioned entities with a blocking Session: optimistic locking with conflict retries,
+//DESCRIPTION compared to pessimistic locking with `select ... for update`.
+//DESCRIPTION Each operation adds 1 to `bulk.rows` random counters, out of `bulk.counters`, from `bulk.writers` threads.
+//DESCRIPTION Usage example:
+//DESCRIPTION   jbang -Dbulk.writers=64 -Dbulk.counters=1000 -Dbulk.rows=10 -Dbulk.duration=10 OptimisticBulkUpdate.java
+//DESCRIPTION   jbang -Dbulk.database=postgresql OptimisticBulkUpdate.java
+public class OptimisticBulkUpdate {
+
+	private static final int WRITERS = Integer.getInteger( "bulk.writers", 64 );
+	private static final int COUNTERS = Integer.getInteger( "bulk.counters", 1000 );
+	private static final int ROWS = Integer.getInteger( "bulk.rows", 10 );
+	private static final int DURATION = Integer.getInteger( "bulk.duration", 10 );
+	private static final int MAX_RETRIES = Integer.getInteger( "bulk.maxRetries", 5 );
+
+	/**
+	 * The outcome of a bulk update.
+	 */
+	public static class Result {
+		int updated;
+		int conflicts;
+		int rounds;
+		List<Long> unresolved = Collections.emptyList();
+		// Ids without a counter, they are not updated
+		final List<Long> notFound = new ArrayList<>();
+		// The failure of a round (lock timeout, deadlock): the rounds before it are committed and counted
+		// in updated, the counters still pending are not updated
+		RuntimeException failure;
+	}
+
+	/**
+	 * Adds the deltas to the counters with optimistic locking, in batches.
+	 * <p>
+	 * Each round reads the values and versions of the counters, and sends all the updates as a JDBC batch
+	 * of {@code update ... where id = ? and version = ?}, in its own transaction. An update of 0 rows is
+	 * a conflict: it doesn't fail the batch, and only the counters in conflict are read and updated
+	 * again in the next round. The counters still in conflict after {@code maxRetries} are unresolved,
+	 * the ids without a counter are not found. A round that fails ends the bulk update with a failure,
+	 * the rounds before it stay committed.
+	 * <p>
+	 * The counters are read, and so updated, in order of id: concurrent bulk updates lock the rows in the
+	 * same order and can't deadlock.
+	 * <p>
+	 * The JDBC driver must return the row count of each statement of a batch
+	 * (not the case of MySQL with {@code rewriteBatchedStatements}).
+	 */
+	public static Result addAll(SessionFactory factory, Map<Long, Long> deltas, int maxRetries) {
+		Result result = new Result();
+		Map<Long, Long> pending = deltas;
+		while ( !pending.isEmpty() ) {
+			result.rounds++;
+			int notFound = result.notFound.size();
+			Map<Long, Long> conflicts;
+			try {
+				conflicts = round( factory, pending, result.notFound );
+			}
+			catch (RuntimeException e) {
+				// Rolled back
+				result.notFound.subList( notFound, result.notFound.size() ).clear();
+				result.failure = e;
+				break;
+			}
+			result.updated += pending.size() - conflicts.size() - ( result.notFound.size() - notFound );
+			result.conflicts += conflicts.size();
+			if ( result.rounds > maxRetries ) {
+				result.unresolved = new ArrayList<>( conflicts.keySet() );
+				break;
+			}
+			pending = conflicts;
+		}
+		return result;
+	}
+
+	private static Map<Long, Long> round(SessionFactory factory, Map<Long, Long> deltas, List<Long> notFound) {
+		try (Session session = factory.openSession()) {
+			session.beginTransaction();
+			List<Object[]> rows = session
+					.createQuery( "select c.id, c.total, c.version from Counter c where c.id in :ids order by c.id", Object[].class )
+					.setParameter( "ids", deltas.keySet() )
+					.getResultList();
+			Set<Long> missing = new HashSet<>( deltas.keySet() );
+			rows.forEach( row -> missing.remove( (Long) row[0] ) );
+			notFound.addAll( missing );
+			Map<Long, Long> conflicts = session.doReturningWork( connection -> {
+				try (PreparedStatement update = connection.prepareStatement(
+						"update counters set total = ?, version = version + 1 where id = ? and version = ?" )) {
+					for ( Object[] row : rows ) {
+						Long id = (Long) row[0];
+						update.setLong( 1, (Long) row[1] + deltas.get( id ) );
+						update.setLong( 2, id );
+						update.setInt( 3, (Integer) row[2] );
+						update.addBatch();
+					}
+					int[] counts = update.executeBatch();
+					Map<Long, Long> retry = new LinkedHashMap<>();
+					for ( int i = 0; i < counts.length; i++ ) {
+						if ( counts[i] == 0 ) {
+							Long id = (Long) rows.get( i )[0];
+							retry.put( id, deltas.get( id ) );
+						}
+					}
+					return retry;
+				}
+			} );
+			session.getTransaction().commit();
+			return conflicts;
+		}
+	}
+
+	/**
+	 * Adds the deltas to the counters after locking them with {@code select ... for update}, in one transaction.
+	 * The counters are locked in order of id, so concurrent updates can't deadlock.
+	 */
+	public static Result addAllLocking(SessionFactory factory, Map<Long, Long> deltas) {
+		try (Session session = factory.openSession()) {
+			session.beginTransaction();
+			List<Counter> counters = session
+					.createQuery( "from Counter c where c.id in :ids order by c.id", Counter.class )
+					.setParameter( "ids", deltas.keySet() )
+					.setLockMode( LockModeType.PESSIMISTIC_WRITE )
+					.getResultList();
+			for ( Counter counter : counters ) {
+				counter.total += deltas.get( counter.id );
+			}
+			// Batched at flush, see hibernate.jdbc.batch_size
+			session.getTransaction().commit();
+			Result result = new Result();
+			result.updated = counters.size();
+			result.rounds = 1;
+			result.notFound.addAll( deltas.keySet() );
+			counters.forEach( counter -> result.notFound.remove( counter.id ) );
+			return result;
+		}
+	}
+
+	private static SessionFactory createSessionFactory(String database) {
+		String url = "postgresql".equals( database )
+				? "jdbc:tc:postgresql:13-alpine:///bench?user=bench&password=bench"
+				: "jdbc:h2:mem:bench;DB_CLOSE_DELAY=-1;LOCK_TIMEOUT=10000";
+		StandardServiceRegistryBuilder srb = new StandardServiceRegistryBuilder()
+				.applySetting( AvailableSettings.URL, url )
+				.applySetting( AvailableSettings.HBM2DDL_AUTO, "create-drop" )
+				// A connection for each writer
+				.applySetting( AvailableSettings.POOL_SIZE, String.valueOf( WRITERS ) )
+				.applySetting( AvailableSettings.STATEMENT_BATCH_SIZE, String.valueOf( ROWS ) )
+				.applySetting( AvailableSettings.ORDER_UPDATES, "true" );
+
+		return new MetadataSources( srb.build() )
+				.addAnnotatedClass( Counter.class )
+				.buildMetadata()
+				.buildSessionFactory();
+	}
+
+	private static void reset(SessionFactory factory) {
+		try (Session session = factory.openSession()) {
+			session.beginTransaction();
+			session.createQuery( "delete from Counter" ).executeUpdate();
+			for ( long id = 1; id <= COUNTERS; id++ ) {
+				session.persist( new Counter( id ) );
+			}
+			session.getTransaction().commit();
+		}
+	}
+
+	private static long total(SessionFactory factory) {
+		try (Session session = factory.openSession()) {
+			return session.createQuery( "select sum(c.total) from Counter c", Long.class ).getSingleResult();
+		}
+	}
+
+	/**
+	 * The random counters of an operation, without duplicates.
+	 */
+	private static Map<Long, Long> randomDeltas(SplittableRandom random) {
+		Map<Long, Long> deltas = new LinkedHashMap<>();
+		while ( deltas.size() < Math.min( ROWS, COUNTERS ) ) {
+			deltas.put( (long) random.nextInt( COUNTERS ) + 1, 1L );
+		}
+		return deltas;
+	}
+
+	private static void benchmark(SessionFactory factory, String mode) throws InterruptedException {
+		reset( factory );
+		Histogram latency = new ConcurrentHistogram( TimeUnit.MINUTES.toNanos( 1 ), 3 );
+		LongAdder operations = new LongAdder();
+		LongAdder conflicts = new LongAdder();
+		LongAdder unresolved = new LongAdder();
+		LongAdder failures = new LongAdder();
+		LongAdder updated = new LongAdder();
+		long end = System.nanoTime() + TimeUnit.SECONDS.toNanos( DURATION );
+		CountDownLatch done = new CountDownLatch( WRITERS );
+		for ( int i = 0; i < WRITERS; i++ ) {
+			SplittableRandom random = new SplittableRandom( i );
+			Thread writer = new Thread( () -> {
+				try {
+					while ( System.nanoTime() < end ) {
+						Map<Long, Long> deltas = randomDeltas( random );
+						long start = System.nanoTime();
+						try {
+							Result result = "optimistic".equals( mode )
+									? addAll( factory, deltas, MAX_RETRIES )
+									: addAllLocking( factory, deltas );
+							// The rounds committed before a failure count too
+							updated.add( result.updated );
+							if ( result.failure != null ) {
+								failures.increment();
+								continue;
+							}
+							latency.recordValue( Math.min( System.nanoTime() - start, latency.getHighestTrackableValue() ) );
+							operations.increment();
+							conflicts.add( result.conflicts );
+							unresolved.add( result.unresolved.size() );
+						}
+						catch (RuntimeException e) {
+							// Lock timeouts, deadlocks
+							failures.increment();
+						}
+					}
+				}
+				finally {
+					done.countDown();
+				}
+			}, mode + "-" + i );
+			writer.start();
+		}
+		done.await();
+
+		System.out.printf( "%-11s %10.1f %10.1f %10.2f %10.2f %10.2f %10d %10d %s%n",
+				mode,
+				operations.sum() / (double) DURATION,
+				updated.sum() / (double) DURATION,
+				latency.getValueAtPercentile( 50 ) / 1e6,
+				latency.getValueAtPercentile( 99 ) / 1e6,
+				conflicts.sum() / (double) Math.max( 1, operations.sum() ),
+				unresolved.sum(),
+				failures.sum(),
+				// Every update must be there exactly once
+				total( factory ) == updated.sum() ? "✅" : "🔥 lost updates" );
+	}
+
+	public static void main(String... args) throws Exception {
+		SessionFactory factory = createSessionFactory( System.getProperty( "bulk.database", "h2" ) );
+		try {
+			System.out.printf( "%d writers, %d counters, %d rows per operation, %ds%n", WRITERS, COUNTERS, ROWS, DURATION );
+			System.out.printf( "%-11s %10s %10s %10s %10s %10s %10s %10s%n",
+					"Mode", "Ops/s", "Rows/s", "p50 ms", "p99 ms", "Conf/op", "Unresolved", "Failures" );
+			benchmark( factory, "optimistic" );
+			benchmark( factory, "for-update" );
+		}
+		finally {
+			factory.close();
+		}
+	}
+
+	@Entity(name = "Counter")
+	@Table(name = "counters")
+	public static class Counter {
+		@Id
+		public Long id;
+
+		public long total;
+
+		@Version
+		public Integer version;
+
+		public Counter() {
+		}
+
+		public Counter(Long id) {
+			this.id = id;
+		}
+	}
+}
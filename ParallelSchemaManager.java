@@ -0,0 +1,340 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.hibernate.boot.Metadata;
+import org.hibernate.boot.model.relational.Namespace;
+import org.hibernate.boot.model.relational.Sequence;
+import org.hibernate.boot.spi.MetadataImplementor;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.engine.jdbc.connections.spi.ConnectionProvider;
+import org.hibernate.engine.jdbc.env.spi.JdbcEnvironment;
+import org.hibernate.mapping.ForeignKey;
+import org.hibernate.mapping.Index;
+import org.hibernate.mapping.Table;
+import org.hibernate.mapping.UniqueKey;
+import org.hibernate.service.ServiceRegistry;
+import org.hibernate.tool.schema.spi.SchemaManagementException;
+
+/**
+ * Creates the schema of a {@link Metadata} over several JDBC connections, instead of one statement at a time
+ * on a single connection like {@code hibernate.hbm2ddl.auto}.
+ * <p>
+ * The tables don't depend on each other once the foreign keys are out of the way, so the work runs in phases:
+ * <ol>
+ *     <li>drop the foreign keys (when the dialect can't drop tables with cascade), then the tables and sequences;</li>
+ *     <li>create the sequences, and each table followed by its unique keys and indexes, in parallel;</li>
+ *     <li>add the foreign keys, in parallel, and again one at a time those that failed because of a lock.</li>
+ * </ol>
+ * A SHA-256 fingerprint of the creation statements is stored in the {@code schema_fingerprint} table:
+ * {@link #createIfChanged(Metadata)} and {@link #validate(Metadata)} only read it, when it matches the mapping.
+ * This is not a replacement of {@code hbm2ddl.auto=validate}: changes made to the database by hand go unnoticed.
+ * Auxiliary database objects and {@code import.sql} are not supported.
+ * <p>
+ * Enabled with {@code -Dschema.manager=parallel} (create every time), {@code fingerprint} (create when the mapping
+ * has changed) or {@code validate}, and {@code -Dschema.threads} connections (4 by default).
+ * Usage, in a script including this file with {@code //SOURCES ParallelSchemaManager.java}:
+ * <pre>
+ * .applySetting( AvailableSettings.HBM2DDL_AUTO, ParallelSchemaManager.hbm2ddlAuto( "create-drop" ) )
+ * ...
+ * ParallelSchemaManager.apply( metadata );
+ * </pre>
+ */
+public class ParallelSchemaManager {
+
+	private static final String FINGERPRINT_TABLE = "schema_fingerprint";
+
+	private final Dialect dialect;
+	private final ConnectionProvider connections;
+	private final int threads;
+
+	private final List<String> dropForeignKeys = new ArrayList<>();
+	private final List<String> drops = new ArrayList<>();
+	// One group for each sequence and table: the statements of a group run in order, on one connection
+	private final List<List<String>> creates = new ArrayList<>();
+	private final List<List<String>> foreignKeys = new ArrayList<>();
+	private final String fingerprint;
+
+	public ParallelSchemaManager(Metadata metadata, int threads) {
+		ServiceRegistry registry = ( (MetadataImplementor) metadata ).getMetadataBuildingOptions().getServiceRegistry();
+		this.dialect = registry.getService( JdbcEnvironment.class ).getDialect();
+		this.connections = registry.getService( ConnectionProvider.class );
+		this.threads = threads;
+		plan( metadata );
+		this.fingerprint = fingerprint();
+	}
+
+	public static String mode() {
+		return System.getProperty( "schema.manager" );
+	}
+
+	/**
+	 * The value of {@code hibernate.hbm2ddl.auto}: {@code none} when this class manages the schema.
+	 */
+	public static String hbm2ddlAuto(String action) {
+		return mode() == null ? action : "none";
+	}
+
+	/**
+	 * Runs the action of {@code -Dschema.manager}, if any.
+	 */
+	public static void apply(Metadata metadata) {
+		if ( mode() == null ) {
+			return;
+		}
+		ParallelSchemaManager manager = new ParallelSchemaManager( metadata, Integer.getInteger( "schema.threads", 4 ) );
+		switch ( mode() ) {
+			case "parallel":
+				manager.create();
+				break;
+			case "fingerprint":
+				manager.createIfChanged();
+				break;
+			case "validate":
+				manager.validate();
+				break;
+			default:
+				throw new IllegalArgumentException( "Unknown schema.manager: " + mode() );
+		}
+	}
+
+	public static boolean createIfChanged(Metadata metadata) {
+		return new ParallelSchemaManager( metadata, Integer.getInteger( "schema.threads", 4 ) ).createIfChanged();
+	}
+
+	public static void validate(Metadata metadata) {
+		new ParallelSchemaManager( metadata, Integer.getInteger( "schema.threads", 4 ) ).validate();
+	}
+
+	private void plan(Metadata metadata) {
+		for ( Namespace namespace : metadata.getDatabase().getNamespaces() ) {
+			for ( Sequence sequence : namespace.getSequences() ) {
+				drops.addAll( Arrays.asList( dialect.getSequenceExporter().getSqlDropStrings( sequence, metadata ) ) );
+				creates.add( Arrays.asList( dialect.getSequenceExporter().getSqlCreateStrings( sequence, metadata ) ) );
+			}
+			for ( Table table : namespace.getTables() ) {
+				if ( !table.isPhysicalTable() ) {
+					continue;
+				}
+				drops.addAll( Arrays.asList( dialect.getTableExporter().getSqlDropStrings( table, metadata ) ) );
+
+				List<String> create = new ArrayList<>( Arrays.asList( dialect.getTableExporter().getSqlCreateStrings( table, metadata ) ) );
+				for ( Iterator<UniqueKey> keys = table.getUniqueKeyIterator(); keys.hasNext(); ) {
+					create.addAll( Arrays.asList( dialect.getUniqueKeyExporter().getSqlCreateStrings( keys.next(), metadata ) ) );
+				}
+				for ( Iterator<Index> indexes = table.getIndexIterator(); indexes.hasNext(); ) {
+					create.addAll( Arrays.asList( dialect.getIndexExporter().getSqlCreateStrings( indexes.next(), metadata ) ) );
+				}
+				creates.add( create );
+
+				List<String> tableForeignKeys = new ArrayList<>();
+				for ( Iterator<ForeignKey> keys = table.getForeignKeyIterator(); keys.hasNext(); ) {
+					ForeignKey foreignKey = keys.next();
+					if ( foreignKey.isPhysicalConstraint() && foreignKey.isCreationEnabled() ) {
+						tableForeignKeys.addAll( Arrays.asList( dialect.getForeignKeyExporter().getSqlCreateStrings( foreignKey, metadata ) ) );
+						if ( dialect.dropConstraints() ) {
+							dropForeignKeys.addAll( Arrays.asList( dialect.getForeignKeyExporter().getSqlDropStrings( foreignKey, metadata ) ) );
+						}
+					}
+				}
+				if ( !tableForeignKeys.isEmpty() ) {
+					foreignKeys.add( tableForeignKeys );
+				}
+			}
+		}
+	}
+
+	private String fingerprint() {
+		try {
+			MessageDigest digest = MessageDigest.getInstance( "SHA-256" );
+			digest.update( dialect.getClass().getName().getBytes( StandardCharsets.UTF_8 ) );
+			// The order of the tables in the metadata is stable for the same mapping
+			for ( List<List<String>> phase : Arrays.asList( creates, foreignKeys ) ) {
+				for ( List<String> group : phase ) {
+					for ( String statement : group ) {
+						digest.update( statement.getBytes( StandardCharsets.UTF_8 ) );
+					}
+				}
+			}
+			StringBuilder hex = new StringBuilder();
+			for ( byte b : digest.digest() ) {
+				hex.append( String.format( "%02x", b ) );
+			}
+			return hex.toString();
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException( e );
+		}
+	}
+
+	public String getFingerprint() {
+		return fingerprint;
+	}
+
+	/**
+	 * Drops and creates the schema, then stores its fingerprint.
+	 */
+	public void create() {
+		ExecutorService executor = Executors.newFixedThreadPool( threads );
+		try {
+			// The tables might not be there: errors are expected, as with hbm2ddl.auto
+			runAll( executor, singletons( dropForeignKeys ) );
+			runAll( executor, singletons( drops ) );
+			run( Arrays.asList( dialect.getDropTableString( FINGERPRINT_TABLE ) ) );
+
+			failIfAny( runAll( executor, creates ), "create the tables" );
+
+			// Concurrent foreign keys on the same tables can deadlock: the losers run again, one at a time
+			Map<List<String>, SQLException> failures = new LinkedHashMap<>();
+			for ( List<String> group : runAll( executor, foreignKeys ).keySet() ) {
+				SQLException failure = run( group );
+				if ( failure != null ) {
+					failures.put( group, failure );
+				}
+			}
+			failIfAny( failures, "add the foreign keys" );
+
+			failIfAny( storeFingerprint(), "store the fingerprint" );
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Creates the schema unless the fingerprint in the database is the one of the mapping.
+	 *
+	 * @return {@code true} if the schema has been created
+	 */
+	public boolean createIfChanged() {
+		if ( fingerprint.equals( storedFingerprint() ) ) {
+			return false;
+		}
+		create();
+		return true;
+	}
+
+	/**
+	 * Fails if the fingerprint in the database is not the one of the mapping. A single query.
+	 */
+	public void validate() {
+		String stored = storedFingerprint();
+		if ( !fingerprint.equals( stored ) ) {
+			throw new SchemaManagementException( "Schema fingerprint mismatch: expected " + fingerprint
+					+ " but the database has " + ( stored == null ? "none" : stored ) );
+		}
+	}
+
+	private String storedFingerprint() {
+		try {
+			Connection connection = connections.getConnection();
+			try (Statement statement = connection.createStatement();
+				 ResultSet resultSet = statement.executeQuery( "select fingerprint from " + FINGERPRINT_TABLE )) {
+				return resultSet.next() ? resultSet.getString( 1 ) : null;
+			}
+			finally {
+				connections.closeConnection( connection );
+			}
+		}
+		catch (SQLException e) {
+			// No table, no schema
+			return null;
+		}
+	}
+
+	private Map<List<String>, SQLException> storeFingerprint() {
+		List<String> statements = Arrays.asList(
+				"create table " + FINGERPRINT_TABLE + " (fingerprint varchar(64) not null)",
+				"insert into " + FINGERPRINT_TABLE + " values ('" + fingerprint + "')"
+		);
+		SQLException failure = run( statements );
+		return failure == null ? Collections.emptyMap() : Collections.singletonMap( statements, failure );
+	}
+
+	/**
+	 * Runs the groups in parallel.
+	 *
+	 * @return the groups that failed, with the error
+	 */
+	private Map<List<String>, SQLException> runAll(ExecutorService executor, List<List<String>> groups) {
+		List<Future<SQLException>> futures = new ArrayList<>( groups.size() );
+		for ( List<String> group : groups ) {
+			futures.add( executor.submit( () -> run( group ) ) );
+		}
+		Map<List<String>, SQLException> failures = new LinkedHashMap<>();
+		for ( int i = 0; i < futures.size(); i++ ) {
+			try {
+				SQLException failure = futures.get( i ).get();
+				if ( failure != null ) {
+					failures.put( groups.get( i ), failure );
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SchemaManagementException( "Interrupted while executing the DDL", e );
+			}
+			catch (ExecutionException e) {
+				throw new SchemaManagementException( "Unable to execute the DDL", e.getCause() );
+			}
+		}
+		return failures;
+	}
+
+	/**
+	 * Runs the statements in order on one connection, and stops at the first error.
+	 *
+	 * @return the error, if any
+	 */
+	private SQLException run(List<String> statements) {
+		try {
+			Connection connection = connections.getConnection();
+			try (Statement statement = connection.createStatement()) {
+				if ( !connection.getAutoCommit() ) {
+					connection.setAutoCommit( true );
+				}
+				for ( String sql : statements ) {
+					statement.execute( sql );
+				}
+				return null;
+			}
+			finally {
+				connections.closeConnection( connection );
+			}
+		}
+		catch (SQLException e) {
+			return e;
+		}
+	}
+
+	private static void failIfAny(Map<List<String>, SQLException> failures, String what) {
+		if ( !failures.isEmpty() ) {
+			SchemaManagementException exception = new SchemaManagementException(
+					"Unable to " + what + ": " + failures.keySet(), failures.values().iterator().next() );
+			failures.values().stream().skip( 1 ).forEach( exception::addSuppressed );
+			throw exception;
+		}
+	}
+
+	private static List<List<String>> singletons(List<String> statements) {
+		List<List<String>> groups = new ArrayList<>( statements.size() );
+		for ( String statement : statements ) {
+			groups.add( Collections.singletonList( statement ) );
+		}
+		return groups;
+	}
+}
@@ -2,17 +2,59 @@
 //DEPS org.hibernate.reactive:hibernate-reactive-core:1.0.0.CR10
 //DEPS io.vertx:vertx-pg-client:4.1.5
 //DEPS io.vertx:vertx-web:4.1.5
+//DEPS io.netty:netty-transport-native-epoll:4.1.68.Final:linux-x86_64
 //DEPS com.fasterxml.jackson.core:jackson-databind:2.12.3
 //DEPS ch.qos.logback:logback-classic:1.2.3
 //DEPS org.testcontainers:postgresql:1.16.0
+//SOURCES EventLoopProfiler.java
+//SOURCES TuningProperties.java
+//FILES stage-verticle-logback.xml
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
 import java.math.BigDecimal;
+import java.math.MathContext;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+import java.util.zip.GZIPOutputStream;
 import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.SequenceGenerator;
+import javax.persistence.Version;
 
 import org.hibernate.SessionFactory;
 import org.hibernate.boot.registry.StandardServiceRegistry;
@@ -28,21 +70,97 @@ import org.slf4j.LoggerFactory;
 
 import io.vertx.core.AbstractVerticle;
 import io.vertx.core.CompositeFuture;
+import io.vertx.core.Context;
 import io.vertx.core.DeploymentOptions;
 import io.vertx.core.Future;
+import io.vertx.core.Handler;
 import io.vertx.core.Promise;
 import io.vertx.core.Vertx;
+import io.vertx.core.VertxOptions;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.eventbus.Message;
+import io.vertx.core.eventbus.MessageConsumer;
+import io.vertx.core.file.AsyncFile;
+import io.vertx.core.file.OpenOptions;
+import io.vertx.core.http.Http2Settings;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpHeaders;
 import io.vertx.core.http.HttpServer;
+import io.vertx.core.http.HttpServerOptions;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.http.HttpVersion;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
+import io.vertx.core.parsetools.RecordParser;
 import io.vertx.ext.web.Router;
 import io.vertx.ext.web.RoutingContext;
 import io.vertx.ext.web.handler.BodyHandler;
+import io.vertx.ext.web.handler.HttpException;
+import io.vertx.pgclient.PgConnectOptions;
+import io.vertx.pgclient.PgPool;
+import io.vertx.pgclient.pubsub.PgSubscriber;
+import io.vertx.sqlclient.PoolOptions;
+import io.vertx.sqlclient.Row;
+import io.vertx.sqlclient.RowSet;
+import io.vertx.sqlclient.RowStream;
+import io.vertx.sqlclient.SqlConnection;
+import io.vertx.sqlclient.Tuple;
 import org.testcontainers.containers.PostgreSQLContainer;
 
 public class StageVerticle extends AbstractVerticle {
 
 	private static final Logger logger = LoggerFactory.getLogger( StageVerticle.class );
 
+	/**
+	 * The encoded response of {@code GET /products}, shared by all the instances of the verticle.
+	 */
+	static final ResponseCache productListCache = new ResponseCache();
+
+	/**
+	 * The event bus address of the product changes, published as {@code "<operation> <product JSON>"}.
+	 * The {@code RELOAD} operation means that many products have changed.
+	 */
+	static final String CHANGES_ADDRESS = "products.changes";
+
+	private static final String CHANGES_CHANNEL = "product_changes";
+
+	/**
+	 * Notifies every write to the product table, the payload has the same format of the event bus messages.
+	 */
+	private static final String CHANGES_TRIGGER = "CREATE OR REPLACE FUNCTION notify_product_change() RETURNS trigger AS $$\n"
+			+ "BEGIN\n"
+			+ "  IF TG_OP = 'DELETE' THEN\n"
+			+ "    PERFORM pg_notify('" + CHANGES_CHANNEL + "', TG_OP || ' ' || row_to_json(OLD)::text);\n"
+			+ "  ELSE\n"
+			+ "    PERFORM pg_notify('" + CHANGES_CHANNEL + "', TG_OP || ' ' || row_to_json(NEW)::text);\n"
+			+ "  END IF;\n"
+			+ "  RETURN NULL;\n"
+			+ "END;\n"
+			+ "$$ LANGUAGE plpgsql;\n"
+			+ "DROP TRIGGER IF EXISTS product_changes ON Product;\n"
+			+ "CREATE TRIGGER product_changes AFTER INSERT OR UPDATE OR DELETE ON Product\n"
+			+ "  FOR EACH ROW EXECUTE PROCEDURE notify_product_change();";
+
+	// Only one instance listens to the database
+	private static final AtomicBoolean changesListening = new AtomicBoolean();
+
+	/**
+	 * The local address where a stopping instance hands over what only one instance runs,
+	 * the body is the name of the task ({@code changes} or {@code outbox}). The first instance still running takes it.
+	 */
+	static final String RELEASED_ADDRESS = "products.released";
+
+	/**
+	 * The event bus address where {@link EventBusSink} publishes the outbox events.
+	 */
+	static final String OUTBOX_ADDRESS = "products.events";
+
+	// Only one instance relays the outbox
+	private static final AtomicBoolean outboxRelaying = new AtomicBoolean();
+
 	static PostgreSQLContainer<?> postgreSQLContainer = new PostgreSQLContainer<>( "postgres:11-alpine" )
 			.withDatabaseName( "postgres" )
 			.withUsername( "postgres" )
@@ -50,6 +168,35 @@ public class StageVerticle extends AbstractVerticle {
 
 	private Stage.SessionFactory emf;
 
+	private ProductLoader productLoader;
+
+	private RequestSessions requestSessions;
+
+	private AdmissionControl admissionControl;
+
+	private ProductCatalog catalog;
+
+	private PriceAnalytics analytics;
+
+	// The changes to apply to the copies being reloaded, one list for each reload
+	private final List<List<BiConsumer<ProductCatalog, PriceAnalytics>>> reloadChanges = new ArrayList<>();
+
+	private ChangeStream changeStream;
+
+	private PgSubscriber changesSubscriber;
+
+	private MessageConsumer<String> releasedConsumer;
+
+	// Used by the export, Hibernate Reactive doesn't have cursors
+	private PgPool exportPool;
+
+	// Used by the bulk updates, Hibernate Reactive doesn't return the row count of each batched statement
+	private PgPool bulkPool;
+
+	private OutboxRelay outboxRelay;
+
+	private PgPool outboxPool;
+
 	private void startHibernate(Promise<Object> promise) {
 		String jdbcUrl = config().getString( "jdbcUrl", "postgres://localhost:5432/postgres" );
 		logger.info( "Connecting to: " + jdbcUrl );
@@ -62,28 +209,37 @@ public class StageVerticle extends AbstractVerticle {
 		}
 	}
 
+	// The pool size in the verticle configuration wins over the one in hreact-tuning.properties
+	private int poolSize() {
+		return config().getInteger( "poolSize", TuningProperties.intValue( Settings.POOL_SIZE, 10 ) );
+	}
+
 	public SessionFactory createFactory(String jdbcUrl) {
 		Configuration configuration = new Configuration();
 
 		// JDBC url
-		configuration.setProperty( Settings.URL, postgreSQLContainer.getJdbcUrl() );
+		configuration.setProperty( Settings.URL, jdbcUrl );
 
 		// Credentials
 		configuration.setProperty( Settings.USER, postgreSQLContainer.getUsername() );
 		configuration.setProperty( Settings.PASS, postgreSQLContainer.getPassword() );
 
-		configuration.setProperty( Settings.POOL_SIZE, "10");
+		// Batch size and batch fetch size recommended by Autotuner.java, if any
+		TuningProperties.apply( configuration );
+		configuration.setProperty( Settings.POOL_SIZE, String.valueOf( poolSize() ) );
 
 		// Schema generation. Supported values are create, drop, create-drop, drop-create, none
 		configuration.setProperty( Settings.HBM2DDL_AUTO, "create" );
 
 		// Register new entity classes here
 		configuration.addAnnotatedClass( Product.class );
+		configuration.addAnnotatedClass( OutboxEvent.class );
 
 		// (Optional) Log the SQL queries
-		configuration.setProperty( Settings.SHOW_SQL, "true" );
-		configuration.setProperty( Settings.HIGHLIGHT_SQL, "true" );
-		configuration.setProperty( Settings.FORMAT_SQL, "true" );
+		String showSql = String.valueOf( config().getBoolean( "showSql", true ) );
+		configuration.setProperty( Settings.SHOW_SQL, showSql );
+		configuration.setProperty( Settings.HIGHLIGHT_SQL, showSql );
+		configuration.setProperty( Settings.FORMAT_SQL, showSql );
 
 		StandardServiceRegistryBuilder builder = new ReactiveServiceRegistryBuilder()
 				.addService( VertxInstance.class, (VertxInstance) () -> vertx )
@@ -95,23 +251,99 @@ public class StageVerticle extends AbstractVerticle {
 
 	@Override
 	public void start(Promise<Void> promise) {
+		if ( "offheap".equals( config().getString( "catalog", "entities" ) ) ) {
+			catalog = new ProductCatalog();
+		}
+		if ( config().getBoolean( "analytics", false ) ) {
+			analytics = new PriceAnalytics();
+		}
+		// The schema is recreated on deployment
+		productListCache.invalidate();
+
 		final Future<Object> startHibernate = vertx.executeBlocking( this::startHibernate )
 				.onComplete( objectAsyncResult -> {
 					logger.info( "✅ Hibernate Reactive is ready" );
-				} );
+				} )
+				.compose( this::loadCatalog )
+				.compose( this::listenForChanges )
+				.compose( this::startOutboxRelay );
+
+		productLoader = new ProductLoader(
+				context,
+				config().getBoolean( "coalesce", true ),
+				config().getLong( "batchWindow", 0L ),
+				config().getInteger( "maxBatchSize", 100 )
+		);
+
+		requestSessions = new RequestSessions( context );
+
+		admissionControl = new AdmissionControl(
+				config().getString( "admission", "fixed" ),
+				config().getInteger( "concurrencyLimit", 2 * poolSize() ),
+				config().getInteger( "maxQueue", 256 ),
+				config().getLong( "maxQueueTime", 1000L ),
+				config().getLong( "targetLatency", 50L )
+		);
+
+		changeStream = new ChangeStream(
+				config().getInteger( "changesBuffer", 64 ),
+				config().getLong( "changesHeartbeat", 15_000L )
+		);
+		changeStream.start( vertx );
+		admissionControl.start( vertx );
+		vertx.eventBus().<String>localConsumer( CHANGES_ADDRESS, this::productChangeNotified );
+		releasedConsumer = vertx.eventBus().localConsumer( RELEASED_ADDRESS, this::taskReleased );
+
+		exportPool = PgPool.pool(
+				vertx,
+				pgConnectOptions( config().getString( "jdbcUrl", "postgres://localhost:5432/postgres" ) ),
+				new PoolOptions().setMaxSize( config().getInteger( "exportPoolSize", 2 ) )
+		);
+
+		bulkPool = PgPool.pool(
+				vertx,
+				pgConnectOptions( config().getString( "jdbcUrl", "postgres://localhost:5432/postgres" ) ),
+				new PoolOptions().setMaxSize( config().getInteger( "bulkPoolSize", 2 ) )
+		);
 
 		BodyHandler bodyHandler = BodyHandler.create();
 
 		Router router = Router.router( vertx );
+		if ( !config().getBoolean( "http2", true ) ) {
+			router.route().handler( this::http2Disabled );
+		}
 		router.post().handler( bodyHandler );
-		router.get( "/products" ).respond( this::listProducts );
+		// Long-lived, it doesn't use the database
+		router.get( "/products/changes" ).handler( changeStream::subscribe );
+		router.get( "/products/export" ).handler( this::exportProducts );
+		if ( analytics != null ) {
+			router.get( "/products/analytics" ).respond( this::priceAnalytics );
+		}
+		// Served from memory when possible
+		router.get( "/products" ).handler( this::productsFromMemory );
+		if ( catalog != null ) {
+			router.get( "/products/:id" ).handler( this::getProductFromCatalog );
+		}
+		// Routes using the database
+		router.route( "/products*" ).handler( admissionControl );
+		if ( config().getBoolean( "sessionPerRequest", true ) ) {
+			router.route( "/products*" ).handler( requestSessions );
+		}
+		router.get( "/products" ).handler( this::listProducts );
+		// Two lookups, one session
+		router.get( "/products/:id/overview" )
+				.handler( this::loadProduct )
+				.respond( this::productOverview );
+		// Without a catalog, or for the products it couldn't store
 		router.get( "/products/:id" ).respond( this::getProduct );
+		router.get( "/stats" ).respond( this::stats );
 		router.post( "/products" ).respond( this::createProduct );
+		router.post( "/products/prices" ).respond( this::updatePrices );
 
-		final Future<HttpServer> startHttpServer = vertx.createHttpServer()
+		final Future<HttpServer> startHttpServer = vertx.createHttpServer( httpServerOptions() )
 				.requestHandler( router )
-				.listen( 8080 )
-				.onSuccess( httpServer -> logger.info( "✅ HTTP server listening on port 8080" ) )
+				.listen()
+				.onSuccess( httpServer -> logger.info( "✅ HTTP server listening on port {}", httpServer.actualPort() ) )
 				.onFailure( err -> logger.error( "🔥 HTTP server not started", err ) );
 
 		CompositeFuture.all( startHibernate, startHttpServer )
@@ -119,8 +351,63 @@ public class StageVerticle extends AbstractVerticle {
 				.onFailure( promise::fail );
 	}
 
+	/**
+	 * The {@link HttpServerOptions} for the REST API.
+	 * <p>
+	 * The server accepts HTTP/2 over cleartext (h2c), both with prior knowledge
+	 * and via the HTTP/1.1 upgrade, and it handles pipelined HTTP/1.1 requests.
+	 * These options tune them, {@code http2} set to false turns HTTP/2 off (see {@link #http2Disabled}).
+	 * Compression applies only to clients sending {@code Accept-Encoding}.
+	 * TCP fast open and quick ack need the native transport.
+	 */
+	private HttpServerOptions httpServerOptions() {
+		Http2Settings http2Settings = new Http2Settings()
+				.setMaxConcurrentStreams( config().getLong( "http2MaxConcurrentStreams", Http2Settings.DEFAULT_MAX_CONCURRENT_STREAMS ) );
+
+		return new HttpServerOptions()
+				.setPort( config().getInteger( "httpPort", 8080 ) )
+				.setCompressionSupported( config().getBoolean( "compression", false ) )
+				.setCompressionLevel( config().getInteger( "compressionLevel", 6 ) )
+				.setTcpNoDelay( config().getBoolean( "tcpNoDelay", true ) )
+				.setTcpFastOpen( config().getBoolean( "tcpFastOpen", false ) )
+				.setTcpQuickAck( config().getBoolean( "tcpQuickAck", false ) )
+				.setInitialSettings( http2Settings )
+				.setHttp2ConnectionWindowSize( config().getInteger( "http2ConnectionWindowSize", HttpServerOptions.DEFAULT_HTTP2_CONNECTION_WINDOW_SIZE ) );
+	}
+
+	/**
+	 * Vert.x 4.1 can't switch off h2c in the server options: the HTTP/2 requests get a
+	 * {@code 505 HTTP Version Not Supported} and the connection a GOAWAY, so the clients go back to HTTP/1.1.
+	 */
+	private void http2Disabled(RoutingContext ctx) {
+		if ( ctx.request().version() == HttpVersion.HTTP_2 ) {
+			ctx.response().setStatusCode( 505 ).end();
+			ctx.request().connection().goAway( 0 );
+		}
+		else {
+			ctx.next();
+		}
+	}
+
 	@Override
 	public void stop(Promise<Void> stopping) throws Exception {
+		// This instance can't take over what it releases
+		releasedConsumer.unregister();
+		changeStream.stop( vertx );
+		admissionControl.stop( vertx );
+		exportPool.close();
+		bulkPool.close();
+		if ( outboxRelay != null ) {
+			outboxRelay.stop();
+			outboxPool.close();
+			outboxRelaying.set( false );
+			vertx.eventBus().publish( RELEASED_ADDRESS, "outbox" );
+		}
+		if ( changesSubscriber != null ) {
+			changesSubscriber.close();
+			changesListening.set( false );
+			vertx.eventBus().publish( RELEASED_ADDRESS, "changes" );
+		}
 		vertx.executeBlocking( promise -> {
 			try {
 				if ( emf != null ) {
@@ -134,89 +421,2772 @@ public class StageVerticle extends AbstractVerticle {
 		} ).onComplete( asyncResult -> stopping.complete() );
 	}
 
-	private Future<List<Product>> listProducts(RoutingContext ctx) {
-		return Future.fromCompletionStage( emf.withSession( session -> session
-				.createQuery( "from Product", Product.class )
-				.getResultList() ) );
+	/**
+	 * Sends the list of products without going through the admission control, if it doesn't need the database:
+	 * a cached response, or the off-heap catalog.
+	 */
+	private void productsFromMemory(RoutingContext ctx) {
+		ResponseCache.Entry cached = config().getBoolean( "responseCache", true ) ? productListCache.get() : null;
+		if ( cached != null ) {
+			productListCache.send( ctx, cached );
+		}
+		else if ( isCatalogComplete() ) {
+			listProducts( ctx );
+		}
+		else {
+			ctx.next();
+		}
+	}
+
+	/**
+	 * There is a catalog, with all the products.
+	 */
+	private boolean isCatalogComplete() {
+		return catalog != null && !catalog.hasRejected();
+	}
+
+	private void listProducts(RoutingContext ctx) {
+		if ( !config().getBoolean( "responseCache", true ) ) {
+			encodeProducts( ctx )
+					.onSuccess( json -> ctx.response()
+							.putHeader( HttpHeaders.CONTENT_TYPE, "application/json" )
+							.end( json ) )
+					.onFailure( ctx::fail );
+			return;
+		}
+
+		ResponseCache.Entry cached = productListCache.get();
+		if ( cached != null ) {
+			productListCache.send( ctx, cached );
+			return;
+		}
+		// Read the version first, a write while encoding leaves the new entry already stale
+		long version = productListCache.version();
+		boolean compress = config().getBoolean( "compression", false );
+		encodeProducts( ctx )
+				.map( json -> productListCache.put( version, json, compress ) )
+				.onSuccess( entry -> productListCache.send( ctx, entry ) )
+				.onFailure( ctx::fail );
+	}
+
+	private Future<Buffer> encodeProducts(RoutingContext ctx) {
+		if ( isCatalogComplete() ) {
+			return Future.succeededFuture( catalog.toJson() );
+		}
+		return requestSessions.withSession( ctx, this::findAllProducts )
+				.map( StageVerticle::toJson )
+				.map( JsonArray::toBuffer );
+	}
+
+	// Product and ProductView encode themselves, Jackson doesn't have to introspect them
+	private static JsonArray toJson(List<?> products) {
+		JsonArray json = new JsonArray( new ArrayList<>( products.size() ) );
+		for ( Object product : products ) {
+			json.add( product instanceof Product
+							  ? ( (Product) product ).toJson()
+							  : ( (ProductView) product ).toJson() );
+		}
+		return json;
+	}
+
+	/**
+	 * All the products, according to {@code listQuery}.
+	 * <p>
+	 * {@code projection} (the default) creates a {@link ProductView} from each row: no entities,
+	 * nothing in the persistence context.
+	 * {@code readonly} loads entities without the snapshots for dirty checking.
+	 * {@code entity} loads managed entities.
+	 * The JSON is the same in all cases.
+	 */
+	private CompletionStage<? extends List<?>> findAllProducts(Stage.Session session) {
+		switch ( config().getString( "listQuery", "projection" ) ) {
+			case "entity":
+				return session.createQuery( "from Product", Product.class ).getResultList();
+			case "readonly":
+				return session.setDefaultReadOnly( true )
+						.createQuery( "from Product", Product.class )
+						.getResultList();
+			default:
+				return session.createQuery( ProductView.SELECT, ProductView.class ).getResultList();
+		}
+	}
+
+
+	private Future<JsonObject> getProduct(RoutingContext ctx) {
+		long id = Long.parseLong( ctx.pathParam( "id" ) );
+		return productLoader.load( id )
+				.map( product -> product == null ? new Product() : product )
+				.map( Product::toJson );
+	}
+
+	private static final String OVERVIEW_PRODUCT = "overview.product";
+
+	/**
+	 * The first handler of {@code GET /products/:id/overview}: the product, for the next handler.
+	 */
+	private void loadProduct(RoutingContext ctx) {
+		long id = Long.parseLong( ctx.pathParam( "id" ) );
+		requestSessions.withSession( ctx, session -> session.find( Product.class, id ) )
+				.onSuccess( product -> {
+					if ( product == null ) {
+						ctx.fail( 404 );
+					}
+					else {
+						ctx.put( OVERVIEW_PRODUCT, product );
+						ctx.next();
+					}
+				} )
+				.onFailure( ctx::fail );
 	}
 
+	/**
+	 * The product and how many products are cheaper, with the session of {@link #loadProduct(RoutingContext)}.
+	 */
+	private Future<JsonObject> productOverview(RoutingContext ctx) {
+		Product product = ctx.get( OVERVIEW_PRODUCT );
+		return requestSessions.withSession( ctx, session -> session
+				.createQuery( "select count(*) from Product where price < :price", Long.class )
+				.setParameter( "price", product.getPrice() )
+				.getSingleResult() )
+				.map( cheaper -> new JsonObject()
+						.put( "product", product.toJson() )
+						.put( "cheaperProducts", cheaper ) );
+	}
 
-	private Future<Product> getProduct(RoutingContext ctx) {
+	private void getProductFromCatalog(RoutingContext ctx) {
 		long id = Long.parseLong( ctx.pathParam( "id" ) );
-		return Future.fromCompletionStage( emf.withSession( session -> session
-				.find( Product.class, id )
-		).thenApply( product -> product == null ? new Product() : product ) );
+		if ( catalog.isRejected( id ) ) {
+			ctx.next();
+			return;
+		}
+		ctx.response()
+				.putHeader( HttpHeaders.CONTENT_TYPE, "application/json" )
+				.end( catalog.toJson( id ) );
+	}
+
+	private Future<JsonObject> stats(RoutingContext ctx) {
+		JsonObject stats = new JsonObject()
+				.put( "productLoader", productLoader.stats() )
+				.put( "admissionControl", admissionControl.stats() )
+				.put( "requestSessions", requestSessions.stats() )
+				.put( "productListCache", productListCache.stats() )
+				.put( "changeStream", changeStream.stats() );
+		if ( catalog != null ) {
+			stats.put( "catalog", catalog.stats() );
+		}
+		if ( analytics != null ) {
+			stats.put( "analytics", analytics.stats() );
+		}
+		if ( outboxRelay != null ) {
+			stats.put( "outbox", outboxRelay.stats() );
+		}
+		stats.put( "jvm", new JsonObject().put( "allocatedBytes", allocatedBytes() ) );
+		return Future.succeededFuture( stats );
 	}
 
-	private Future<Product> createProduct(RoutingContext ctx) {
-		final Product product = ctx.getBodyAsJson().mapTo( Product.class );
-		return Future.fromCompletionStage( emf.withSession( session -> session
+	private Future<JsonObject> createProduct(RoutingContext ctx) {
+		final Product product = Product.fromJson( ctx.getBodyAsJson() );
+		return requestSessions.withTransaction( ctx, session -> session
 				.persist( product )
 				.thenCompose( unused -> session.flush() )
+				// Same transaction: the event exists if and only if the product does
+				.thenCompose( unused -> session.persist( OutboxEvent.productCreated( product ) ) )
 				.thenApply( unused -> product ) )
-		);
+				.onSuccess( this::productCreated )
+				.map( Product::toJson );
 	}
 
-	public static void main(String... args) {
-		long startTime = System.currentTimeMillis();
+	/**
+	 * Aggregates of the prices of the products with a name starting with {@code prefix} (all the products by default),
+	 * computed by {@link PriceAnalytics} on the fork-join pool, without the database. Enabled with {@code analytics}
+	 * set to true, for example:
+	 * {@code curl 'localhost:8080/products/analytics?prefix=Product%201&percentiles=50,90,99'}
+	 */
+	private Future<JsonObject> priceAnalytics(RoutingContext ctx) {
+		String prefix = ctx.request().getParam( "prefix" ) == null ? "" : ctx.request().getParam( "prefix" );
+		String percentilesParam = ctx.request().getParam( "percentiles" ) == null ? "50,90,99" : ctx.request().getParam( "percentiles" );
+		double[] percentiles;
+		try {
+			percentiles = Arrays.stream( percentilesParam.split( "," ) )
+					.filter( value -> !value.trim().isEmpty() )
+					.mapToDouble( Double::parseDouble )
+					.toArray();
+		}
+		catch (NumberFormatException e) {
+			return Future.failedFuture( new HttpException( 400, "Invalid percentiles: " + percentilesParam, e ) );
+		}
+		for ( double percentile : percentiles ) {
+			// NaN too
+			if ( !( percentile >= 0 && percentile <= 100 ) ) {
+				return Future.failedFuture( new HttpException( 400, "Percentiles must be between 0 and 100: " + percentilesParam ) );
+			}
+		}
+		PriceAnalytics current = analytics;
+		return Future.fromCompletionStage( CompletableFuture.supplyAsync( () -> current.aggregate( prefix, percentiles ) ), context );
+	}
 
-		logger.info( "🚀 Starting a PostgreSQL container" );
-		postgreSQLContainer.start();
+	/**
+	 * Adds a delta to the price of many products, for example:
+	 * {@code curl -d '[{"id":1,"delta":"0.50"},{"id":2,"delta":"-1"}]' localhost:8080/products/prices}
+	 * <p>
+	 * The products updated concurrently by someone else are retried, up to {@code bulkMaxRetries} times,
+	 * see {@link BulkPriceUpdate}. A change without an id or a delta fails the whole request with a 400.
+	 */
+	private Future<JsonObject> updatePrices(RoutingContext ctx) {
+		Map<Long, BigDecimal> deltas = new LinkedHashMap<>();
+		try {
+			for ( Object change : ctx.getBodyAsJsonArray() ) {
+				JsonObject json = (JsonObject) change;
+				Long id = json.getLong( "id" );
+				Object delta = json.getValue( "delta" );
+				if ( id == null || delta == null ) {
+					return Future.failedFuture( new HttpException( 400, "A change needs an id and a delta: " + json.encode() ) );
+				}
+				deltas.merge( id, new BigDecimal( delta.toString() ), BigDecimal::add );
+			}
+		}
+		catch (RuntimeException e) {
+			// Not an array of objects, or an id or a delta that isn't a number
+			return Future.failedFuture( new HttpException( 400, "Invalid price changes", e ) );
+		}
+		BulkPriceUpdate update = new BulkPriceUpdate( bulkPool, config().getInteger( "bulkMaxRetries", 3 ) );
+		return update.apply( deltas )
+				.onSuccess( result -> productsUpdated( update.updated() ) );
+	}
 
-		long tcTime = System.currentTimeMillis();
-		Vertx vertx = Vertx.vertx();
+	/**
+	 * The bytes allocated so far by the live threads of the JVM.
+	 */
+	private static long allocatedBytes() {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long allocated = 0;
+		for ( long bytes : threads.getThreadAllocatedBytes( threads.getAllThreadIds() ) ) {
+			// -1 for the threads that have died in the meantime
+			allocated += Math.max( bytes, 0 );
+		}
+		return allocated;
+	}
 
-		DeploymentOptions options = new DeploymentOptions()
-				.setConfig( new JsonObject().put( "jdbcUrl", postgreSQLContainer.getJdbcUrl() ) );
+	/**
+	 * Keeps the in-memory copies of the products up to date, on the event loop.
+	 */
+	private void productCreated(Product product) {
+		productListCache.invalidate();
+		applyChange( copies( Collections.singletonList( product ) ) );
+	}
 
-		vertx.deployVerticle( StageVerticle::new, options )
-				.onSuccess( s -> {
-					long vertxTime = System.currentTimeMillis();
-					logger.info( "✅ Deployment success" );
-					logger.info( "💡 PostgreSQL container started in {}ms", ( tcTime - startTime ) );
-					logger.info( "💡 Vert.x app started in {}ms", ( vertxTime - tcTime ) );
+	private void productsUpdated(List<Product> products) {
+		productListCache.invalidate();
+		applyChange( copies( products ) );
+	}
+
+	/**
+	 * Applies the change to the catalog and the price analytics, and to the new copies being reloaded.
+	 */
+	private void applyChange(BiConsumer<ProductCatalog, PriceAnalytics> change) {
+		change.accept( catalog, analytics );
+		reloadChanges.forEach( changes -> changes.add( change ) );
+	}
+
+	/**
+	 * Streams all the products as CSV or NDJSON, without entities or a persistence context.
+	 * <p>
+	 * The rows are read through a cursor, {@code exportFetchSize} at a time, and written to the response
+	 * in chunks of about 32KB. The cursor is paused while the response can't take more data.
+	 * It has its own connection pool ({@code exportPoolSize}) and it isn't subject to the admission control.
+	 * <p>
+	 * For example: {@code curl 'localhost:8080/products/export?format=csv'}
+	 */
+	private void exportProducts(RoutingContext ctx) {
+		String format = ctx.request().getParam( "format" ) == null ? "ndjson" : ctx.request().getParam( "format" );
+		if ( !"csv".equals( format ) && !"ndjson".equals( format ) ) {
+			ctx.response().setStatusCode( 400 ).end( "Unsupported format: " + format );
+			return;
+		}
+		int fetchSize = config().getInteger( "exportFetchSize", 10_000 );
+		exportPool.getConnection()
+				.onFailure( ctx::fail )
+				.onSuccess( connection -> connection.begin()
+						.compose( tx -> connection.prepare( "select id, name, price from Product order by id" ) )
+						.onFailure( err -> {
+							connection.close();
+							ctx.fail( err );
+						} )
+						.onSuccess( statement -> new ProductExport( ctx.response(), connection, "csv".equals( format ) )
+								.start( statement.createStream( fetchSize ) ) ) );
+	}
+
+	/**
+	 * Installs the trigger notifying the product changes, and publishes the notifications
+	 * on the event bus.
+	 * <p>
+	 * It also invalidates the cached list of products, so it stays up to date
+	 * with the writes of other applications.
+	 */
+	private Future<Object> listenForChanges(Object ignore) {
+		if ( !config().getBoolean( "changes", true ) || !changesListening.compareAndSet( false, true ) ) {
+			return Future.succeededFuture();
+		}
+		String jdbcUrl = config().getString( "jdbcUrl", "postgres://localhost:5432/postgres" );
+		changesSubscriber = PgSubscriber.subscriber( vertx, pgConnectOptions( jdbcUrl ) )
+				.reconnectPolicy( retries -> retries < 10 ? 1000L : -1L );
+		PgSubscriber subscriber = changesSubscriber;
+		return subscriber.connect()
+				.compose( v -> subscriber.actualConnection().query( CHANGES_TRIGGER ).execute() )
+				.onFailure( err -> {
+					// Another instance can try
+					subscriber.close();
+					changesSubscriber = null;
+					changesListening.set( false );
 				} )
-				.onFailure( err -> logger.error( "🔥 Deployment failure", err ) );
+				.map( rows -> {
+					subscriber.channel( CHANGES_CHANNEL )
+							// Notifications are lost while disconnected
+							.subscribeHandler( v -> productListCache.invalidate() )
+							.handler( payload -> {
+								productListCache.invalidate();
+								vertx.eventBus().publish( CHANGES_ADDRESS, payload );
+							} );
+					logger.info( "✅ Listening to the product changes" );
+					return null;
+				} );
 	}
 
-	@Entity(name = "Product")
-	public static class Product {
+	/**
+	 * Takes over a task released by an instance that stopped, if no other instance took it first.
+	 */
+	private void taskReleased(Message<String> message) {
+		if ( "changes".equals( message.body() ) ) {
+			listenForChanges( null )
+					.onFailure( err -> logger.error( "❌ Cannot take over the product changes", err ) );
+		}
+		else if ( "outbox".equals( message.body() ) ) {
+			startOutboxRelay( null );
+		}
+	}
 
-		@Id
-		@GeneratedValue
-		private Long id;
+	/**
+	 * Starts relaying the outbox events to the sink in {@code outboxSink}:
+	 * {@code eventbus} (the default, see {@link EventBusSink}), {@code log}
+	 * or the name of a class implementing {@link OutboxSink}.
+	 */
+	private Future<Object> startOutboxRelay(Object ignore) {
+		if ( !outboxRelaying.compareAndSet( false, true ) ) {
+			return Future.succeededFuture();
+		}
+		outboxPool = PgPool.pool(
+				vertx,
+				pgConnectOptions( config().getString( "jdbcUrl", "postgres://localhost:5432/postgres" ) ),
+				new PoolOptions().setMaxSize( 1 )
+		);
+		outboxRelay = new OutboxRelay(
+				vertx,
+				outboxPool,
+				outboxSink( config().getString( "outboxSink", "eventbus" ) ),
+				config().getInteger( "outboxBatchSize", 1000 ),
+				config().getLong( "outboxPollInterval", 100L )
+		);
+		outboxRelay.start();
+		logger.info( "✅ Relaying the outbox events" );
+		return Future.succeededFuture();
+	}
 
-		@Column(unique = true)
-		private String name;
+	private OutboxSink outboxSink(String name) {
+		switch ( name ) {
+			case "eventbus":
+				return new EventBusSink( vertx );
+			case "log":
+				return events -> {
+					events.forEach( event -> logger.info( "📨 {}", event.encode() ) );
+					return Future.succeededFuture();
+				};
+			default:
+				try {
+					return (OutboxSink) Class.forName( name ).getConstructor().newInstance();
+				}
+				catch (ReflectiveOperationException e) {
+					throw new IllegalArgumentException( "Invalid outbox sink: " + name, e );
+				}
+		}
+	}
 
-		@Column(nullable = false)
-		private BigDecimal price;
+	/**
+	 * The options of the Vert.x PostgreSQL client, for the features Hibernate Reactive doesn't expose.
+	 */
+	static PgConnectOptions pgConnectOptions(String jdbcUrl) {
+		return PgConnectOptions.fromUri( jdbcUrl.replaceFirst( "^jdbc:", "" ) )
+				.setUser( postgreSQLContainer.getUsername() )
+				.setPassword( postgreSQLContainer.getPassword() );
+	}
 
-		public Product() {
+	private void productChangeNotified(Message<String> message) {
+		String payload = message.body();
+		int separator = payload.indexOf( ' ' );
+		String operation = payload.substring( 0, separator ).toLowerCase( Locale.ROOT );
+		String json = payload.substring( separator + 1 );
+		if ( "reload".equals( operation ) ) {
+			reloadCatalog().onSuccess( v -> productListCache.invalidate() );
+		}
+		else if ( catalog != null || analytics != null ) {
+			Product product = Json.decodeValue( json, Product.class );
+			if ( "delete".equals( operation ) ) {
+				applyChange( (catalog, analytics) -> {
+					if ( catalog != null ) {
+						catalog.remove( product.getId() );
+					}
+					if ( analytics != null ) {
+						analytics.remove( product.getId() );
+					}
+				} );
+			}
+			else {
+				applyChange( copies( Collections.singletonList( product ) ) );
+			}
 		}
+		changeStream.publish( Buffer.buffer( "event: " + operation + "\ndata: " + json + "\n\n" ) );
+	}
 
-		public Long getId() {
-			return id;
+	/**
+	 * Fills the catalog and the price analytics with the products already in the database, one page at a time.
+	 */
+	private Future<Object> loadCatalog(Object ignore) {
+		if ( catalog == null && analytics == null ) {
+			return Future.succeededFuture();
 		}
+		long start = System.currentTimeMillis();
+		return loadCatalogPage( page -> copies( page ).accept( catalog, analytics ), Long.MIN_VALUE )
+				.onSuccess( v -> logger.info( "💡 In-memory copies of the products loaded in {}ms", System.currentTimeMillis() - start ) );
+	}
 
-		public void setId(Long id) {
-			this.id = id;
+	/**
+	 * Replaces the catalog and the price analytics with new copies of the table, after bulk changes.
+	 * The changes notified while the pages are read are applied to the new copies too, in order,
+	 * before they replace the current ones: they might be missing from the pages already read.
+	 */
+	private Future<Object> reloadCatalog() {
+		if ( catalog == null && analytics == null ) {
+			return Future.succeededFuture();
 		}
+		ProductCatalog reloadedCatalog = catalog == null ? null : new ProductCatalog();
+		PriceAnalytics reloadedAnalytics = analytics == null ? null : new PriceAnalytics();
+		List<BiConsumer<ProductCatalog, PriceAnalytics>> changes = new ArrayList<>();
+		reloadChanges.add( changes );
+		return loadCatalogPage( page -> copies( page ).accept( reloadedCatalog, reloadedAnalytics ), Long.MIN_VALUE )
+				.onComplete( ar -> reloadChanges.remove( changes ) )
+				.onSuccess( v -> {
+					changes.forEach( change -> change.accept( reloadedCatalog, reloadedAnalytics ) );
+					catalog = reloadedCatalog;
+					analytics = reloadedAnalytics;
+				} );
+	}
 
-		public String getName() {
-			return name;
+	/**
+	 * Puts the products in the catalog and in the price analytics, the ones that are not null.
+	 */
+	private static BiConsumer<ProductCatalog, PriceAnalytics> copies(List<Product> products) {
+		return (catalog, analytics) -> {
+			if ( catalog != null ) {
+				products.forEach( catalog::put );
+			}
+			if ( analytics != null ) {
+				analytics.putAll( products );
+			}
+		};
+	}
+
+	private Future<Object> loadCatalogPage(Consumer<List<Product>> target, long lastId) {
+		int pageSize = 10_000;
+		return Future.fromCompletionStage( emf.withStatelessSession( session -> session
+				.createQuery( "from Product where id > :lastId order by id", Product.class )
+				.setParameter( "lastId", lastId )
+				.setMaxResults( pageSize )
+				.getResultList() ), context )
+				.compose( page -> {
+					target.accept( page );
+					return page.size() < pageSize
+							? Future.succeededFuture()
+							: loadCatalogPage( target, page.get( page.size() - 1 ).getId() );
+				} );
+	}
+
+	/**
+	 * Loads products by id and shares the work between concurrent requests.
+	 * <p>
+	 * A lookup for an id that is already being loaded joins the pending result (single-flight).
+	 * With a {@code batchWindow} greater than 0, the ids requested within the window are loaded
+	 * together with a single {@code where id in (...)} query.
+	 * <p>
+	 * It's only used from the event loop of the verticle, so it doesn't need any synchronization.
+	 */
+	private class ProductLoader {
+
+		private final Context context;
+		private final boolean coalesce;
+		private final long batchWindow;
+		private final int maxBatchSize;
+
+		private final Map<Long, Promise<Product>> inFlight = new HashMap<>();
+		private List<Long> batch = new ArrayList<>();
+		private long batchTimer = -1;
+
+		private long lookups;
+		private long coalesced;
+		private long queries;
+
+		ProductLoader(Context context, boolean coalesce, long batchWindow, int maxBatchSize) {
+			this.context = context;
+			this.coalesce = coalesce;
+			this.batchWindow = batchWindow;
+			this.maxBatchSize = maxBatchSize;
 		}
 
-		public void setName(String name) {
-			this.name = name;
+		Future<Product> load(Long id) {
+			lookups++;
+			if ( !coalesce ) {
+				queries++;
+				return Future.fromCompletionStage( emf.withSession( session -> session.find( Product.class, id ) ), context );
+			}
+
+			Promise<Product> pending = inFlight.get( id );
+			if ( pending != null ) {
+				coalesced++;
+				return pending.future();
+			}
+
+			Promise<Product> promise = Promise.promise();
+			inFlight.put( id, promise );
+			batch.add( id );
+			if ( batchWindow <= 0 || batch.size() >= maxBatchSize ) {
+				flush();
+			}
+			else if ( batchTimer == -1 ) {
+				batchTimer = context.owner().setTimer( batchWindow, timerId -> flush() );
+			}
+			return promise.future();
 		}
 
-		public BigDecimal getPrice() {
-			return price;
+		private void flush() {
+			if ( batchTimer != -1 ) {
+				context.owner().cancelTimer( batchTimer );
+				batchTimer = -1;
+			}
+			List<Long> ids = batch;
+			batch = new ArrayList<>();
+			queries++;
+			Future.fromCompletionStage( find( ids ), context )
+					.onComplete( result -> {
+						Map<Long, Product> found = new HashMap<>();
+						if ( result.succeeded() ) {
+							result.result().forEach( product -> found.put( product.getId(), product ) );
+						}
+						for ( Long id : ids ) {
+							Promise<Product> promise = inFlight.remove( id );
+							if ( result.succeeded() ) {
+								promise.complete( found.get( id ) );
+							}
+							else {
+								promise.fail( result.cause() );
+							}
+						}
+					} );
 		}
 
-		public void setPrice(BigDecimal price) {
-			this.price = price;
+		private CompletionStage<List<Product>> find(List<Long> ids) {
+			if ( ids.size() == 1 ) {
+				return emf.withSession( session -> session.find( Product.class, ids.get( 0 ) ) )
+						.thenApply( product -> product == null ? Collections.emptyList() : Collections.singletonList( product ) );
+			}
+			return emf.withSession( session -> session
+					.createQuery( "from Product where id in :ids", Product.class )
+					.setParameter( "ids", ids )
+					.getResultList() );
+		}
+
+		JsonObject stats() {
+			return new JsonObject()
+					.put( "lookups", lookups )
+					.put( "coalesced", coalesced )
+					.put( "queries", queries )
+					.put( "inFlight", inFlight.size() );
+		}
+	}
+
+	/**
+	 * One {@link Stage.Session} for each request, shared by the handlers of the route.
+	 * <p>
+	 * The session, and the connection it borrows from the pool, are opened by the first handler asking for it
+	 * with {@link #withSession(RoutingContext, Function)}, and closed when the response ends or the connection
+	 * is reset. The requests that don't use the database don't open anything.
+	 * A route with several lookups, like {@code /products/:id/overview}, uses one connection, and the entities
+	 * loaded by a handler are already in the persistence context of the next ones.
+	 * <p>
+	 * The session is in the data of the {@link RoutingContext}, not in the Vert.x context: the event loop
+	 * of the verticle serves many requests at the same time. The handlers of a route run one after the other,
+	 * on that event loop, so they never use the session concurrently.
+	 * Without this handler on the route ({@code sessionPerRequest=false}), each call opens and closes its own session.
+	 */
+	private class RequestSessions implements Handler<RoutingContext> {
+
+		private static final String SCOPED = "requestSessions.scoped";
+		private static final String SESSION = "requestSessions.session";
+
+		private final Context context;
+
+		private long requests;
+		private long opened;
+		private long reused;
+
+		RequestSessions(Context context) {
+			this.context = context;
+		}
+
+		@Override
+		public void handle(RoutingContext ctx) {
+			requests++;
+			ctx.put( SCOPED, Boolean.TRUE );
+			ctx.addEndHandler( ended -> close( ctx ) );
+			ctx.next();
+		}
+
+		<T> Future<T> withSession(RoutingContext ctx, Function<Stage.Session, CompletionStage<T>> work) {
+			if ( ctx.get( SCOPED ) == null ) {
+				opened++;
+				return Future.fromCompletionStage( emf.withSession( work ), context );
+			}
+			Future<Stage.Session> session = ctx.get( SESSION );
+			if ( session == null ) {
+				opened++;
+				session = Future.fromCompletionStage( emf.openSession(), context );
+				ctx.put( SESSION, session );
+			}
+			else {
+				reused++;
+			}
+			return session.compose( s -> Future.fromCompletionStage( work.apply( s ), context ) );
+		}
+
+		<T> Future<T> withTransaction(RoutingContext ctx, Function<Stage.Session, CompletionStage<T>> work) {
+			if ( ctx.get( SCOPED ) == null ) {
+				opened++;
+				return Future.fromCompletionStage( emf.withTransaction( (s, tx) -> work.apply( s ) ), context );
+			}
+			return withSession( ctx, s -> s.withTransaction( tx -> work.apply( s ) ) );
+		}
+
+		private void close(RoutingContext ctx) {
+			Future<Stage.Session> session = ctx.remove( SESSION );
+			if ( session != null ) {
+				// Also when the session is still opening
+				session.onSuccess( s -> s.close()
+						.whenComplete( (v, err) -> {
+							if ( err != null ) {
+								logger.warn( "Unable to close the session of {}", ctx.normalizedPath(), err );
+							}
+						} ) );
+			}
+		}
+
+		JsonObject stats() {
+			return new JsonObject()
+					.put( "requests", requests )
+					.put( "opened", opened )
+					.put( "reused", reused );
+		}
+	}
+
+	/**
+	 * Limits the number of concurrent requests hitting the database.
+	 * <p>
+	 * Requests over the limit wait in a bounded queue. When the queue is full, or a request
+	 * has been waiting longer than {@code maxQueueTime} milliseconds, the request fails
+	 * with 503 and a {@code Retry-After} header. A timer expires the waiting requests
+	 * even when nothing completes.
+	 * <p>
+	 * The {@code fixed} mode keeps the limit constant.
+	 * The {@code adaptive} mode changes it with AIMD (additive increase, multiplicative decrease):
+	 * it grows by one per limit-worth of requests completing within {@code targetLatency} milliseconds,
+	 * and shrinks by 10% at most once every {@code targetLatency} when they take longer.
+	 * Use {@code none} to disable it.
+	 * <p>
+	 * It's only used from the event loop of the verticle, so it doesn't need any synchronization.
+	 */
+	private static class AdmissionControl implements Handler<RoutingContext> {
+
+		private static final String QUEUED_AT = "admissionControl.queuedAt";
+		private static final int MIN_LIMIT = 1;
+
+		private final String mode;
+		private final int maxLimit;
+		private final int maxQueue;
+		private final long maxQueueTime;
+		private final long targetLatency;
+
+		private final Deque<RoutingContext> queue = new ArrayDeque<>();
+		private double limit;
+		private int inFlight;
+		private long lastDecrease;
+
+		private long admitted;
+		private long rejected;
+		private long expired;
+		private int maxQueueDepth;
+
+		private long expiryTimer = -1;
+
+		AdmissionControl(String mode, int limit, int maxQueue, long maxQueueTime, long targetLatency) {
+			this.mode = mode;
+			this.limit = limit;
+			// Adaptive mode can grow up to 4 times the initial limit
+			this.maxLimit = "adaptive".equals( mode ) ? 4 * limit : limit;
+			this.maxQueue = maxQueue;
+			this.maxQueueTime = TimeUnit.MILLISECONDS.toNanos( maxQueueTime );
+			this.targetLatency = TimeUnit.MILLISECONDS.toNanos( targetLatency );
+		}
+
+		void start(Vertx vertx) {
+			if ( !"none".equals( mode ) ) {
+				long period = Math.max( 10, TimeUnit.NANOSECONDS.toMillis( maxQueueTime ) / 4 );
+				expiryTimer = vertx.setPeriodic( period, timerId -> expire() );
+			}
+		}
+
+		void stop(Vertx vertx) {
+			if ( expiryTimer != -1 ) {
+				vertx.cancelTimer( expiryTimer );
+			}
+		}
+
+		@Override
+		public void handle(RoutingContext ctx) {
+			if ( "none".equals( mode ) ) {
+				ctx.next();
+			}
+			else if ( inFlight < (int) limit ) {
+				admit( ctx );
+			}
+			else if ( queue.size() < maxQueue ) {
+				ctx.put( QUEUED_AT, System.nanoTime() );
+				queue.add( ctx );
+				maxQueueDepth = Math.max( maxQueueDepth, queue.size() );
+			}
+			else {
+				reject( ctx );
+			}
+		}
+
+		private void admit(RoutingContext ctx) {
+			inFlight++;
+			admitted++;
+			long start = System.nanoTime();
+			ctx.addEndHandler( ended -> release( System.nanoTime() - start ) );
+			ctx.next();
+		}
+
+		private void reject(RoutingContext ctx) {
+			rejected++;
+			ctx.response()
+					.setStatusCode( 503 )
+					.putHeader( HttpHeaders.RETRY_AFTER, "1" )
+					.end();
+		}
+
+		private void release(long latency) {
+			inFlight--;
+			if ( "adaptive".equals( mode ) ) {
+				long now = System.nanoTime();
+				if ( latency <= targetLatency ) {
+					limit = Math.min( maxLimit, limit + 1 / limit );
+				}
+				else if ( now - lastDecrease > targetLatency ) {
+					limit = Math.max( MIN_LIMIT, limit * 0.9 );
+					lastDecrease = now;
+				}
+			}
+			while ( !queue.isEmpty() && inFlight < (int) limit ) {
+				RoutingContext next = queue.poll();
+				if ( next.response().closed() ) {
+					continue;
+				}
+				long waited = System.nanoTime() - next.<Long>get( QUEUED_AT );
+				if ( waited > maxQueueTime ) {
+					reject( next );
+				}
+				else {
+					admit( next );
+				}
+			}
+		}
+
+		// The oldest requests are at the head of the queue
+		private void expire() {
+			long now = System.nanoTime();
+			while ( !queue.isEmpty() && now - queue.peek().<Long>get( QUEUED_AT ) > maxQueueTime ) {
+				RoutingContext next = queue.poll();
+				if ( !next.response().closed() ) {
+					expired++;
+					reject( next );
+				}
+			}
+		}
+
+		JsonObject stats() {
+			return new JsonObject()
+					.put( "mode", mode )
+					.put( "limit", (int) limit )
+					.put( "inFlight", inFlight )
+					.put( "queueDepth", queue.size() )
+					.put( "maxQueueDepth", maxQueueDepth )
+					.put( "admitted", admitted )
+					.put( "rejected", rejected )
+					.put( "expired", expired );
+		}
+	}
+
+	/**
+	 * Writes the rows of a {@link RowStream} to a response, with backpressure.
+	 */
+	private static class ProductExport {
+
+		private static final int CHUNK_SIZE = 32 * 1024;
+
+		private final HttpServerResponse response;
+		private final SqlConnection connection;
+		private final boolean csv;
+
+		private RowStream<Row> stream;
+		private Buffer chunk = Buffer.buffer( CHUNK_SIZE + 256 );
+
+		ProductExport(HttpServerResponse response, SqlConnection connection, boolean csv) {
+			this.response = response;
+			this.connection = connection;
+			this.csv = csv;
+		}
+
+		void start(RowStream<Row> stream) {
+			this.stream = stream;
+			response.setChunked( true )
+					.putHeader( HttpHeaders.CONTENT_TYPE, csv ? "text/csv" : "application/x-ndjson" )
+					.closeHandler( v -> connection.close() )
+					.drainHandler( v -> stream.resume() );
+			if ( csv ) {
+				chunk.appendString( "id,name,price\n" );
+			}
+			stream.exceptionHandler( this::failed )
+					.endHandler( v -> {
+						response.end( chunk );
+						// Also rolls back the transaction, nothing has changed
+						connection.close();
+					} )
+					.handler( this::row );
+		}
+
+		private void row(Row row) {
+			long id = row.getLong( 0 );
+			String name = row.getString( 1 );
+			String price = row.getBigDecimal( 2 ).toPlainString();
+			if ( csv ) {
+				chunk.appendString( Long.toString( id ) ).appendByte( (byte) ',' );
+				if ( name != null ) {
+					chunk.appendString( csvValue( name ) );
+				}
+				chunk.appendByte( (byte) ',' ).appendString( price ).appendByte( (byte) '\n' );
+			}
+			else {
+				chunk.appendString( "{\"id\":" ).appendString( Long.toString( id ) )
+						.appendString( ",\"name\":" ).appendString( Json.encode( name ) )
+						.appendString( ",\"price\":" ).appendString( price )
+						.appendString( "}\n" );
+			}
+			if ( chunk.length() >= CHUNK_SIZE ) {
+				response.write( chunk );
+				chunk = Buffer.buffer( CHUNK_SIZE + 256 );
+				if ( response.writeQueueFull() ) {
+					stream.pause();
+				}
+			}
+		}
+
+		private static String csvValue(String value) {
+			if ( value.indexOf( ',' ) < 0 && value.indexOf( '"' ) < 0 && value.indexOf( '\n' ) < 0 && value.indexOf( '\r' ) < 0 ) {
+				return value;
+			}
+			return '"' + value.replace( "\"", "\"\"" ) + '"';
+		}
+
+		private void failed(Throwable err) {
+			logger.error( "🔥 Export failure", err );
+			connection.close();
+			if ( response.headWritten() ) {
+				// Too late for an error status, the client sees a truncated response
+				response.reset();
+			}
+			else {
+				response.setStatusCode( 500 ).end();
+			}
+		}
+	}
+
+	/**
+	 * Streams products from a file into the database.
+	 * <p>
+	 * The file is parsed one line at a time, as CSV ({@code name,price}, with an optional header)
+	 * or NDJSON (one {@code {"name": ..., "price": ...}} object per line).
+	 * Rows are inserted in batches of {@code batchSize}, each one a single statement
+	 * with the names and prices as arrays. Ids come from the same sequence Hibernate uses.
+	 * At most {@code concurrency} batches run at the same time: the file is paused while they are all busy.
+	 * <p>
+	 * A product with a name already in the table, or earlier in the same batch, is skipped.
+	 * Lines that can't be parsed are skipped too, and counted as invalid.
+	 * <p>
+	 * It's only used from one event loop, so it doesn't need any synchronization.
+	 */
+	static class ProductImporter {
+
+		private static final String INSERT = "insert into Product (id, name, price, version)"
+				+ " select nextval('hibernate_sequence'), name, price::numeric, 0 from unnest($1::text[], $2::text[]) as t(name, price)"
+				+ " on conflict (name) do nothing";
+
+		private final String format;
+		private final int batchSize;
+		private final int concurrency;
+
+		private final Promise<JsonObject> completion = Promise.promise();
+		private PgPool pool;
+		private AsyncFile file;
+		// Paused and not the file: it emits the lines it has already read until then
+		private RecordParser parser;
+		private boolean header;
+		private String[] names;
+		private String[] prices;
+		private int batched;
+		private int inFlight;
+		private boolean paused;
+		private boolean ended;
+
+		private long start;
+		private long lines;
+		private long invalid;
+		private long inserted;
+		private long duplicates;
+
+		ProductImporter(String format, int batchSize, int concurrency) {
+			if ( !"csv".equals( format ) && !"ndjson".equals( format ) ) {
+				throw new IllegalArgumentException( "Unsupported format: " + format );
+			}
+			this.format = format;
+			this.batchSize = batchSize;
+			this.concurrency = concurrency;
+			this.header = "csv".equals( format );
+			newBatch();
+		}
+
+		Future<JsonObject> importFile(Vertx vertx, PgPool pool, String path) {
+			this.pool = pool;
+			start = System.nanoTime();
+			long progressTimer = vertx.setPeriodic( 5000, timerId -> logger.info( "💡 Importing: {}", stats().encode() ) );
+			vertx.fileSystem()
+					.open( path, new OpenOptions().setRead( true ).setWrite( false ) )
+					.onFailure( completion::fail )
+					.onSuccess( file -> {
+						this.file = file.setReadBufferSize( 64 * 1024 );
+						parser = RecordParser.newDelimited( "\n", file );
+						parser.exceptionHandler( completion::tryFail )
+								.endHandler( v -> {
+									ended = true;
+									flush();
+								} )
+								.handler( this::line );
+					} );
+			return completion.future()
+					.eventually( v -> {
+						vertx.cancelTimer( progressTimer );
+						return file == null ? Future.succeededFuture() : file.close();
+					} );
+		}
+
+		private void line(Buffer buffer) {
+			String line = buffer.toString( StandardCharsets.UTF_8 ).trim();
+			if ( line.isEmpty() ) {
+				return;
+			}
+			lines++;
+			if ( header ) {
+				header = false;
+				if ( line.equalsIgnoreCase( "name,price" ) ) {
+					return;
+				}
+			}
+			try {
+				String name;
+				String price;
+				if ( "csv".equals( format ) ) {
+					int separator = line.lastIndexOf( ',' );
+					name = unquote( line.substring( 0, separator ) );
+					price = line.substring( separator + 1 ).trim();
+				}
+				else {
+					Product product = Json.decodeValue( line, Product.class );
+					name = product.getName();
+					price = product.getPrice().toPlainString();
+				}
+				// A single invalid price would fail the whole batch
+				new BigDecimal( price );
+				names[batched] = name;
+				prices[batched] = price;
+				batched++;
+			}
+			catch (RuntimeException e) {
+				invalid++;
+				return;
+			}
+			if ( batched == batchSize ) {
+				flush();
+			}
+		}
+
+		private static String unquote(String name) {
+			String trimmed = name.trim();
+			if ( trimmed.length() >= 2 && trimmed.startsWith( "\"" ) && trimmed.endsWith( "\"" ) ) {
+				return trimmed.substring( 1, trimmed.length() - 1 ).replace( "\"\"", "\"" );
+			}
+			return trimmed;
+		}
+
+		private void newBatch() {
+			names = new String[batchSize];
+			prices = new String[batchSize];
+			batched = 0;
+		}
+
+		private void flush() {
+			if ( batched > 0 ) {
+				int size = batched;
+				// Two parameters, Tuple.of would spread a single array into one parameter for each element
+				Tuple arrays = Tuple.tuple()
+						.addArrayOfString( Arrays.copyOf( names, size ) )
+						.addArrayOfString( Arrays.copyOf( prices, size ) );
+				newBatch();
+				inFlight++;
+				if ( inFlight >= concurrency && !paused ) {
+					paused = true;
+					parser.pause();
+				}
+				pool.preparedQuery( INSERT ).execute( arrays )
+						.onSuccess( rows -> batchInserted( size, rows ) )
+						.onFailure( completion::tryFail );
+			}
+			else if ( ended && inFlight == 0 ) {
+				completion.tryComplete( stats() );
+			}
+		}
+
+		private void batchInserted(int size, RowSet<?> rows) {
+			inFlight--;
+			inserted += rows.rowCount();
+			duplicates += size - rows.rowCount();
+			if ( paused ) {
+				paused = false;
+				parser.resume();
+			}
+			if ( ended ) {
+				flush();
+			}
+		}
+
+		JsonObject stats() {
+			double seconds = ( System.nanoTime() - start ) / 1e9;
+			return new JsonObject()
+					.put( "lines", lines )
+					.put( "inserted", inserted )
+					.put( "duplicates", duplicates )
+					.put( "invalid", invalid )
+					.put( "seconds", Math.round( seconds * 10 ) / 10.0 )
+					.put( "rowsPerSecond", Math.round( inserted / seconds ) );
+		}
+	}
+
+	/**
+	 * Adds a delta to the prices of many products, with optimistic locking.
+	 * <p>
+	 * Each round reads the current prices and versions with one query, and sends all the updates
+	 * in one batch of {@code update ... where id = $2 and version = $3}. An update of 0 rows is a
+	 * conflict with another writer: it doesn't fail the batch, the next round reads and updates
+	 * only the products in conflict. After {@code maxRetries} retries, the products still in conflict
+	 * are reported as unresolved. The other products remain updated.
+	 */
+	static class BulkPriceUpdate {
+
+		private static final String SELECT = "select id, name, price, version from Product where id = any($1)";
+		private static final String UPDATE = "update Product set price = $1, version = version + 1 where id = $2 and version = $3";
+
+		private final PgPool pool;
+		private final int maxRetries;
+
+		private final List<Product> updated = new ArrayList<>();
+		private final List<Long> notFound = new ArrayList<>();
+		private long conflicts;
+		private int rounds;
+
+		BulkPriceUpdate(PgPool pool, int maxRetries) {
+			this.pool = pool;
+			this.maxRetries = maxRetries;
+		}
+
+		Future<JsonObject> apply(Map<Long, BigDecimal> deltas) {
+			return round( deltas ).map( unresolved -> new JsonObject()
+					.put( "updated", updated.size() )
+					.put( "notFound", new JsonArray( notFound ) )
+					.put( "conflicts", conflicts )
+					.put( "rounds", rounds )
+					.put( "unresolved", new JsonArray( new ArrayList<>( unresolved ) ) ) );
+		}
+
+		/**
+		 * The products with the new prices and versions.
+		 */
+		List<Product> updated() {
+			return updated;
+		}
+
+		private Future<Set<Long>> round(Map<Long, BigDecimal> deltas) {
+			rounds++;
+			return pool.preparedQuery( SELECT )
+					.execute( Tuple.of( deltas.keySet().toArray( new Long[0] ) ) )
+					.compose( rows -> update( rows, deltas ) )
+					.compose( retry -> {
+						conflicts += retry.size();
+						if ( retry.isEmpty() || rounds > maxRetries ) {
+							return Future.succeededFuture( retry.keySet() );
+						}
+						return round( retry );
+					} );
+		}
+
+		private Future<Map<Long, BigDecimal>> update(RowSet<Row> rows, Map<Long, BigDecimal> deltas) {
+			Set<Long> missing = new HashSet<>( deltas.keySet() );
+			List<Product> products = new ArrayList<>( rows.size() );
+			List<Tuple> batch = new ArrayList<>( rows.size() );
+			for ( Row row : rows ) {
+				Product product = new Product();
+				product.setId( row.getLong( "id" ) );
+				product.setName( row.getString( "name" ) );
+				product.setPrice( row.getBigDecimal( "price" ).add( deltas.get( product.getId() ) ) );
+				product.setVersion( row.getInteger( "version" ) + 1 );
+				products.add( product );
+				batch.add( Tuple.of( product.getPrice(), product.getId(), row.getInteger( "version" ) ) );
+				missing.remove( product.getId() );
+			}
+			// Deleted in the meantime, in the later rounds
+			notFound.addAll( missing );
+			if ( batch.isEmpty() ) {
+				return Future.succeededFuture( Collections.emptyMap() );
+			}
+			return pool.preparedQuery( UPDATE )
+					.executeBatch( batch )
+					.map( result -> {
+						Map<Long, BigDecimal> retry = new LinkedHashMap<>();
+						// One result for each statement of the batch, in order
+						RowSet<Row> current = result;
+						for ( Product product : products ) {
+							if ( current.rowCount() == 0 ) {
+								retry.put( product.getId(), deltas.get( product.getId() ) );
+							}
+							else {
+								updated.add( product );
+							}
+							current = current.next();
+						}
+						return retry;
+					} );
+		}
+	}
+
+	/**
+	 * Where the outbox events go.
+	 */
+	public interface OutboxSink {
+
+		/**
+		 * Publishes a batch of events, in order.
+		 * The events are published again if the future fails.
+		 */
+		Future<Void> publish(List<JsonObject> events);
+	}
+
+	/**
+	 * An in-process sink, for tests: publishes each event on the local event bus, at {@link #OUTBOX_ADDRESS}.
+	 */
+	static class EventBusSink implements OutboxSink {
+
+		private final Vertx vertx;
+
+		EventBusSink(Vertx vertx) {
+			this.vertx = vertx;
+		}
+
+		@Override
+		public Future<Void> publish(List<JsonObject> events) {
+			for ( JsonObject event : events ) {
+				vertx.eventBus().publish( OUTBOX_ADDRESS, event );
+			}
+			return Future.succeededFuture();
+		}
+	}
+
+	/**
+	 * Moves the events from the outbox table to a sink, one batch per transaction.
+	 * <p>
+	 * A poll deletes up to {@code batchSize} events and publishes them before committing:
+	 * if the sink fails, the transaction rolls back and the next poll publishes them again (at least once).
+	 * After a full batch it polls again right away, otherwise after {@code pollInterval} ms.
+	 * The events locked by another relay are skipped, so more applications can share the table.
+	 */
+	static class OutboxRelay {
+
+		private static final String POLL = "delete from OutboxEvent where id in ("
+				+ "select id from OutboxEvent order by id limit $1 for update skip locked"
+				+ ") returning id, type, aggregateId, payload";
+
+		private final Vertx vertx;
+		private final PgPool pool;
+		private final OutboxSink sink;
+		private final int batchSize;
+		private final long pollInterval;
+
+		private boolean stopped;
+		private long pollTimer = -1;
+
+		private long published;
+		private long batches;
+		private long failures;
+		private long lastBatchSize;
+
+		OutboxRelay(Vertx vertx, PgPool pool, OutboxSink sink, int batchSize, long pollInterval) {
+			this.vertx = vertx;
+			this.pool = pool;
+			this.sink = sink;
+			this.batchSize = batchSize;
+			this.pollInterval = pollInterval;
+		}
+
+		void start() {
+			poll();
+		}
+
+		void stop() {
+			stopped = true;
+			if ( pollTimer != -1 ) {
+				vertx.cancelTimer( pollTimer );
+			}
+		}
+
+		private void poll() {
+			pollTimer = -1;
+			pool.withTransaction( connection -> connection.preparedQuery( POLL )
+					.execute( Tuple.of( batchSize ) )
+					.compose( this::publish ) )
+					.onSuccess( count -> {
+						published += count;
+						if ( count > 0 ) {
+							batches++;
+							lastBatchSize = count;
+						}
+						schedule( count == batchSize ? 0 : pollInterval );
+					} )
+					.onFailure( err -> {
+						failures++;
+						logger.warn( "🔥 Outbox relay failure", err );
+						schedule( pollInterval );
+					} );
+		}
+
+		private Future<Integer> publish(RowSet<Row> rows) {
+			if ( rows.size() == 0 ) {
+				return Future.succeededFuture( 0 );
+			}
+			List<JsonObject> events = new ArrayList<>( rows.size() );
+			for ( Row row : rows ) {
+				events.add( new JsonObject()
+						.put( "id", row.getLong( 0 ) )
+						.put( "type", row.getString( 1 ) )
+						.put( "aggregateId", row.getLong( 2 ) )
+						.put( "payload", new JsonObject( row.getString( 3 ) ) ) );
+			}
+			// The rows returned by a delete have no order
+			events.sort( (a, b) -> Long.compare( a.getLong( "id" ), b.getLong( "id" ) ) );
+			return sink.publish( events ).map( events.size() );
+		}
+
+		private void schedule(long delay) {
+			if ( stopped ) {
+				return;
+			}
+			if ( delay == 0 ) {
+				vertx.runOnContext( v -> poll() );
+			}
+			else {
+				pollTimer = vertx.setTimer( delay, timerId -> poll() );
+			}
+		}
+
+		JsonObject stats() {
+			return new JsonObject()
+					.put( "published", published )
+					.put( "batches", batches )
+					.put( "lastBatchSize", lastBatchSize )
+					.put( "failures", failures );
+		}
+	}
+
+	/**
+	 * The server-sent events stream of {@code GET /products/changes}.
+	 * <p>
+	 * Each instance of the verticle sends the changes to its own subscribers, the same buffer to all of them.
+	 * When a subscriber can't keep up, up to {@code maxBuffered} events wait for its connection
+	 * to drain. After that, the stream is reset and the client has to reconnect and fetch the products again.
+	 * A comment every {@code heartbeat} milliseconds keeps idle connections open.
+	 * <p>
+	 * It's only used from the event loop of the verticle, so it doesn't need any synchronization.
+	 */
+	private static class ChangeStream {
+
+		private static final Buffer HEARTBEAT = Buffer.buffer( ":\n\n" );
+
+		private final int maxBuffered;
+		private final long heartbeat;
+
+		private final Set<Subscriber> subscribers = new HashSet<>();
+		private long heartbeatTimer = -1;
+
+		private long events;
+		private long delivered;
+		private long overflows;
+
+		ChangeStream(int maxBuffered, long heartbeat) {
+			this.maxBuffered = maxBuffered;
+			this.heartbeat = heartbeat;
+		}
+
+		void start(Vertx vertx) {
+			if ( heartbeat > 0 ) {
+				heartbeatTimer = vertx.setPeriodic( heartbeat, timerId -> {
+					for ( Subscriber subscriber : subscribers ) {
+						subscriber.heartbeat();
+					}
+				} );
+			}
+		}
+
+		void stop(Vertx vertx) {
+			if ( heartbeatTimer != -1 ) {
+				vertx.cancelTimer( heartbeatTimer );
+			}
+		}
+
+		void subscribe(RoutingContext ctx) {
+			HttpServerResponse response = ctx.response()
+					.setChunked( true )
+					.putHeader( HttpHeaders.CONTENT_TYPE, "text/event-stream" )
+					.putHeader( HttpHeaders.CACHE_CONTROL, "no-cache" )
+					// The compressor would hold back the events
+					.putHeader( HttpHeaders.CONTENT_ENCODING, HttpHeaders.IDENTITY );
+			Subscriber subscriber = new Subscriber( response );
+			subscribers.add( subscriber );
+			response.closeHandler( v -> subscribers.remove( subscriber ) );
+			response.drainHandler( v -> subscriber.drain() );
+			// Sends the headers right away
+			response.write( "retry: 1000\n\n" );
+		}
+
+		void publish(Buffer event) {
+			events++;
+			Iterator<Subscriber> iterator = subscribers.iterator();
+			while ( iterator.hasNext() ) {
+				Subscriber subscriber = iterator.next();
+				if ( !subscriber.send( event ) ) {
+					iterator.remove();
+					overflows++;
+					subscriber.response.reset();
+				}
+			}
+		}
+
+		JsonObject stats() {
+			return new JsonObject()
+					.put( "subscribers", subscribers.size() )
+					.put( "events", events )
+					.put( "delivered", delivered )
+					.put( "overflows", overflows );
+		}
+
+		private class Subscriber {
+			final HttpServerResponse response;
+			final Deque<Buffer> pending = new ArrayDeque<>();
+
+			Subscriber(HttpServerResponse response) {
+				this.response = response;
+			}
+
+			/**
+			 * @return false if the buffer is full
+			 */
+			boolean send(Buffer event) {
+				if ( pending.isEmpty() && !response.writeQueueFull() ) {
+					response.write( event );
+					delivered++;
+					return true;
+				}
+				return pending.offer( event ) && pending.size() <= maxBuffered;
+			}
+
+			void drain() {
+				while ( !pending.isEmpty() && !response.writeQueueFull() ) {
+					response.write( pending.poll() );
+					delivered++;
+				}
+			}
+
+			void heartbeat() {
+				if ( pending.isEmpty() && !response.writeQueueFull() ) {
+					response.write( HEARTBEAT );
+				}
+			}
+		}
+	}
+
+	/**
+	 * A versioned cache for an encoded JSON response.
+	 * <p>
+	 * Every write increments the version, and an entry is only served while its version is the current one.
+	 * The same {@link Buffer}s are written to every response, from any event loop, without copying them:
+	 * Vert.x only hands a duplicate of the underlying Netty buffer to the connection.
+	 * <p>
+	 * Each entry has a strong ETag, so clients with a fresh copy get a 304. With compression enabled,
+	 * the entry also keeps the gzip encoding, sent to the clients that accept it; the HTTP server
+	 * doesn't compress a response that already has a {@code Content-Encoding}.
+	 */
+	static class ResponseCache {
+
+		static class Entry {
+			final long version;
+			final Buffer identity;
+			final String identityEtag;
+			final Buffer gzip;
+			final String gzipEtag;
+
+			Entry(long version, String etag, Buffer identity, Buffer gzip) {
+				this.version = version;
+				this.identity = identity;
+				this.identityEtag = "\"" + etag + "\"";
+				this.gzip = gzip;
+				this.gzipEtag = "\"" + etag + "-gzip\"";
+			}
+		}
+
+		// Avoids reusing the ETags of a previous run
+		private final String epoch = Long.toString( System.currentTimeMillis(), 36 );
+		private final AtomicLong version = new AtomicLong();
+		private final AtomicReference<Entry> current = new AtomicReference<>();
+
+		private final LongAdder hits = new LongAdder();
+		private final LongAdder misses = new LongAdder();
+		private final LongAdder notModified = new LongAdder();
+
+		void invalidate() {
+			version.incrementAndGet();
+		}
+
+		long version() {
+			return version.get();
+		}
+
+		Entry get() {
+			Entry entry = current.get();
+			if ( entry != null && entry.version == version.get() ) {
+				hits.increment();
+				return entry;
+			}
+			misses.increment();
+			return null;
+		}
+
+		Entry put(long version, Buffer json, boolean compress) {
+			Entry entry = new Entry( version, epoch + "-" + version, json, compress ? gzip( json ) : null );
+			current.accumulateAndGet( entry, (old, updated) -> old == null || old.version <= updated.version ? updated : old );
+			return entry;
+		}
+
+		private static Buffer gzip(Buffer json) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream( json.length() / 4 );
+			try ( GZIPOutputStream gzip = new GZIPOutputStream( bytes ) ) {
+				gzip.write( json.getBytes() );
+			}
+			catch (IOException e) {
+				throw new UncheckedIOException( e );
+			}
+			return Buffer.buffer( bytes.toByteArray() );
+		}
+
+		void send(RoutingContext ctx, Entry entry) {
+			String acceptEncoding = ctx.request().getHeader( HttpHeaders.ACCEPT_ENCODING );
+			boolean gzip = entry.gzip != null && acceptEncoding != null && acceptEncoding.contains( "gzip" );
+			String etag = gzip ? entry.gzipEtag : entry.identityEtag;
+
+			HttpServerResponse response = ctx.response()
+					.putHeader( HttpHeaders.ETAG, etag )
+					.putHeader( HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING );
+			if ( matches( ctx.request().getHeader( HttpHeaders.IF_NONE_MATCH ), etag ) ) {
+				notModified.increment();
+				response.setStatusCode( 304 ).end();
+				return;
+			}
+			response.putHeader( HttpHeaders.CONTENT_TYPE, "application/json" );
+			if ( gzip ) {
+				response.putHeader( HttpHeaders.CONTENT_ENCODING, "gzip" ).end( entry.gzip );
+			}
+			else {
+				response.end( entry.identity );
+			}
+		}
+
+		private static boolean matches(String ifNoneMatch, String etag) {
+			if ( ifNoneMatch == null ) {
+				return false;
+			}
+			for ( String candidate : ifNoneMatch.split( "," ) ) {
+				String trimmed = candidate.trim();
+				if ( trimmed.equals( "*" ) || trimmed.equals( etag ) ) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		JsonObject stats() {
+			return new JsonObject()
+					.put( "version", version.get() )
+					.put( "hits", hits.sum() )
+					.put( "misses", misses.sum() )
+					.put( "notModified", notModified.sum() );
+		}
+	}
+
+	/**
+	 * A compact, off-heap copy of all the products, sorted by id.
+	 * <p>
+	 * Each product is a fixed-width record in a direct {@link ByteBuffer}: the id, the unscaled price,
+	 * the price scale, and the offset and length of the name.
+	 * The names are UTF-8 bytes in a separate direct buffer, each one stored once
+	 * (the column is unique). An update appends the new name and leaves the old bytes unused.
+	 * <p>
+	 * The JSON responses are written straight from the buffers, without creating {@link Product}s,
+	 * {@link BigDecimal}s or strings, so a large catalog adds almost nothing to the Java heap
+	 * and to the work of the garbage collector.
+	 * Products with a price whose unscaled value doesn't fit in a long are rejected: they are logged
+	 * and left out, and the verticle reads them (and the list of products) from the database instead.
+	 * <p>
+	 * It's only used from the event loop of the verticle, so it doesn't need any synchronization.
+	 */
+	static class ProductCatalog {
+
+		private static final int ID = 0;
+		private static final int UNSCALED_PRICE = 8;
+		private static final int SCALE = 16;
+		private static final int NAME_OFFSET = 20;
+		private static final int NAME_LENGTH = 24;
+		private static final int RECORD_SIZE = 28;
+
+		private static final int NULL_NAME = -1;
+		private static final byte[] HEX = "0123456789abcdef".getBytes( StandardCharsets.US_ASCII );
+		private static final Buffer NOT_FOUND = Buffer.buffer( "{\"id\":null,\"name\":null,\"price\":null}" );
+
+		private ByteBuffer records = ByteBuffer.allocateDirect( 1024 * RECORD_SIZE );
+		private ByteBuffer names = ByteBuffer.allocateDirect( 64 * 1024 );
+		private int size;
+		private int namesSize;
+		// Bytes of names that no record points to anymore
+		private int namesGarbage;
+
+		// Reused when formatting numbers
+		private final byte[] digits = new byte[20];
+
+		// Ids of the products that don't fit
+		private final Set<Long> rejected = new HashSet<>();
+
+		int size() {
+			return size;
+		}
+
+		boolean isRejected(long id) {
+			return rejected.contains( id );
+		}
+
+		boolean hasRejected() {
+			return !rejected.isEmpty();
+		}
+
+		void put(Product product) {
+			long id = product.getId();
+			long unscaledPrice;
+			try {
+				unscaledPrice = product.getPrice().unscaledValue().longValueExact();
+			}
+			catch (ArithmeticException e) {
+				// Thrown on the event loop, the caller wouldn't know what to do with it
+				logger.warn( "⚠ The price {} of product {} doesn't fit in the catalog, the product is read from the database",
+						product.getPrice(), id );
+				remove( id );
+				rejected.add( id );
+				return;
+			}
+			rejected.remove( id );
+			int scale = product.getPrice().scale();
+
+			int index = indexOf( id );
+			boolean existing = index >= 0;
+			if ( !existing ) {
+				// Usually at the end, ids come from a sequence
+				index = -index - 1;
+				ensureCapacity( size + 1 );
+				for ( int i = size; i > index; i-- ) {
+					copyRecord( i - 1, i );
+				}
+				size++;
+			}
+			int base = index * RECORD_SIZE;
+			records.putLong( base + ID, id );
+			records.putLong( base + UNSCALED_PRICE, unscaledPrice );
+			records.putInt( base + SCALE, scale );
+			putName( base, existing, product.getName() );
+		}
+
+		/**
+		 * Removes the record of the product, the records after it move back by one.
+		 */
+		void remove(long id) {
+			rejected.remove( id );
+			int index = indexOf( id );
+			if ( index < 0 ) {
+				return;
+			}
+			release( records.getInt( index * RECORD_SIZE + NAME_LENGTH ) );
+			for ( int i = index + 1; i < size; i++ ) {
+				copyRecord( i, i - 1 );
+			}
+			size--;
+		}
+
+		/**
+		 * The same product is usually put more than once (the REST handler, then the change feed):
+		 * an unchanged name is kept, a shorter one overwrites the old bytes and only a longer one is appended.
+		 */
+		private void putName(int base, boolean existing, String name) {
+			int oldOffset = existing ? records.getInt( base + NAME_OFFSET ) : 0;
+			int oldLength = existing ? records.getInt( base + NAME_LENGTH ) : NULL_NAME;
+			if ( name == null ) {
+				release( oldLength );
+				records.putInt( base + NAME_OFFSET, 0 );
+				records.putInt( base + NAME_LENGTH, NULL_NAME );
+				return;
+			}
+			byte[] bytes = name.getBytes( StandardCharsets.UTF_8 );
+			if ( oldLength != NULL_NAME && bytes.length <= oldLength ) {
+				if ( !nameEquals( oldOffset, oldLength, bytes ) ) {
+					ByteBuffer target = names.duplicate();
+					target.position( oldOffset );
+					target.put( bytes );
+					records.putInt( base + NAME_LENGTH, bytes.length );
+					namesGarbage += oldLength - bytes.length;
+				}
+				return;
+			}
+			release( oldLength );
+			if ( namesSize + bytes.length > names.capacity() ) {
+				compactNames();
+				if ( namesSize + bytes.length > names.capacity() ) {
+					names = grow( names, namesSize, namesSize + bytes.length );
+				}
+			}
+			ByteBuffer target = names.duplicate();
+			target.position( namesSize );
+			target.put( bytes );
+			records.putInt( base + NAME_OFFSET, namesSize );
+			records.putInt( base + NAME_LENGTH, bytes.length );
+			namesSize += bytes.length;
+		}
+
+		private void release(int length) {
+			if ( length != NULL_NAME ) {
+				namesGarbage += length;
+			}
+		}
+
+		private boolean nameEquals(int offset, int length, byte[] bytes) {
+			if ( length != bytes.length ) {
+				return false;
+			}
+			for ( int i = 0; i < length; i++ ) {
+				if ( names.get( offset + i ) != bytes[i] ) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Before growing the names, copies the ones still in use if at least half of the buffer is garbage.
+		 */
+		private void compactNames() {
+			if ( namesGarbage * 2 < namesSize ) {
+				return;
+			}
+			ByteBuffer compacted = ByteBuffer.allocateDirect( names.capacity() );
+			for ( int i = 0; i < size; i++ ) {
+				int base = i * RECORD_SIZE;
+				int length = records.getInt( base + NAME_LENGTH );
+				if ( length != NULL_NAME ) {
+					ByteBuffer name = names.duplicate();
+					int offset = records.getInt( base + NAME_OFFSET );
+					name.position( offset ).limit( offset + length );
+					records.putInt( base + NAME_OFFSET, compacted.position() );
+					compacted.put( name );
+				}
+			}
+			names = compacted;
+			namesSize = compacted.position();
+			namesGarbage = 0;
+		}
+
+		private void ensureCapacity(int records) {
+			if ( records * RECORD_SIZE > this.records.capacity() ) {
+				this.records = grow( this.records, size * RECORD_SIZE, records * RECORD_SIZE );
+			}
+		}
+
+		private static ByteBuffer grow(ByteBuffer buffer, int used, int required) {
+			int capacity = buffer.capacity();
+			while ( capacity < required ) {
+				capacity *= 2;
+			}
+			ByteBuffer bigger = ByteBuffer.allocateDirect( capacity );
+			ByteBuffer content = buffer.duplicate();
+			content.position( 0 ).limit( used );
+			bigger.put( content );
+			return bigger;
+		}
+
+		private void copyRecord(int from, int to) {
+			int source = from * RECORD_SIZE;
+			int target = to * RECORD_SIZE;
+			records.putLong( target + ID, records.getLong( source + ID ) );
+			records.putLong( target + UNSCALED_PRICE, records.getLong( source + UNSCALED_PRICE ) );
+			records.putInt( target + SCALE, records.getInt( source + SCALE ) );
+			records.putInt( target + NAME_OFFSET, records.getInt( source + NAME_OFFSET ) );
+			records.putInt( target + NAME_LENGTH, records.getInt( source + NAME_LENGTH ) );
+		}
+
+		/**
+		 * Binary search by id, same contract as {@link java.util.Arrays#binarySearch(long[], long)}.
+		 */
+		private int indexOf(long id) {
+			int low = 0;
+			int high = size - 1;
+			while ( low <= high ) {
+				int middle = ( low + high ) >>> 1;
+				long current = records.getLong( middle * RECORD_SIZE + ID );
+				if ( current < id ) {
+					low = middle + 1;
+				}
+				else if ( current > id ) {
+					high = middle - 1;
+				}
+				else {
+					return middle;
+				}
+			}
+			return -( low + 1 );
+		}
+
+		Buffer toJson() {
+			Buffer json = Buffer.buffer( size * 64 + 2 );
+			json.appendByte( (byte) '[' );
+			for ( int i = 0; i < size; i++ ) {
+				if ( i > 0 ) {
+					json.appendByte( (byte) ',' );
+				}
+				appendProduct( json, i );
+			}
+			return json.appendByte( (byte) ']' );
+		}
+
+		Buffer toJson(long id) {
+			int index = indexOf( id );
+			if ( index < 0 ) {
+				return NOT_FOUND.copy();
+			}
+			Buffer json = Buffer.buffer( 64 );
+			appendProduct( json, index );
+			return json;
+		}
+
+		// Same fields, same order as the Jackson serialization of Product
+		private void appendProduct(Buffer json, int index) {
+			int base = index * RECORD_SIZE;
+			json.appendString( "{\"id\":" );
+			appendDecimal( json, records.getLong( base + ID ), 0 );
+			json.appendString( ",\"name\":" );
+			appendName( json, records.getInt( base + NAME_OFFSET ), records.getInt( base + NAME_LENGTH ) );
+			json.appendString( ",\"price\":" );
+			appendDecimal( json, records.getLong( base + UNSCALED_PRICE ), records.getInt( base + SCALE ) );
+			json.appendByte( (byte) '}' );
+		}
+
+		private void appendName(Buffer json, int offset, int length) {
+			if ( length == NULL_NAME ) {
+				json.appendString( "null" );
+				return;
+			}
+			json.appendByte( (byte) '"' );
+			for ( int i = offset; i < offset + length; i++ ) {
+				// UTF-8 multi-byte sequences never contain bytes below 0x80, they can be copied as they are
+				byte b = names.get( i );
+				if ( b == '"' || b == '\\' ) {
+					json.appendByte( (byte) '\\' ).appendByte( b );
+				}
+				else if ( b >= 0 && b < 0x20 ) {
+					json.appendString( "\\u00" ).appendByte( HEX[b >> 4] ).appendByte( HEX[b & 0xF] );
+				}
+				else {
+					json.appendByte( b );
+				}
+			}
+			json.appendByte( (byte) '"' );
+		}
+
+		/**
+		 * Appends {@code unscaled * 10^-scale} in plain notation.
+		 */
+		private void appendDecimal(Buffer json, long unscaled, int scale) {
+			// Work with negative values, -Long.MIN_VALUE doesn't fit in a long
+			long value = unscaled < 0 ? unscaled : -unscaled;
+			int count = 0;
+			do {
+				digits[digits.length - 1 - count++] = (byte) ( '0' - ( value % 10 ) );
+				value /= 10;
+			}
+			while ( value != 0 );
+
+			if ( unscaled < 0 ) {
+				json.appendByte( (byte) '-' );
+			}
+			int start = digits.length - count;
+			if ( scale <= 0 ) {
+				json.appendBytes( digits, start, count );
+				for ( int i = 0; i < -scale; i++ ) {
+					json.appendByte( (byte) '0' );
+				}
+			}
+			else if ( count <= scale ) {
+				json.appendByte( (byte) '0' ).appendByte( (byte) '.' );
+				for ( int i = count; i < scale; i++ ) {
+					json.appendByte( (byte) '0' );
+				}
+				json.appendBytes( digits, start, count );
+			}
+			else {
+				json.appendBytes( digits, start, count - scale );
+				json.appendByte( (byte) '.' );
+				json.appendBytes( digits, start + count - scale, scale );
+			}
+		}
+
+		JsonObject stats() {
+			return new JsonObject()
+					.put( "size", size )
+					.put( "rejected", rejected.size() )
+					.put( "recordsBytes", records.capacity() )
+					.put( "namesBytes", names.capacity() )
+					.put( "namesGarbageBytes", namesGarbage );
+		}
+	}
+
+	/**
+	 * A columnar copy of the prices and names of the products, for aggregates that don't need the database.
+	 * <p>
+	 * Each column is split in chunks of {@value #CHUNK_SIZE} rows, primitive arrays. The prices are unscaled longs with a shared scale:
+	 * a price with more decimal digits rescales the whole column. The names are codes in a dictionary
+	 * of the distinct names, so a prefix is checked once for each name and not once for each row.
+	 * An update overwrites the row of the product and a delete marks it, rows are never removed.
+	 * <p>
+	 * Only the event loop of the verticle writes. Each write publishes an immutable {@link Columns} snapshot
+	 * and {@link #aggregate} reads the last one on the fork-join pool, splitting the rows between the threads.
+	 * The chunks are copied on write: updating or deleting a row of the last snapshot copies its chunk (and the
+	 * array of chunks) first, new rows are appended after the end of the snapshots, and rescaling creates new chunks.
+	 * A chunk is copied at most once for each snapshot, {@link #putAll} publishes one for a whole batch,
+	 * and a product with the same price and name as its row doesn't change anything.
+	 * Products with a price whose unscaled value doesn't fit in a long are logged and left out of the aggregates.
+	 */
+	static class PriceAnalytics {
+
+		private static final int NULL_NAME = -1;
+		private static final int DELETED = -2;
+
+		// Rows for each chunk of the columns, the unit of copy-on-write
+		private static final int CHUNK_BITS = 12;
+		private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+		private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+		// Rows for each fork-join task
+		private static final int THRESHOLD = 64 * 1024;
+
+		// Prefixes recently aggregated
+		private static final int CACHED_PREFIXES = 16;
+
+		/**
+		 * The chunks of the columns up to a given row, and the dictionary up to a given code.
+		 * Nothing it can read changes after it's published.
+		 */
+		static class Columns {
+			final long[][] prices;
+			final int[][] names;
+			final int size;
+			final int scale;
+			final String[] dictionary;
+			final int dictionarySize;
+
+			Columns(long[][] prices, int[][] names, int size, int scale, String[] dictionary, int dictionarySize) {
+				this.prices = prices;
+				this.names = names;
+				this.size = size;
+				this.scale = scale;
+				this.dictionary = dictionary;
+				this.dictionarySize = dictionarySize;
+			}
+		}
+
+		private long[][] prices = { new long[CHUNK_SIZE] };
+		private int[][] names = { new int[CHUNK_SIZE] };
+		private int size;
+		private int scale;
+		// Products left out, their price doesn't fit
+		private long rejected;
+
+		// Copied since the last snapshot, they can be written in place
+		private final BitSet copiedPrices = new BitSet();
+		private final BitSet copiedNames = new BitSet();
+		private boolean pricesCopied;
+		private boolean namesCopied;
+
+		private String[] dictionary = new String[1024];
+		private final Map<String, Integer> codes = new HashMap<>();
+
+		// Open addressing from the id to the row + 1, 0 is an empty slot
+		private long[] ids = new long[2048];
+		private int[] rows = new int[2048];
+
+		private volatile Columns columns = new Columns( prices, names, 0, 0, dictionary, 0 );
+
+		// The dictionary only grows, the codes matching a prefix are only checked once
+		private final Map<String, boolean[]> prefixMatches = Collections.synchronizedMap( new LinkedHashMap<String, boolean[]>( 16, 0.75f, true ) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, boolean[]> eldest) {
+				return size() > CACHED_PREFIXES;
+			}
+		} );
+
+		private final LongAdder queries = new LongAdder();
+		private volatile long lastQueryMillis;
+
+		void put(Product product) {
+			if ( write( product ) ) {
+				publish();
+			}
+		}
+
+		void putAll(List<Product> products) {
+			boolean changed = false;
+			for ( Product product : products ) {
+				changed |= write( product );
+			}
+			if ( changed ) {
+				publish();
+			}
+		}
+
+		/**
+		 * Writes the row of the product, false if it has the same price and name already.
+		 */
+		private boolean write(Product product) {
+			BigDecimal price = product.getPrice();
+			boolean rescaled = price.scale() > scale;
+			if ( rescaled ) {
+				rescale( price.scale() );
+			}
+			long unscaledPrice;
+			try {
+				unscaledPrice = price.setScale( scale ).unscaledValue().longValueExact();
+			}
+			catch (ArithmeticException e) {
+				// Thrown on the event loop, the caller wouldn't know what to do with it
+				logger.warn( "⚠ The price {} of product {} doesn't fit in the price analytics, the product is left out",
+						price, product.getId() );
+				rejected++;
+				return delete( product.getId() ) || rescaled;
+			}
+			int name = encode( product.getName() );
+
+			int slot = slot( product.getId() );
+			int row = rows[slot] - 1;
+			if ( row < 0 ) {
+				row = append();
+				ids[slot] = product.getId();
+				rows[slot] = row + 1;
+				if ( size * 2 > ids.length ) {
+					rehash();
+				}
+			}
+			else if ( !rescaled && price( row ) == unscaledPrice && name( row ) == name ) {
+				return false;
+			}
+			setPrice( row, unscaledPrice );
+			setName( row, name );
+			return true;
+		}
+
+		void remove(long id) {
+			if ( delete( id ) ) {
+				publish();
+			}
+		}
+
+		private boolean delete(long id) {
+			int row = rows[slot( id )] - 1;
+			if ( row < 0 || name( row ) == DELETED ) {
+				return false;
+			}
+			setName( row, DELETED );
+			return true;
+		}
+
+		private long price(int row) {
+			return prices[row >>> CHUNK_BITS][row & CHUNK_MASK];
+		}
+
+		private int name(int row) {
+			return names[row >>> CHUNK_BITS][row & CHUNK_MASK];
+		}
+
+		/**
+		 * A new row, after the end of the snapshots: its chunk can be shared.
+		 */
+		private int append() {
+			int row = size++;
+			int chunk = row >>> CHUNK_BITS;
+			if ( chunk == prices.length ) {
+				prices = Arrays.copyOf( prices, chunk * 2 );
+				names = Arrays.copyOf( names, chunk * 2 );
+				pricesCopied = true;
+				namesCopied = true;
+			}
+			if ( prices[chunk] == null ) {
+				prices[chunk] = new long[CHUNK_SIZE];
+			}
+			if ( names[chunk] == null ) {
+				names[chunk] = new int[CHUNK_SIZE];
+			}
+			return row;
+		}
+
+		private void setPrice(int row, long price) {
+			int chunk = row >>> CHUNK_BITS;
+			if ( row < columns.size && !copiedPrices.get( chunk ) ) {
+				if ( !pricesCopied ) {
+					prices = prices.clone();
+					pricesCopied = true;
+				}
+				prices[chunk] = prices[chunk].clone();
+				copiedPrices.set( chunk );
+			}
+			prices[chunk][row & CHUNK_MASK] = price;
+		}
+
+		private void setName(int row, int name) {
+			int chunk = row >>> CHUNK_BITS;
+			if ( row < columns.size && !copiedNames.get( chunk ) ) {
+				if ( !namesCopied ) {
+					names = names.clone();
+					namesCopied = true;
+				}
+				names[chunk] = names[chunk].clone();
+				copiedNames.set( chunk );
+			}
+			names[chunk][row & CHUNK_MASK] = name;
+		}
+
+		private void publish() {
+			columns = new Columns( prices, names, size, scale, dictionary, codes.size() );
+			copiedPrices.clear();
+			copiedNames.clear();
+			pricesCopied = false;
+			namesCopied = false;
+		}
+
+		private void rescale(int newScale) {
+			long factor = BigDecimal.ONE.scaleByPowerOfTen( newScale - scale ).longValueExact();
+			long[][] rescaled = new long[prices.length][];
+			for ( int chunk = 0; chunk < prices.length && prices[chunk] != null; chunk++ ) {
+				rescaled[chunk] = new long[CHUNK_SIZE];
+				for ( int i = 0; i < CHUNK_SIZE; i++ ) {
+					rescaled[chunk][i] = Math.multiplyExact( prices[chunk][i], factor );
+				}
+			}
+			prices = rescaled;
+			// None of the new chunks is in a snapshot
+			pricesCopied = true;
+			copiedPrices.set( 0, prices.length );
+			scale = newScale;
+		}
+
+		private int encode(String name) {
+			if ( name == null ) {
+				return NULL_NAME;
+			}
+			Integer code = codes.get( name );
+			if ( code == null ) {
+				code = codes.size();
+				if ( code == dictionary.length ) {
+					dictionary = Arrays.copyOf( dictionary, code * 2 );
+				}
+				dictionary[code] = name;
+				codes.put( name, code );
+			}
+			return code;
+		}
+
+		private int slot(long id) {
+			int mask = ids.length - 1;
+			long hash = id * 0x9E3779B97F4A7C15L;
+			int slot = (int) ( hash ^ ( hash >>> 32 ) ) & mask;
+			while ( rows[slot] != 0 && ids[slot] != id ) {
+				slot = ( slot + 1 ) & mask;
+			}
+			return slot;
+		}
+
+		private void rehash() {
+			long[] oldIds = ids;
+			int[] oldRows = rows;
+			ids = new long[oldIds.length * 2];
+			rows = new int[oldRows.length * 2];
+			for ( int i = 0; i < oldIds.length; i++ ) {
+				if ( oldRows[i] != 0 ) {
+					int slot = slot( oldIds[i] );
+					ids[slot] = oldIds[i];
+					rows[slot] = oldRows[i];
+				}
+			}
+		}
+
+		/**
+		 * The codes of the names starting with the prefix, null to select all the names.
+		 */
+		private boolean[] matches(Columns snapshot, String prefix) {
+			if ( prefix.isEmpty() ) {
+				return null;
+			}
+			boolean[] cached = prefixMatches.get( prefix );
+			int checked = cached == null ? 0 : Math.min( cached.length, snapshot.dictionarySize );
+			if ( checked == snapshot.dictionarySize ) {
+				return cached;
+			}
+			boolean[] matches = cached == null ? new boolean[snapshot.dictionarySize] : Arrays.copyOf( cached, snapshot.dictionarySize );
+			IntStream.range( checked, snapshot.dictionarySize ).parallel()
+					.forEach( code -> matches[code] = snapshot.dictionary[code].startsWith( prefix ) );
+			prefixMatches.merge( prefix, matches, (current, computed) -> current.length >= computed.length ? current : computed );
+			return matches;
+		}
+
+		/**
+		 * Count, sum, average, minimum, maximum and nearest-rank percentiles of the prices of the products
+		 * with a name starting with the prefix. It can run on any thread.
+		 */
+		JsonObject aggregate(String prefix, double[] percentiles) {
+			long start = System.nanoTime();
+			Columns snapshot = columns;
+			Aggregate result = ForkJoinPool.commonPool()
+					.invoke( new AggregateTask( snapshot, matches( snapshot, prefix ), percentiles.length > 0, 0, snapshot.size ) );
+
+			JsonObject json = new JsonObject( new LinkedHashMap<>() )
+					.put( "prefix", prefix )
+					.put( "count", result.count );
+			if ( result.count > 0 ) {
+				BigDecimal sum = BigDecimal.valueOf( result.sum, snapshot.scale );
+				json.put( "sum", sum )
+						.put( "avg", sum.divide( BigDecimal.valueOf( result.count ), MathContext.DECIMAL64 ) )
+						.put( "min", BigDecimal.valueOf( result.min, snapshot.scale ) )
+						.put( "max", BigDecimal.valueOf( result.max, snapshot.scale ) );
+				if ( percentiles.length > 0 ) {
+					long[] matching = result.values();
+					JsonObject values = new JsonObject( new LinkedHashMap<>() );
+					double[] ascending = percentiles.clone();
+					Arrays.sort( ascending );
+					// After a selection, the lower ranks are on the left
+					int from = 0;
+					for ( double percentile : ascending ) {
+						int rank = (int) Math.min( matching.length - 1, Math.max( 0, Math.ceil( percentile / 100 * matching.length ) - 1 ) );
+						long value = select( matching, from, matching.length, rank );
+						from = rank;
+						values.put( BigDecimal.valueOf( percentile ).stripTrailingZeros().toPlainString(), BigDecimal.valueOf( value, snapshot.scale ) );
+					}
+					json.put( "percentiles", values );
+				}
+			}
+			long millis = TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start );
+			queries.increment();
+			lastQueryMillis = millis;
+			return json.put( "rows", snapshot.size ).put( "millis", millis );
+		}
+
+		/**
+		 * The value that would be at {@code rank} if {@code values[from, to)} were sorted,
+		 * with a quickselect. The three-way partitions group the many products with the same price.
+		 */
+		private static long select(long[] values, int from, int to, int rank) {
+			int low = from;
+			int high = to - 1;
+			while ( low < high ) {
+				long pivot = values[ThreadLocalRandom.current().nextInt( low, high + 1 )];
+				int lessThan = low;
+				int greaterThan = high;
+				int i = low;
+				while ( i <= greaterThan ) {
+					if ( values[i] < pivot ) {
+						swap( values, lessThan++, i++ );
+					}
+					else if ( values[i] > pivot ) {
+						swap( values, i, greaterThan-- );
+					}
+					else {
+						i++;
+					}
+				}
+				if ( rank < lessThan ) {
+					high = lessThan - 1;
+				}
+				else if ( rank > greaterThan ) {
+					low = greaterThan + 1;
+				}
+				else {
+					return pivot;
+				}
+			}
+			return values[rank];
+		}
+
+		private static void swap(long[] values, int i, int j) {
+			long value = values[i];
+			values[i] = values[j];
+			values[j] = value;
+		}
+
+		JsonObject stats() {
+			Columns snapshot = columns;
+			return new JsonObject()
+					.put( "rows", snapshot.size )
+					.put( "rejected", rejected )
+					.put( "names", snapshot.dictionarySize )
+					.put( "scale", snapshot.scale )
+					.put( "columnsBytes", ( ( snapshot.size + CHUNK_MASK ) >>> CHUNK_BITS ) * CHUNK_SIZE * 12L + ids.length * 12L )
+					.put( "queries", queries.sum() )
+					.put( "lastQueryMillis", lastQueryMillis );
+		}
+
+		/**
+		 * The partial result of a range of rows, with the matching prices if the percentiles are needed.
+		 */
+		private static class Aggregate {
+			long count;
+			long sum;
+			long min = Long.MAX_VALUE;
+			long max = Long.MIN_VALUE;
+			final List<long[]> chunks = new ArrayList<>();
+
+			Aggregate merge(Aggregate other) {
+				count += other.count;
+				sum = Math.addExact( sum, other.sum );
+				min = Math.min( min, other.min );
+				max = Math.max( max, other.max );
+				chunks.addAll( other.chunks );
+				return this;
+			}
+
+			long[] values() {
+				long[] values = new long[(int) count];
+				int position = 0;
+				for ( long[] chunk : chunks ) {
+					System.arraycopy( chunk, 0, values, position, chunk.length );
+					position += chunk.length;
+				}
+				return values;
+			}
+		}
+
+		private static class AggregateTask extends RecursiveTask<Aggregate> {
+			// ForkJoinTask is Serializable, the tasks are never serialized
+			private static final long serialVersionUID = 1L;
+
+			private final Columns columns;
+			private final boolean[] matches;
+			private final boolean collect;
+			private final int from;
+			private final int to;
+
+			AggregateTask(Columns columns, boolean[] matches, boolean collect, int from, int to) {
+				this.columns = columns;
+				this.matches = matches;
+				this.collect = collect;
+				this.from = from;
+				this.to = to;
+			}
+
+			@Override
+			protected Aggregate compute() {
+				if ( to - from <= THRESHOLD ) {
+					return scan();
+				}
+				int middle = ( from + to ) >>> 1;
+				AggregateTask left = new AggregateTask( columns, matches, collect, from, middle );
+				left.fork();
+				Aggregate right = new AggregateTask( columns, matches, collect, middle, to ).compute();
+				return left.join().merge( right );
+			}
+
+			private Aggregate scan() {
+				Aggregate result = new Aggregate();
+				long[] values = collect ? new long[to - from] : null;
+				int found = 0;
+				for ( int row = from; row < to; ) {
+					int chunk = row >>> CHUNK_BITS;
+					long[] prices = columns.prices[chunk];
+					int[] names = columns.names[chunk];
+					int end = Math.min( to, ( chunk + 1 ) << CHUNK_BITS );
+					for ( ; row < end; row++ ) {
+						int name = names[row & CHUNK_MASK];
+						if ( name == DELETED || matches != null && ( name == NULL_NAME || !matches[name] ) ) {
+							continue;
+						}
+						long price = prices[row & CHUNK_MASK];
+						result.sum = Math.addExact( result.sum, price );
+						result.min = Math.min( result.min, price );
+						result.max = Math.max( result.max, price );
+						if ( collect ) {
+							values[found] = price;
+						}
+						found++;
+					}
+				}
+				result.count = found;
+				if ( collect && found > 0 ) {
+					result.chunks.add( Arrays.copyOf( values, found ) );
+				}
+				return result;
+			}
+		}
+	}
+
+	public static void main(String... args) {
+		long startTime = System.currentTimeMillis();
+
+		logger.info( "🚀 Starting a PostgreSQL container" );
+		postgreSQLContainer.start();
+
+		long tcTime = System.currentTimeMillis();
+		JsonObject config = systemConfig().put( "jdbcUrl", postgreSQLContainer.getJdbcUrl() );
+		Vertx vertx = Vertx.vertx( EventLoopProfiler.instrument( new VertxOptions()
+				.setPreferNativeTransport( config.getBoolean( "nativeTransport", true ) ) ) );
+		logger.info( "💡 Native transport enabled: {}", vertx.isNativeTransportEnabled() );
+		// With -Dprofiler=true, the report is written when the application stops
+		EventLoopProfiler.start( "stage-verticle", vertx );
+
+		if ( args.length == 1 && "check".equals( args[0] ) ) {
+			// The checks are about the in-memory copies
+			config.put( "catalog", "offheap" );
+		}
+		DeploymentOptions options = new DeploymentOptions()
+				.setConfig( config );
+
+		vertx.deployVerticle( StageVerticle::new, options )
+				.onSuccess( s -> {
+					long vertxTime = System.currentTimeMillis();
+					logger.info( "✅ Deployment success" );
+					logger.info( "💡 PostgreSQL container started in {}ms", ( tcTime - startTime ) );
+					logger.info( "💡 Vert.x app started in {}ms", ( vertxTime - tcTime ) );
+				} )
+				.onFailure( err -> logger.error( "🔥 Deployment failure", err ) )
+				.onSuccess( s -> {
+					// For example: jbang -Dstage.importConcurrency=8 StageVerticle.java import products.csv
+					if ( args.length == 2 && "import".equals( args[0] ) ) {
+						importProducts( vertx, config, args[1] );
+					}
+					else if ( args.length == 1 && "check".equals( args[0] ) ) {
+						check( vertx, config );
+					}
+					else if ( config.getBoolean( "training", false ) ) {
+						train( vertx, config, tcTime );
+					}
+				} );
+	}
+
+	/**
+	 * Sends one request of each kind to the application, logs when the first response arrived and exits.
+	 * <p>
+	 * The training run of the AOT startup profile: with {@code -XX:ArchiveClassesAtExit}, the classes loaded
+	 * to serve the requests end up in the CDS archive. See the {@code stage-verticle-cds-train} and
+	 * {@code stage-verticle-cds} aliases in jbang-catalog.json.
+	 */
+	private static void train(Vertx vertx, JsonObject config, long containerReady) {
+		HttpClient client = vertx.createHttpClient();
+		int port = config.getInteger( "httpPort", 8080 );
+		send( client, port, HttpMethod.GET, "/products", null )
+				.onSuccess( body -> logger.info( "💡 First response {}ms after the JVM start, {}ms after the container start",
+						ManagementFactory.getRuntimeMXBean().getUptime(), System.currentTimeMillis() - containerReady ) )
+				.compose( body -> send( client, port, HttpMethod.POST, "/products", new JsonObject()
+						.put( "name", "training-" + System.currentTimeMillis() )
+						.put( "price", "1.99" )
+						.toBuffer() ) )
+				.compose( body -> send( client, port, HttpMethod.GET, "/products/" + new JsonObject( body ).getLong( "id" ), null ) )
+				.compose( body -> send( client, port, HttpMethod.GET, "/stats", null ) )
+				.onSuccess( body -> logger.info( "✅ Training completed" ) )
+				.onFailure( err -> logger.error( "🔥 Training failure", err ) )
+				.eventually( v -> vertx.close() )
+				.onComplete( closed -> {
+					postgreSQLContainer.stop();
+					System.exit( 0 );
+				} );
+	}
+
+	/**
+	 * Imports a small CSV file, with a duplicate and an invalid line, and checks the rows in the table.
+	 */
+	private static Future<Object> checkImport(Vertx vertx, JsonObject config) {
+		int products = 25;
+		String prefix = "check-import-" + System.currentTimeMillis() + "-";
+		StringBuilder csv = new StringBuilder( "name,price\n" );
+		for ( int i = 0; i < products; i++ ) {
+			csv.append( prefix ).append( i ).append( ',' ).append( i ).append( ".99\n" );
+		}
+		csv.append( prefix ).append( 0 ).append( ",1.99\n" )
+				.append( prefix ).append( "invalid,abc\n" );
+
+		// Batches of 10, the last one is incomplete
+		ProductImporter importer = new ProductImporter( "csv", 10, 2 );
+		Promise<Object> checked = Promise.promise();
+		// All the callbacks of the import run on the same event loop
+		vertx.getOrCreateContext().runOnContext( v -> {
+			PgPool pool = PgPool.pool( vertx, pgConnectOptions( config.getString( "jdbcUrl" ) ), new PoolOptions().setMaxSize( 2 ) );
+			vertx.fileSystem().createTempFile( "products", ".csv" )
+					.compose( file -> vertx.fileSystem().writeFile( file, Buffer.buffer( csv.toString() ) )
+							.compose( written -> importer.importFile( vertx, pool, file ) )
+							.compose( stats -> pool.preparedQuery( "select count(*) from Product where name like $1" )
+									.execute( Tuple.of( prefix + "%" ) )
+									.map( rows -> {
+										long count = rows.iterator().next().getLong( 0 );
+										if ( count != products || stats.getLong( "inserted" ) != products
+												|| stats.getLong( "duplicates" ) != 1 || stats.getLong( "invalid" ) != 1 ) {
+											throw new IllegalStateException( "Import check failed, " + count + " rows: " + stats.encode() );
+										}
+										logger.info( "✅ Import check: {}", stats.encode() );
+										return (Object) stats;
+									} ) )
+							.eventually( nothing -> vertx.fileSystem().delete( file ) ) )
+					.eventually( nothing -> pool.close() )
+					.onComplete( checked );
+		} );
+		return checked.future();
+	}
+
+	/**
+	 * Checks that the in-memory copies of the products follow the changes of the table and that
+	 * the import works, then exits with status 1 if a check fails: {@code jbang StageVerticle.java check}
+	 */
+	private static void check(Vertx vertx, JsonObject config) {
+		HttpClient client = vertx.createHttpClient();
+		int port = config.getInteger( "httpPort", 8080 );
+		checkDelete( vertx, client, port, config )
+				.compose( v -> checkImport( vertx, config ) )
+				.onSuccess( v -> logger.info( "✅ Checks passed" ) )
+				.onFailure( err -> logger.error( "🔥 Check failure", err ) )
+				.eventually( v -> vertx.close() )
+				.onComplete( checked -> {
+					postgreSQLContainer.stop();
+					System.exit( checked.succeeded() ? 0 : 1 );
+				} );
+	}
+
+	/**
+	 * Creates a product, deletes it with SQL like another application would, and waits
+	 * for the catalog to stop finding it: the delete reaches it through the change notifications.
+	 */
+	private static Future<Void> checkDelete(Vertx vertx, HttpClient client, int port, JsonObject config) {
+		PgPool pool = PgPool.pool( vertx, pgConnectOptions( config.getString( "jdbcUrl" ) ), new PoolOptions().setMaxSize( 1 ) );
+		return send( client, port, HttpMethod.POST, "/products", new JsonObject()
+				.put( "name", "check-delete-" + System.currentTimeMillis() )
+				.put( "price", "1.99" )
+				.toBuffer() )
+				.map( body -> new JsonObject( body ).getLong( "id" ) )
+				.compose( id -> send( client, port, HttpMethod.GET, "/products/" + id, null )
+						.compose( body -> new JsonObject( body ).getValue( "id" ) == null
+								? Future.failedFuture( new IllegalStateException( "Product " + id + " not found after its insert" ) )
+								: pool.preparedQuery( "delete from Product where id = $1" ).execute( Tuple.of( id ) ) )
+						.compose( rows -> awaitNotFound( vertx, client, port, id, 50 ) ) )
+				.onSuccess( v -> logger.info( "✅ Delete check" ) )
+				.eventually( v -> pool.close() );
+	}
+
+	private static Future<Void> awaitNotFound(Vertx vertx, HttpClient client, int port, long id, int attempts) {
+		return send( client, port, HttpMethod.GET, "/products/" + id, null )
+				.compose( body -> {
+					if ( new JsonObject( body ).getValue( "id" ) == null ) {
+						return Future.succeededFuture();
+					}
+					if ( attempts == 0 ) {
+						return Future.failedFuture( new IllegalStateException( "Product " + id + " still found after its delete" ) );
+					}
+					Promise<Void> retry = Promise.promise();
+					vertx.setTimer( 100, timerId -> awaitNotFound( vertx, client, port, id, attempts - 1 ).onComplete( retry ) );
+					return retry.future();
+				} );
+	}
+
+	private static Future<Buffer> send(HttpClient client, int port, HttpMethod method, String uri, Buffer body) {
+		return client.request( method, port, "localhost", uri )
+				.compose( request -> body == null ? request.send() : request.send( body ) )
+				.compose( HttpClientResponse::body );
+	}
+
+	/**
+	 * Imports the products in a file into the database of the running application.
+	 * <p>
+	 * The triggers on the table are disabled for the duration of the import,
+	 * and a single {@code RELOAD} change is published at the end instead.
+	 */
+	private static void importProducts(Vertx vertx, JsonObject config, String file) {
+		int concurrency = config.getInteger( "importConcurrency", 4 );
+		ProductImporter importer = new ProductImporter(
+				config.getString( "importFormat", file.endsWith( ".csv" ) ? "csv" : "ndjson" ),
+				config.getInteger( "importBatchSize", 10_000 ),
+				concurrency
+		);
+		// All the callbacks of the import run on the same event loop
+		vertx.getOrCreateContext().runOnContext( v -> {
+			PgPool pool = PgPool.pool( vertx, pgConnectOptions( config.getString( "jdbcUrl" ) ), new PoolOptions().setMaxSize( concurrency ) );
+			logger.info( "⏱ Importing {}", file );
+			pool.query( "alter table Product disable trigger user" ).execute()
+					.compose( rows -> importer.importFile( vertx, pool, file ) )
+					.eventually( nothing -> pool.query( "alter table Product enable trigger user" ).execute() )
+					.onSuccess( stats -> {
+						logger.info( "✅ Import completed: {}", stats.encode() );
+						logger.info( "💡 The application keeps running with the imported products, Ctrl+C to stop it" );
+						vertx.eventBus().publish( CHANGES_ADDRESS, "RELOAD {}" );
+					} )
+					.onFailure( err -> logger.error( "🔥 Import failure", err ) )
+					.eventually( nothing -> pool.close() );
+		} );
+	}
+
+	/**
+	 * The verticle configuration from the system properties starting with {@code stage.}.
+	 * <p>
+	 * For example: {@code jbang -Dstage.compression=true StageVerticle.java}
+	 */
+	static JsonObject systemConfig() {
+		JsonObject config = new JsonObject();
+		Properties properties = System.getProperties();
+		for ( String name : properties.stringPropertyNames() ) {
+			if ( name.startsWith( "stage." ) ) {
+				config.put( name.substring( "stage.".length() ), configValue( properties.getProperty( name ) ) );
+			}
+		}
+		return config;
+	}
+
+	private static Object configValue(String value) {
+		if ( "true".equalsIgnoreCase( value ) || "false".equalsIgnoreCase( value ) ) {
+			return Boolean.valueOf( value );
+		}
+		try {
+			return Long.valueOf( value );
+		}
+		catch (NumberFormatException notLong) {
+			try {
+				return Double.valueOf( value );
+			}
+			catch (NumberFormatException notDouble) {
+				return value;
+			}
+		}
+	}
+
+	/**
+	 * The read-only columns of a {@link Product}, created directly from a query result.
+	 */
+	public static class ProductView {
+
+		static final String SELECT = "select new " + ProductView.class.getName() + "(p.id, p.name, p.price) from Product p";
+
+		private final Long id;
+		private final String name;
+		private final BigDecimal price;
+
+		public ProductView(Long id, String name, BigDecimal price) {
+			this.id = id;
+			this.name = name;
+			this.price = price;
+		}
+
+		public Long getId() {
+			return id;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public BigDecimal getPrice() {
+			return price;
+		}
+
+		public JsonObject toJson() {
+			return Product.toJson( id, name, price );
+		}
+	}
+
+	@Entity(name = "Product")
+	public static class Product {
+
+		@Id
+		@GeneratedValue
+		private Long id;
+
+		@Column(unique = true)
+		private String name;
+
+		@Column(nullable = false)
+		private BigDecimal price;
+
+		@Version
+		private Integer version;
+
+		public Product() {
+		}
+
+		public Long getId() {
+			return id;
+		}
+
+		public void setId(Long id) {
+			this.id = id;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public void setName(String name) {
+			this.name = name;
+		}
+
+		public BigDecimal getPrice() {
+			return price;
+		}
+
+		public void setPrice(BigDecimal price) {
+			this.price = price;
+		}
+
+		public Integer getVersion() {
+			return version;
+		}
+
+		public void setVersion(Integer version) {
+			this.version = version;
+		}
+
+		/**
+		 * The same JSON of a {@link ProductView} and of the catalog, without reflection.
+		 * The version is only used internally, for the optimistic locking.
+		 */
+		public JsonObject toJson() {
+			return toJson( id, name, price );
+		}
+
+		static JsonObject toJson(Long id, String name, BigDecimal price) {
+			return new JsonObject( new LinkedHashMap<>( 4 ) )
+					.put( "id", id )
+					.put( "name", name )
+					.put( "price", price );
+		}
+
+		/**
+		 * The price can be a JSON string or number.
+		 */
+		public static Product fromJson(JsonObject json) {
+			Product product = new Product();
+			product.setId( json.getLong( "id" ) );
+			product.setName( json.getString( "name" ) );
+			Object price = json.getValue( "price" );
+			product.setPrice( price == null ? null : new BigDecimal( price.toString() ) );
+			return product;
+		}
+	}
+
+	/**
+	 * An event waiting in the outbox, see {@link OutboxRelay}.
+	 */
+	@Entity(name = "OutboxEvent")
+	public static class OutboxEvent {
+
+		// One round trip to the sequence every 50 events
+		@Id
+		@GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "outbox_seq")
+		@SequenceGenerator(name = "outbox_seq", allocationSize = 50)
+		private Long id;
+
+		@Column(nullable = false)
+		private String type;
+
+		private Long aggregateId;
+
+		@Column(nullable = false, length = 4000)
+		private String payload;
+
+		public OutboxEvent() {
+		}
+
+		public OutboxEvent(String type, Long aggregateId, String payload) {
+			this.type = type;
+			this.aggregateId = aggregateId;
+			this.payload = payload;
+		}
+
+		static OutboxEvent productCreated(Product product) {
+			return new OutboxEvent( "ProductCreated", product.getId(), product.toJson().encode() );
+		}
+
+		public Long getId() {
+			return id;
+		}
+
+		public String getType() {
+			return type;
+		}
+
+		public Long getAggregateId() {
+			return aggregateId;
+		}
+
+		public String getPayload() {
+			return payload;
 		}
 	}
 }
@@ -0,0 +1,331 @@
+///usr/bin/env jbang "$0" "$@" ; exit $?
+//DEPS org.hibernate.reactive:hibernate-reactive-core:1.0.0.CR10
+//DEPS io.vertx:vertx-pg-client:4.1.5
+//DEPS io.vertx:vertx-web:4.1.5
+//DEPS io.netty:netty-transport-native-epoll:4.1.68.Final:linux-x86_64
+//DEPS com.fasterxml.jackson.core:jackson-databind:2.12.3
+//DEPS ch.qos.logback:logback-classic:1.2.3
+//DEPS org.testcontainers:postgresql:1.16.0
+//DEPS org.hdrhistogram:HdrHistogram:2.1.12
+//SOURCES StageVerticle.java
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.HdrHistogram.Histogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.VertxOptions;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.HttpClientRequest;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpVersion;
+import io.vertx.core.json.JsonObject;
+
+//DESCRIPTION Compares throughput, latency and bytes per response of the StageVerticle REST API
+//DESCRIPTION over HTTP/1.1, pipelined HTTP/1.1 and h2c, with and without compression.
+//DESCRIPTION Usage example:
+//DESCRIPTION   jbang -Dbench.seconds=20 -Dbench.concurrency=128 StageVerticleBench.java
+//DESCRIPTION   jbang -Dbench.modes=HTTP_1,H2C_GZIP -Dbench.path=/products/1 StageVerticleBench.java
+//DESCRIPTION Hot-key lookups, with `{id}` replaced by one of the first `bench.hotKeys` ids:
+//DESCRIPTION   jbang -Dbench.modes=HTTP_1 -Dbench.path=/products/{id} -Dbench.hotKeys=10 StageVerticleBench.java
+//DESCRIPTION Entities compared to projections, with the allocations per request (client included, it's the same JVM):
+//DESCRIPTION   jbang -Dbench.modes=HTTP_1 -Dbench.listQueries=entity,readonly,projection -Dstage.responseCache=false StageVerticleBench.java
+//DESCRIPTION One session per request compared to one per lookup, on a route with two lookups:
+//DESCRIPTION   jbang -Dbench.modes=HTTP_1 -Dbench.path=/products/{id}/overview -Dbench.sessionPerRequest=true,false StageVerticleBench.java
+//DESCRIPTION Add `-Dprofiler=true` to find out what blocks the event loops during the runs (see EventLoopProfiler.java).
+//DESCRIPTION The `stage.*` properties configure the verticle, for example `-Dstage.coalesce=false` or `-Dstage.http2=false` (no h2c).
+public class StageVerticleBench {
+
+	private static final Logger logger = LoggerFactory.getLogger( StageVerticleBench.class );
+
+	private static final int PORT = 8080;
+	private static final int PRODUCTS = Integer.getInteger( "bench.products", 1000 );
+	private static final int CONCURRENCY = Integer.getInteger( "bench.concurrency", 64 );
+	private static final int WARMUP_SECONDS = Integer.getInteger( "bench.warmup", 3 );
+	private static final int SECONDS = Integer.getInteger( "bench.seconds", 10 );
+	private static final String PATH = System.getProperty( "bench.path", "/products" );
+	private static final int HOT_KEYS = Integer.getInteger( "bench.hotKeys", PRODUCTS );
+
+	/**
+	 * The server and client settings to compare.
+	 * <p>
+	 * With compression, the client asks for gzip but doesn't decompress the body:
+	 * the recorded body size is what travelled on the wire.
+	 */
+	enum Mode {
+		HTTP_1( HttpVersion.HTTP_1_1, false, false ),
+		HTTP_1_PIPELINED( HttpVersion.HTTP_1_1, true, false ),
+		HTTP_1_GZIP( HttpVersion.HTTP_1_1, false, true ),
+		H2C( HttpVersion.HTTP_2, false, false ),
+		H2C_GZIP( HttpVersion.HTTP_2, false, true );
+
+		private static final int PIPELINING_LIMIT = 16;
+		private static final int HTTP2_CONNECTIONS = 4;
+
+		private final HttpVersion version;
+		private final boolean pipelining;
+		private final boolean compression;
+
+		Mode(HttpVersion version, boolean pipelining, boolean compression) {
+			this.version = version;
+			this.pipelining = pipelining;
+			this.compression = compression;
+		}
+
+		JsonObject serverConfig() {
+			return StageVerticle.systemConfig()
+					.put( "httpPort", PORT )
+					.put( "compression", compression );
+		}
+
+		HttpClientOptions clientOptions() {
+			return new HttpClientOptions()
+					.setDefaultHost( "localhost" )
+					.setDefaultPort( PORT )
+					.setKeepAlive( true )
+					.setProtocolVersion( version )
+					// h2c with prior knowledge, no HTTP/1.1 upgrade round trip
+					.setHttp2ClearTextUpgrade( false )
+					.setHttp2MaxPoolSize( HTTP2_CONNECTIONS )
+					.setHttp2MultiplexingLimit( CONCURRENCY / HTTP2_CONNECTIONS + 1 )
+					.setPipelining( pipelining )
+					.setPipeliningLimit( PIPELINING_LIMIT )
+					.setMaxPoolSize( pipelining ? CONCURRENCY / PIPELINING_LIMIT + 1 : CONCURRENCY );
+		}
+	}
+
+	static class Result {
+		final String name;
+		final Histogram latency = new Histogram( TimeUnit.MINUTES.toNanos( 1 ), 3 );
+		long requests;
+		long bytes;
+		long errors;
+		long elapsed;
+		JsonObject serverStats;
+
+		Result(String name) {
+			this.name = name;
+		}
+
+		synchronized void record(long nanos, int bodySize, int statusCode) {
+			latency.recordValue( Math.min( nanos, latency.getHighestTrackableValue() ) );
+			requests++;
+			bytes += bodySize;
+			if ( statusCode >= 400 ) {
+				errors++;
+			}
+		}
+
+		@Override
+		public String toString() {
+			double seconds = elapsed / 1e9;
+			return String.format(
+					"%-28s %10.0f req/s %8d errors %8.2f ms p50 %8.2f ms p99 %8.2f ms p99.9 %9d B/resp %8.2f MB/s %10d B alloc/req",
+					name,
+					requests / seconds,
+					errors,
+					latency.getValueAtPercentile( 50 ) / 1e6,
+					latency.getValueAtPercentile( 99 ) / 1e6,
+					latency.getValueAtPercentile( 99.9 ) / 1e6,
+					requests == 0 ? 0 : bytes / requests,
+					bytes / seconds / ( 1024 * 1024 ),
+					requests == 0 || serverStats == null ? 0 : serverStats.getJsonObject( "jvm" ).getLong( "allocatedBytes" ) / requests
+			) + ( serverStats == null ? "" : "\n" + " ".repeat( 29 ) + serverStats.encode() );
+		}
+	}
+
+	private static Future<Void> seed(Vertx vertx) {
+		HttpClient client = vertx.createHttpClient( Mode.HTTP_1.clientOptions() );
+		Future<Void> loop = Future.succeededFuture();
+		for ( int i = 0; i < PRODUCTS; i++ ) {
+			JsonObject product = new JsonObject()
+					.put( "name", "Product " + i )
+					.put( "price", ( i % 1000 ) + ".99" );
+			loop = loop.compose( v -> client.request( HttpMethod.POST, "/products" )
+					.compose( request -> request.send( product.toBuffer() ) )
+					.compose( HttpClientResponse::body )
+					.mapEmpty() );
+		}
+		return loop.eventually( v -> client.close() );
+	}
+
+	private static Future<Result> run(Vertx vertx, Mode mode, String name, int seconds) {
+		HttpClient client = vertx.createHttpClient( mode.clientOptions() );
+		Result result = new Result( name );
+		long start = System.nanoTime();
+		long deadline = start + TimeUnit.SECONDS.toNanos( seconds );
+		// CompositeFuture.all only takes raw futures
+		@SuppressWarnings("rawtypes")
+		List<Future> workers = new ArrayList<>();
+		for ( int i = 0; i < CONCURRENCY; i++ ) {
+			Promise<Void> worker = Promise.promise();
+			next( client, mode, result, deadline, worker );
+			workers.add( worker.future() );
+		}
+		return CompositeFuture.all( workers )
+				.eventually( v -> client.close() )
+				.map( v -> {
+					result.elapsed = System.nanoTime() - start;
+					return result;
+				} );
+	}
+
+	private static void next(HttpClient client, Mode mode, Result result, long deadline, Promise<Void> worker) {
+		long start = System.nanoTime();
+		if ( start >= deadline ) {
+			worker.complete();
+			return;
+		}
+		client.request( HttpMethod.GET, path() )
+				.compose( request -> {
+					if ( mode.compression ) {
+						request.putHeader( HttpHeaders.ACCEPT_ENCODING, "gzip" );
+					}
+					return request.send();
+				} )
+				.compose( response -> response.body()
+						.onSuccess( body -> result.record( System.nanoTime() - start, body.length(), response.statusCode() ) ) )
+				.onSuccess( body -> next( client, mode, result, deadline, worker ) )
+				.onFailure( worker::fail );
+	}
+
+	private static String path() {
+		if ( PATH.contains( "{id}" ) ) {
+			// Ids start from 1
+			int id = ThreadLocalRandom.current().nextInt( HOT_KEYS ) + 1;
+			return PATH.replace( "{id}", String.valueOf( id ) );
+		}
+		return PATH;
+	}
+
+	private static Future<JsonObject> serverStats(Vertx vertx) {
+		HttpClient client = vertx.createHttpClient( Mode.HTTP_1.clientOptions() );
+		return client.request( HttpMethod.GET, "/stats" )
+				.compose( HttpClientRequest::send )
+				.compose( HttpClientResponse::body )
+				.map( Buffer::toJsonObject )
+				.eventually( v -> client.close() );
+	}
+
+	private static Result benchmark(Vertx vertx, Mode mode, JsonObject variant) {
+		JsonObject config = mode.serverConfig()
+				.put( "jdbcUrl", StageVerticle.postgreSQLContainer.getJdbcUrl() )
+				.mergeIn( variant );
+		String name = mode.name();
+		for ( String key : variant.fieldNames() ) {
+			name += " " + key + "=" + variant.getValue( key );
+		}
+		DeploymentOptions options = new DeploymentOptions().setConfig( config );
+
+		// The schema is recreated on deployment, so each mode starts with the same data
+		String deploymentId = join( vertx.deployVerticle( StageVerticle::new, options ) );
+		try {
+			join( seed( vertx ) );
+			join( run( vertx, mode, name, WARMUP_SECONDS ) );
+			JsonObject before = join( serverStats( vertx ) );
+			Result result = join( run( vertx, mode, name, SECONDS ) );
+			result.serverStats = delta( before, join( serverStats( vertx ) ) );
+			return result;
+		}
+		finally {
+			join( vertx.undeploy( deploymentId ) );
+		}
+	}
+
+	/**
+	 * The difference between two snapshots of the numeric server stats.
+	 */
+	private static JsonObject delta(JsonObject before, JsonObject after) {
+		JsonObject delta = new JsonObject();
+		for ( String name : after.fieldNames() ) {
+			Object value = after.getValue( name );
+			if ( value instanceof JsonObject ) {
+				delta.put( name, delta( before.getJsonObject( name, new JsonObject() ), (JsonObject) value ) );
+			}
+			else if ( value instanceof Number ) {
+				delta.put( name, ( (Number) value ).longValue() - before.getLong( name, 0L ) );
+			}
+		}
+		return delta;
+	}
+
+	/**
+	 * Each of the variants with each of the comma-separated values of a StageVerticle setting.
+	 * No values, no change.
+	 */
+	private static List<JsonObject> variants(List<JsonObject> variants, String key, String values) {
+		if ( values == null ) {
+			return variants;
+		}
+		List<JsonObject> result = new ArrayList<>();
+		for ( JsonObject variant : variants ) {
+			for ( String value : values.split( "," ) ) {
+				String trimmed = value.trim();
+				Object typed = "true".equals( trimmed ) || "false".equals( trimmed ) ? Boolean.valueOf( trimmed ) : trimmed;
+				result.add( variant.copy().put( key, typed ) );
+			}
+		}
+		return result;
+	}
+
+	private static <T> T join(Future<T> future) {
+		return future.toCompletionStage().toCompletableFuture().join();
+	}
+
+	public static void main(String... args) {
+		logger.info( "🚀 Starting a PostgreSQL container" );
+		StageVerticle.postgreSQLContainer.start();
+
+		Vertx vertx = Vertx.vertx( EventLoopProfiler.instrument( new VertxOptions().setPreferNativeTransport( true ) ) );
+		EventLoopProfiler profiler = EventLoopProfiler.start( "stage-verticle-bench", vertx );
+		logger.info( "💡 Native transport enabled: {}", vertx.isNativeTransportEnabled() );
+
+		List<Mode> modes = Arrays.asList( Mode.values() );
+		if ( System.getProperty( "bench.modes" ) != null ) {
+			modes = new ArrayList<>();
+			for ( String mode : System.getProperty( "bench.modes" ).split( "," ) ) {
+				modes.add( Mode.valueOf( mode.trim() ) );
+			}
+		}
+
+		// The StageVerticle queries for the list of products, and session per request or per lookup
+		List<JsonObject> variants = Arrays.asList( new JsonObject() );
+		variants = variants( variants, "listQuery", System.getProperty( "bench.listQueries" ) );
+		variants = variants( variants, "sessionPerRequest", System.getProperty( "bench.sessionPerRequest" ) );
+
+		List<Result> results = new ArrayList<>();
+		try {
+			for ( Mode mode : modes ) {
+				for ( JsonObject variant : variants ) {
+					logger.info( "⏱ {}: {} connections for {}s on {}", mode, CONCURRENCY, SECONDS, PATH );
+					results.add( benchmark( vertx, mode, variant ) );
+				}
+			}
+		}
+		finally {
+			if ( profiler != null ) {
+				profiler.close();
+			}
+			join( vertx.close() );
+			StageVerticle.postgreSQLContainer.stop();
+		}
+
+		System.out.println();
+		System.out.println( "Results (" + PRODUCTS + " products, " + CONCURRENCY + " concurrent requests):" );
+		results.forEach( System.out::println );
+	}
+}
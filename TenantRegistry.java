@@ -0,0 +1,384 @@
+///usr/bin/env jbang "$0" "$@" ; exit $?
+//DEPS org.hibernate.reactive:hibernate-reactive-core:1.0.0.CR10
+//DEPS io.vertx:vertx-pg-client:4.1.5
+//DEPS ch.qos.logback:logback-classic:1.2.3
+//DEPS org.testcontainers:postgresql:1.16.0
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+
+import org.hibernate.MultiTenancyStrategy;
+import org.hibernate.SessionFactory;
+import org.hibernate.boot.Metadata;
+import org.hibernate.boot.MetadataSources;
+import org.hibernate.boot.registry.StandardServiceRegistry;
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.reactive.mutiny.Mutiny;
+import org.hibernate.reactive.pool.ReactiveConnection;
+import org.hibernate.reactive.pool.ReactiveConnectionPool;
+import org.hibernate.reactive.pool.impl.DefaultSqlClientPool;
+import org.hibernate.reactive.provider.ReactiveServiceRegistryBuilder;
+import org.hibernate.reactive.provider.Settings;
+import org.hibernate.service.spi.ServiceRegistryImplementor;
+import org.hibernate.tool.schema.internal.SchemaCreatorImpl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.smallrye.mutiny.Uni;
+import io.vertx.core.json.JsonObject;
+import io.vertx.sqlclient.Pool;
+import org.testcontainers.containers.PostgreSQLContainer;
+
+//DESCRIPTION The same mappings on many tenant databases, with a single SessionFactory.
+//DESCRIPTION The metadata is parsed and the factory is built once. The connection pool of a tenant
+//DESCRIPTION is created the first time the tenant is used, and at most `tenants.max` pools are in use:
+//DESCRIPTION the least recently used one is evicted when a new tenant needs a pool, and closed once its
+//DESCRIPTION connections are all returned.
+//DESCRIPTION Usage example:
+//DESCRIPTION   jbang -Dtenants=50 -Dtenants.max=10 -Drounds=3 TenantRegistry.java
+public class TenantRegistry {
+
+	private static final Logger logger = LoggerFactory.getLogger( TenantRegistry.class );
+
+	/**
+	 * The maximum number of tenant pools open at the same time.
+	 */
+	public static final String MAX_TENANT_POOLS = "hreact.tenants.max";
+
+	static PostgreSQLContainer<?> postgreSQLContainer = new PostgreSQLContainer<>( "postgres:13-alpine" )
+			.withDatabaseName( "postgres" )
+			.withUsername( "postgres" )
+			.withPassword( "hreact" );
+
+	/**
+	 * Creates the pool of a tenant on first use, with the settings of the default pool
+	 * and the tenant id as database name.
+	 * <p>
+	 * The pools are kept in LRU order. When there are more than {@link #MAX_TENANT_POOLS},
+	 * the least recently used is evicted: new connections of the tenant come from a new pool,
+	 * and the evicted one is closed when the sessions still using it have returned their connections.
+	 * Until then it stays open, so there can be more open pools than the limit for a while.
+	 */
+	public static class TenantPools extends DefaultSqlClientPool {
+
+		// Hibernate services are Serializable, the pools are never serialized
+		private static final long serialVersionUID = 1L;
+
+		private final Map<String, TenantPool> pools = new LinkedHashMap<>( 16, 0.75f, true );
+		private URI defaultUri;
+		private int maxPools;
+		private int poolSize;
+		private long evictions;
+		// Evicted, with connections not returned yet
+		private int closingPools;
+
+		private static class TenantPool {
+			final Pool pool;
+			final long buildNanos;
+			long uses;
+			// Connections not returned yet
+			int leases;
+			boolean evicted;
+
+			TenantPool(Pool pool, long buildNanos) {
+				this.pool = pool;
+				this.buildNanos = buildNanos;
+			}
+		}
+
+		// The Configurable of Hibernate ORM 5 takes a raw Map
+		@Override
+		@SuppressWarnings("rawtypes")
+		public void configure(Map configuration) {
+			super.configure( configuration );
+			defaultUri = jdbcUrl( configuration );
+			maxPools = intSetting( configuration, MAX_TENANT_POOLS, 10 );
+			poolSize = intSetting( configuration, Settings.POOL_SIZE, 5 );
+		}
+
+		private static int intSetting(Map<?, ?> configuration, String name, int defaultValue) {
+			Object value = configuration.get( name );
+			return value == null ? defaultValue : Integer.parseInt( String.valueOf( value ) );
+		}
+
+		/**
+		 * Leases the pool of the tenant until the connection is closed, so that the pool isn't closed
+		 * while the connection is in use.
+		 */
+		@Override
+		public CompletionStage<ReactiveConnection> getConnection(String tenantId) {
+			TenantPool tenant;
+			CompletionStage<ReactiveConnection> connection;
+			synchronized ( this ) {
+				tenant = lease( tenantId );
+				// Calls getTenantPool, which returns the pool of the lease
+				connection = super.getConnection( tenantId );
+			}
+			return connection
+					.whenComplete( (c, failure) -> {
+						if ( failure != null ) {
+							release( tenant );
+						}
+					} )
+					.thenApply( c -> releasingOnClose( c, tenant ) );
+		}
+
+		/**
+		 * Only called by {@link #getConnection(String)}, after the lease.
+		 */
+		@Override
+		protected synchronized Pool getTenantPool(String tenantId) {
+			return pools.get( tenantId ).pool;
+		}
+
+		private synchronized TenantPool lease(String tenantId) {
+			TenantPool tenant = pools.get( tenantId );
+			if ( tenant == null ) {
+				long start = System.nanoTime();
+				Pool pool = createPool( tenantUri( tenantId ) );
+				tenant = new TenantPool( pool, System.nanoTime() - start );
+				pools.put( tenantId, tenant );
+				evictEldest();
+			}
+			tenant.uses++;
+			tenant.leases++;
+			return tenant;
+		}
+
+		private synchronized void release(TenantPool tenant) {
+			tenant.leases--;
+			if ( tenant.evicted && tenant.leases == 0 ) {
+				tenant.pool.close();
+				closingPools--;
+			}
+		}
+
+		private void evictEldest() {
+			if ( pools.size() > maxPools ) {
+				Map.Entry<String, TenantPool> eldest = pools.entrySet().iterator().next();
+				TenantPool tenant = eldest.getValue();
+				pools.remove( eldest.getKey() );
+				evictions++;
+				if ( tenant.leases == 0 ) {
+					tenant.pool.close();
+					logger.debug( "Closed the pool of tenant {}", eldest.getKey() );
+				}
+				else {
+					tenant.evicted = true;
+					closingPools++;
+					logger.debug( "Evicted the pool of tenant {}, closed when its {} connections are returned",
+							eldest.getKey(), tenant.leases );
+				}
+			}
+		}
+
+		/**
+		 * The connection, releasing its lease when it's closed.
+		 * A proxy, because the methods of ReactiveConnection change between Hibernate Reactive versions.
+		 */
+		private ReactiveConnection releasingOnClose(ReactiveConnection connection, TenantPool tenant) {
+			AtomicBoolean released = new AtomicBoolean();
+			InvocationHandler handler = (proxy, method, args) -> {
+				Object result;
+				try {
+					result = method.invoke( connection, args );
+				}
+				catch (InvocationTargetException e) {
+					throw e.getCause();
+				}
+				if ( "close".equals( method.getName() ) && method.getParameterCount() == 0 && released.compareAndSet( false, true ) ) {
+					( (CompletionStage<?>) result ).whenComplete( (v, failure) -> release( tenant ) );
+				}
+				return result;
+			};
+			return (ReactiveConnection) Proxy.newProxyInstance( ReactiveConnection.class.getClassLoader(),
+					new Class<?>[] { ReactiveConnection.class }, handler );
+		}
+
+		private URI tenantUri(String tenantId) {
+			try {
+				return new URI( defaultUri.getScheme(), defaultUri.getUserInfo(), defaultUri.getHost(), defaultUri.getPort(),
+						"/" + tenantId, defaultUri.getQuery(), null );
+			}
+			catch (URISyntaxException e) {
+				throw new IllegalArgumentException( "Invalid tenant id: " + tenantId, e );
+			}
+		}
+
+		@Override
+		public synchronized void stop() {
+			// The evicted pools still in use are closed with their last connection
+			pools.values().forEach( tenant -> tenant.pool.close() );
+			pools.clear();
+			super.stop();
+		}
+
+		/**
+		 * Build time, connections and leases of each tenant pool in use, in LRU order.
+		 */
+		public synchronized JsonObject stats() {
+			JsonObject tenants = new JsonObject();
+			pools.forEach( (tenantId, tenant) -> tenants.put( tenantId, new JsonObject()
+					.put( "buildMicros", TimeUnit.NANOSECONDS.toMicros( tenant.buildNanos ) )
+					.put( "uses", tenant.uses )
+					.put( "leasedConnections", tenant.leases )
+					.put( "openConnections", tenant.pool.size() )
+					.put( "maxConnections", poolSize ) ) );
+			return new JsonObject()
+					.put( "openPools", pools.size() + closingPools )
+					.put( "closingPools", closingPools )
+					.put( "maxPools", maxPools )
+					.put( "evictions", evictions )
+					.put( "tenants", tenants );
+		}
+	}
+
+	private static StandardServiceRegistry createRegistry(int maxTenantPools) {
+		return new ReactiveServiceRegistryBuilder()
+				// JDBC url
+				.applySetting( Settings.URL, postgreSQLContainer.getJdbcUrl() )
+
+				// Credentials
+				.applySetting( Settings.USER, postgreSQLContainer.getUsername() )
+				.applySetting( Settings.PASS, postgreSQLContainer.getPassword() )
+
+				// Each tenant has its own database
+				.applySetting( AvailableSettings.MULTI_TENANT, MultiTenancyStrategy.DATABASE.name() )
+				.applySetting( Settings.SQL_CLIENT_POOL, TenantPools.class.getName() )
+				.applySetting( MAX_TENANT_POOLS, String.valueOf( maxTenantPools ) )
+				// Per tenant
+				.applySetting( Settings.POOL_SIZE, "2" )
+
+				// Schema generation. Supported values are create, drop, create-drop, drop-create, none
+				.applySetting( Settings.HBM2DDL_AUTO, "create" )
+				.build();
+	}
+
+	private static Metadata createMetadata(StandardServiceRegistry registry) {
+		return new MetadataSources( registry )
+				// Register new entity classes here
+				.addAnnotatedClass( Note.class )
+				.buildMetadata();
+	}
+
+	/**
+	 * Creates the tenant databases, with the schema generated from the shared metadata.
+	 * In a real application they would already exist.
+	 */
+	private static void createTenantDatabases(StandardServiceRegistry registry, Metadata metadata, List<String> tenants) throws Exception {
+		List<String> schema = new SchemaCreatorImpl( registry ).generateCreationCommands( metadata, false );
+		for ( String tenant : tenants ) {
+			postgreSQLContainer.execInContainer( "psql", "-U", "postgres", "-c", "create database " + tenant );
+			for ( String ddl : schema ) {
+				postgreSQLContainer.execInContainer( "psql", "-U", "postgres", "-d", tenant, "-c", ddl );
+			}
+		}
+	}
+
+	private static long usedHeap() {
+		System.gc();
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+
+	private static int openConnections(JsonObject stats) {
+		JsonObject tenants = stats.getJsonObject( "tenants" );
+		return tenants.fieldNames().stream()
+				.mapToInt( tenantId -> tenants.getJsonObject( tenantId ).getInteger( "openConnections" ) )
+				.sum();
+	}
+
+	public static void main(String[] args) throws Exception {
+		int tenantCount = Integer.getInteger( "tenants", 20 );
+		int maxTenantPools = Integer.getInteger( "tenants.max", 5 );
+		int rounds = Integer.getInteger( "rounds", 3 );
+
+		logger.info( "🚀 Starting a PostgreSQL container" );
+		postgreSQLContainer.start();
+
+		long heapBefore = usedHeap();
+		long start = System.nanoTime();
+		StandardServiceRegistry registry = createRegistry( maxTenantPools );
+		Metadata metadata = createMetadata( registry );
+		SessionFactory ormFactory = metadata.buildSessionFactory();
+		Mutiny.SessionFactory factory = ormFactory.unwrap( Mutiny.SessionFactory.class );
+		long factoryMillis = TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start );
+		long factoryHeap = usedHeap() - heapBefore;
+		TenantPools pools = (TenantPools) ( (ServiceRegistryImplementor) registry ).getService( ReactiveConnectionPool.class );
+
+		List<String> tenants = new ArrayList<>();
+		for ( int i = 0; i < tenantCount; i++ ) {
+			tenants.add( "tenant_" + i );
+		}
+		logger.info( "⏱ Creating {} tenant databases", tenantCount );
+		createTenantDatabases( registry, metadata, tenants );
+
+		try {
+			long heapBeforeTenants = usedHeap();
+			long workStart = System.nanoTime();
+			// Round-robin over the tenants: with fewer pools than tenants, every round evicts
+			for ( int round = 0; round < rounds; round++ ) {
+				for ( String tenant : tenants ) {
+					Note note = new Note( tenant + " round " + round );
+					factory.withTransaction( tenant, (session, tx) -> session.persist( note ) )
+							.chain( () -> factory.withSession( tenant, session -> session
+									.createQuery( "select count(*) from Note", Long.class )
+									.getSingleResult() ) )
+							.invoke( count -> logger.debug( "{} has {} notes", tenant, count ) )
+							.onFailure().invoke( err -> logger.error( "🔥 {} failed", tenant, err ) )
+							.onFailure().recoverWithUni( Uni.createFrom().nullItem() )
+							.await().indefinitely();
+				}
+			}
+			long workMillis = TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - workStart );
+			long tenantPoolsHeap = usedHeap() - heapBeforeTenants;
+			JsonObject stats = pools.stats();
+
+			System.out.println( new JsonObject()
+					.put( "factoryBuildMillis", factoryMillis )
+					.put( "factoryHeapBytes", factoryHeap )
+					.put( "tenantPoolsHeapBytes", tenantPoolsHeap )
+					// Measuring each pool would take a GC around each creation, this is the average
+					.put( "heapBytesPerOpenPool", tenantPoolsHeap / Math.max( 1, stats.getInteger( "openPools" ) ) )
+					.put( "heapBytesPerOpenConnection", tenantPoolsHeap / Math.max( 1, openConnections( stats ) ) )
+					.put( "sessions", 2L * rounds * tenantCount )
+					.put( "workMillis", workMillis )
+					.put( "pools", stats )
+					.encodePrettily() );
+		}
+		finally {
+			factory.close();
+			postgreSQLContainer.stop();
+		}
+	}
+
+	@Entity(name = "Note")
+	public static class Note {
+		@Id
+		@GeneratedValue
+		public Long id;
+
+		public String text;
+
+		public Note() {
+		}
+
+		public Note(String text) {
+			this.text = text;
+		}
+	}
+}
@@ -0,0 +1,72 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Properties;
+
+import org.hibernate.cfg.Configuration;
+
+/**
+ * The settings recommended by Autotuner.java, in {@code hreact-tuning.properties} in the current directory
+ * (or the file in {@code -Dtuning.file}).
+ * <p>
+ * Usage, in the {@code createConfiguration} method of a script including this file
+ * with {@code //SOURCES TuningProperties.java}:
+ * <pre>
+ * TuningProperties.apply( configuration );
+ * </pre>
+ * Nothing changes when the file doesn't exist.
+ */
+public class TuningProperties {
+
+	public static final String DEFAULT_FILE = "hreact-tuning.properties";
+
+	public static Path file() {
+		return Paths.get( System.getProperty( "tuning.file", DEFAULT_FILE ) );
+	}
+
+	/**
+	 * The recommended settings, empty if there is no file.
+	 */
+	public static Properties load() {
+		Properties properties = new Properties();
+		if ( Files.exists( file() ) ) {
+			try (Reader reader = Files.newBufferedReader( file(), StandardCharsets.UTF_8 )) {
+				properties.load( reader );
+			}
+			catch (IOException e) {
+				throw new UncheckedIOException( e );
+			}
+		}
+		return properties;
+	}
+
+	/**
+	 * Overrides the settings of the configuration with the recommended ones.
+	 */
+	public static Configuration apply(Configuration configuration) {
+		load().forEach( (key, value) -> configuration.setProperty( (String) key, (String) value ) );
+		return configuration;
+	}
+
+	/**
+	 * The recommended value of a numeric setting, or the default value.
+	 */
+	public static int intValue(String setting, int defaultValue) {
+		String value = load().getProperty( setting );
+		return value == null ? defaultValue : Integer.parseInt( value.trim() );
+	}
+
+	public static void store(Properties properties, String comments) {
+		try (Writer writer = Files.newBufferedWriter( file(), StandardCharsets.UTF_8 )) {
+			properties.store( writer, comments );
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException( e );
+		}
+	}
+}
@@ -0,0 +1,152 @@
+import java.sql.CallableStatement;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+
+import org.hibernate.cfg.Configuration;
+import org.hibernate.type.AbstractSingleColumnStandardBasicType;
+import org.hibernate.type.descriptor.ValueBinder;
+import org.hibernate.type.descriptor.ValueExtractor;
+import org.hibernate.type.descriptor.WrapperOptions;
+import org.hibernate.type.descriptor.java.JavaTypeDescriptor;
+import org.hibernate.type.descriptor.java.LocalDateTimeJavaDescriptor;
+import org.hibernate.type.descriptor.java.LocalTimeJavaDescriptor;
+import org.hibernate.type.descriptor.sql.BasicBinder;
+import org.hibernate.type.descriptor.sql.BasicExtractor;
+import org.hibernate.type.descriptor.sql.SqlTypeDescriptor;
+
+/**
+ * {@link LocalTime} and {@link LocalDateTime} types passing the values as they are to the Vert.x SQL client.
+ * <p>
+ * The default types convert each value to a {@link java.sql.Time} or {@link java.sql.Timestamp}, in the
+ * default time zone of the JVM, and Hibernate Reactive converts it back to {@code java.time}
+ * before the client encodes it: {@code java.sql.Time} drops the fraction of a second on the way.
+ * These types bind the values directly, so the MySQL client encodes them as binary protocol values,
+ * and read the {@link Duration} the MySQL client returns for {@code TIME} columns.
+ * <p>
+ * Opt-in, with {@link #register(Configuration)}.
+ */
+public class BinaryTemporalTypes {
+
+	/**
+	 * Replaces the default {@code LocalTime} and {@code LocalDateTime} types of the configuration.
+	 */
+	public static void register(Configuration configuration) {
+		configuration.registerTypeOverride( LocalTimeType.INSTANCE );
+		configuration.registerTypeOverride( LocalDateTimeType.INSTANCE );
+	}
+
+	public static class LocalTimeType extends AbstractSingleColumnStandardBasicType<LocalTime> {
+
+		private static final long serialVersionUID = 1L;
+
+		public static final LocalTimeType INSTANCE = new LocalTimeType();
+
+		public LocalTimeType() {
+			super( new PassThroughDescriptor( Types.TIME ), LocalTimeJavaDescriptor.INSTANCE );
+		}
+
+		@Override
+		public String getName() {
+			return LocalTime.class.getSimpleName();
+		}
+
+		@Override
+		protected boolean registerUnderJavaType() {
+			return true;
+		}
+	}
+
+	public static class LocalDateTimeType extends AbstractSingleColumnStandardBasicType<LocalDateTime> {
+
+		private static final long serialVersionUID = 1L;
+
+		public static final LocalDateTimeType INSTANCE = new LocalDateTimeType();
+
+		public LocalDateTimeType() {
+			super( new PassThroughDescriptor( Types.TIMESTAMP ), LocalDateTimeJavaDescriptor.INSTANCE );
+		}
+
+		@Override
+		public String getName() {
+			return LocalDateTime.class.getSimpleName();
+		}
+
+		@Override
+		protected boolean registerUnderJavaType() {
+			return true;
+		}
+	}
+
+	/**
+	 * Binds the value with {@code setObject} and reads it with {@code getObject}:
+	 * Hibernate Reactive puts the object in the tuple of the query, or takes it from the row.
+	 */
+	private static class PassThroughDescriptor implements SqlTypeDescriptor {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int sqlType;
+
+		PassThroughDescriptor(int sqlType) {
+			this.sqlType = sqlType;
+		}
+
+		@Override
+		public int getSqlType() {
+			return sqlType;
+		}
+
+		@Override
+		public boolean canBeRemapped() {
+			return true;
+		}
+
+		@Override
+		public <X> ValueBinder<X> getBinder(JavaTypeDescriptor<X> javaTypeDescriptor) {
+			return new BasicBinder<X>( javaTypeDescriptor, this ) {
+				@Override
+				protected void doBind(PreparedStatement st, X value, int index, WrapperOptions options) throws SQLException {
+					st.setObject( index, value );
+				}
+
+				@Override
+				protected void doBind(CallableStatement st, X value, String name, WrapperOptions options) throws SQLException {
+					st.setObject( name, value );
+				}
+			};
+		}
+
+		@Override
+		public <X> ValueExtractor<X> getExtractor(JavaTypeDescriptor<X> javaTypeDescriptor) {
+			return new BasicExtractor<X>( javaTypeDescriptor, this ) {
+				@Override
+				protected X doExtract(ResultSet rs, String name, WrapperOptions options) throws SQLException {
+					return javaTypeDescriptor.wrap( fromClient( rs.getObject( name ) ), options );
+				}
+
+				@Override
+				protected X doExtract(CallableStatement statement, int index, WrapperOptions options) throws SQLException {
+					return javaTypeDescriptor.wrap( fromClient( statement.getObject( index ) ), options );
+				}
+
+				@Override
+				protected X doExtract(CallableStatement statement, String name, WrapperOptions options) throws SQLException {
+					return javaTypeDescriptor.wrap( fromClient( statement.getObject( name ) ), options );
+				}
+			};
+		}
+
+		// The MySQL client reads TIME as a Duration: the column accepts negative values and more than 24 hours
+		private static Object fromClient(Object value) {
+			if ( value instanceof Duration ) {
+				return LocalTime.ofNanoOfDay( ( (Duration) value ).toNanos() );
+			}
+			return value;
+		}
+	}
+}
@@ -17,7 +17,17 @@
 //// Hibernate Reactive doesn't need it
 //DEPS mysql:mysql-connector-java:8.0.25
 
+//SOURCES ../EventLoopProfiler.java
+//SOURCES ../TuningProperties.java
+//SOURCES BinaryTemporalTypes.java
+
 import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
@@ -30,8 +40,13 @@ import org.hibernate.reactive.mutiny.Mutiny;
 import org.hibernate.reactive.provider.ReactiveServiceRegistryBuilder;
 import org.hibernate.reactive.provider.Settings;
 
+import org.hibernate.reactive.vertx.VertxInstance;
+
 import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assume;
 import org.junit.Before;
+import org.junit.BeforeClass;
 import org.junit.Test;
 import org.junit.runner.JUnitCore;
 import org.junit.runner.Result;
@@ -39,6 +54,8 @@ import org.junit.runner.RunWith;
 import org.junit.runner.notification.Failure;
 
 import io.smallrye.mutiny.Uni;
+import io.vertx.core.Vertx;
+import io.vertx.core.VertxOptions;
 import io.vertx.ext.unit.Async;
 import io.vertx.ext.unit.TestContext;
 import io.vertx.ext.unit.junit.VertxUnitRunner;
@@ -46,13 +63,52 @@ import io.vertx.ext.unit.junit.VertxUnitRunner;
 //DESCRIPTION Usage example:
 //DESCRIPTION   1. Use as jbang template `jbang init -t issue881@DavideD/jbang-rep Issue881.java`
 //DESCRIPTION   2. Start docker images with: `docker-compose up`
+//DESCRIPTION      (MySQL primary, two replicas and ProxySQL sending the reads of hreact_ro to the replicas)
 //DESCRIPTION   2. Run the test with JBang: `jbang Issue881.java`
 //DESCRIPTION   3. (Optional) Edit the file (with IntelliJ IDEA for example):
 //DESCRIPTION             jbang edit --live --open=idea Issue881.java
+//DESCRIPTION   4. (Optional) Find out what blocks the event loops: `jbang -Dprofiler=true Issue881.java`
+//DESCRIPTION   5. (Optional) Bind the times without java.sql.Time: `jbang -DbinaryTemporal=true Issue881.java`
+//DESCRIPTION      (TemporalRoundTrip.java checks and measures both ways with millions of values)
+//DESCRIPTION   6. (Optional) Tune the batch and pool sizes for ProxySQL: `jbang autotuner@DavideD/jbang-rep`
+//DESCRIPTION      (writes hreact-tuning.properties, used by the next runs)
+//DESCRIPTION   7. (Optional) Measure the effects of latency and connection resets: `jbang issue881-chaos@DavideD/jbang-rep`
+//DESCRIPTION   8. (Optional) Compare the read throughput with 1 and 2 replicas: `jbang ReplicaScaling.java`
 @RunWith(VertxUnitRunner.class)
 public class Issue881 {
 
-	private Mutiny.SessionFactory sessionFactory;
+	/**
+	 * If true, reads go to the replicas via the {@code hreact_ro} user.
+	 * Set it to false to use the primary for everything.
+	 */
+	private static final boolean READ_WRITE_SPLIT = true;
+
+	/**
+	 * If true, {@code LocalTime} and {@code LocalDateTime} values go to the client as they are,
+	 * without {@code java.sql.Time} and {@code java.sql.Timestamp}: see BinaryTemporalTypes.java.
+	 * Enable it with {@code -DbinaryTemporal=true}.
+	 */
+	private static final boolean BINARY_TEMPORAL_TYPES = Boolean.getBoolean( "binaryTemporal" );
+
+	private ReadWriteSessionFactory sessionFactory;
+
+	// Only with -Dprofiler=true, see EventLoopProfiler.java
+	private static EventLoopProfiler profiler;
+
+	@BeforeClass
+	public static void startProfiler() {
+		if ( EventLoopProfiler.enabled() ) {
+			profiler = EventLoopProfiler.start( "Issue881", Vertx.vertx( EventLoopProfiler.instrument( new VertxOptions() ) ) );
+		}
+	}
+
+	@AfterClass
+	public static void stopProfiler() {
+		if ( profiler != null ) {
+			profiler.close();
+			profiler.vertx().close();
+		}
+	}
 
 	/**
 	 * The {@link Configuration} for the {@link Mutiny.SessionFactory}.
@@ -60,8 +116,8 @@ public class Issue881 {
 	private Configuration createConfiguration() {
 		Configuration configuration = new Configuration();
 
-		// JDBC url
-		configuration.setProperty( Settings.URL, "mysql://127.0.0.1:6033/hreact" );
+		// JDBC url, -Dissue881.url to go through ChaosProxy.java for example
+		configuration.setProperty( Settings.URL, System.getProperty( "issue881.url", "mysql://127.0.0.1:6033/hreact" ) );
 
 		// Credentials
 		configuration.setProperty( Settings.USER, "hreact" );
@@ -73,6 +129,14 @@ public class Issue881 {
 		// Register new entity classes here
 		configuration.addAnnotatedClass( MyEntity.class );
 
+		if ( BINARY_TEMPORAL_TYPES ) {
+			BinaryTemporalTypes.register( configuration );
+		}
+
+		// (Optional) Batch size, batch fetch size and pool size recommended by Autotuner.java,
+		// if there is a hreact-tuning.properties file in the current directory
+		TuningProperties.apply( configuration );
+
 		// (Optional) Log the SQL queries
 		configuration.setProperty( Settings.SHOW_SQL, "true" );
 		configuration.setProperty( Settings.HIGHLIGHT_SQL, "true" );
@@ -80,6 +144,23 @@ public class Issue881 {
 		return configuration;
 	}
 
+	/**
+	 * The {@link Configuration} for the read-only {@link Mutiny.SessionFactory}.
+	 * <p>
+	 * ProxySQL sends every query of the {@code hreact_ro} user to the reader hostgroup.
+	 */
+	private Configuration createReplicaConfiguration() {
+		Configuration configuration = createConfiguration();
+
+		// Credentials
+		configuration.setProperty( Settings.USER, "hreact_ro" );
+		configuration.setProperty( Settings.PASS, "hreact_ro" );
+
+		// The schema is created by the primary and replicated
+		configuration.setProperty( Settings.HBM2DDL_AUTO, "none" );
+		return configuration;
+	}
+
 	/*
 	 * Create a new factory and a new schema before each test (see
 	 * property `hibernate.hbm2ddl.auto`).
@@ -92,12 +173,23 @@ public class Issue881 {
 	 */
 	@Before
 	public void createSessionFactory() {
-		Configuration configuration = createConfiguration();
+		Mutiny.SessionFactory primary = buildSessionFactory( createConfiguration() );
+		Mutiny.SessionFactory replica = READ_WRITE_SPLIT
+				? buildSessionFactory( createReplicaConfiguration() )
+				: primary;
+		sessionFactory = new ReadWriteSessionFactory( primary, replica );
+	}
+
+	private static Mutiny.SessionFactory buildSessionFactory(Configuration configuration) {
 		StandardServiceRegistryBuilder builder = new ReactiveServiceRegistryBuilder()
 				.applySettings( configuration.getProperties() );
+		if ( profiler != null ) {
+			// Hibernate Reactive uses the profiled Vert.x instance
+			builder.addService( VertxInstance.class, (VertxInstance) profiler::vertx );
+		}
 		StandardServiceRegistry registry = builder.build();
 
-		sessionFactory = configuration.buildSessionFactory( registry )
+		return configuration.buildSessionFactory( registry )
 				.unwrap( Mutiny.SessionFactory.class );
 	}
 
@@ -107,15 +199,89 @@ public class Issue881 {
 		Async async = context.async();
 
 		sessionFactory.withTransaction( Issue881::createEntities )
-				// Check if sometimes the time is saved with the wrong value
-				.chain( () -> sessionFactory.withSession( session -> session
-						.createQuery( "from MyEntity e where e.time!='00:00'" )
+				// Check if sometimes the time is saved with the wrong value.
+				// Only the columns needed: no entities to create and no snapshots for dirty checking.
+				// On the primary: the replica might not have the rows yet
+				.chain( () -> sessionFactory.withPrimarySession( session -> session
+						.createQuery( "select e.id, e.time from MyEntity e where e.time!='00:00'", Object[].class )
 						.getResultList() ) )
 				.invoke( list -> context.assertTrue( list.isEmpty() ) )
 				.subscribe()
 				.with( res -> async.complete(), context::fail );
 	}
 
+	@Test
+	public void testLocalTimeRoundTrip(TestContext context) {
+		Async async = context.async();
+
+		// Whole seconds, the column has no fractional part
+		List<MyEntity> entities = new ArrayList<>();
+		for ( int i = 0; i < 1000; i++ ) {
+			MyEntity entity = new MyEntity();
+			entity.setTime( LocalTime.ofSecondOfDay( i * 86L ) );
+			entities.add( entity );
+		}
+		Map<Integer, LocalTime> expected = new HashMap<>();
+		sessionFactory.withTransaction( (session, tx) -> session.persistAll( entities.toArray() ) )
+				.invoke( () -> entities.forEach( entity -> expected.put( entity.getId(), entity.getTime() ) ) )
+				// On the primary: the replica might not have the rows yet
+				.chain( () -> sessionFactory.withPrimarySession( session -> session
+						.createQuery( "select e.id, e.time from MyEntity e", Object[].class )
+						.getResultList() ) )
+				.invoke( rows -> {
+					int checked = 0;
+					for ( Object[] row : rows ) {
+						if ( expected.containsKey( row[0] ) ) {
+							context.assertEquals( expected.get( row[0] ), row[1], "Wrong time for id " + row[0] );
+							checked++;
+						}
+					}
+					context.assertEquals( entities.size(), checked );
+				} )
+				.subscribe()
+				.with( res -> async.complete(), context::fail );
+	}
+
+	@Test
+	public void testReadsGoToReplica(TestContext context) {
+		Assume.assumeTrue( READ_WRITE_SPLIT );
+		Async async = context.async();
+
+		sessionFactory.withTransaction( (session, tx) -> serverId( session ) )
+				.chain( primaryId -> sessionFactory.withSession( Issue881::serverId )
+						.invoke( replicaId -> context.assertNotEquals( primaryId, replicaId ) ) )
+				.subscribe()
+				.with( res -> async.complete(), context::fail );
+	}
+
+	@Test
+	public void testConcurrentReadsGoToReplica(TestContext context) {
+		Assume.assumeTrue( READ_WRITE_SPLIT );
+		Async async = context.async();
+		int reads = 10_000;
+
+		List<Uni<Object>> queries = new ArrayList<>();
+		for ( int i = 0; i < reads; i++ ) {
+			queries.add( sessionFactory.withSession( Issue881::serverId ) );
+		}
+		sessionFactory.withTransaction( (session, tx) -> serverId( session ) )
+				.chain( primaryId -> {
+					// The throughput with 1 and 2 replicas: ReplicaScaling.java
+					return Uni.combine().all().unis( queries ).combinedWith( list -> list )
+							.invoke( serverIds -> {
+								context.assertEquals( reads, serverIds.size() );
+								// None of the concurrent reads ends up on the primary
+								context.assertFalse( serverIds.contains( primaryId ), "Reads sent to the primary" );
+							} );
+				} )
+				.subscribe()
+				.with( res -> async.complete(), context::fail );
+	}
+
+	private static Uni<Object> serverId(Mutiny.Session session) {
+		return session.createNativeQuery( "select @@server_id" ).getSingleResult();
+	}
+
 	private static Uni<Void> createEntities(Mutiny.Session session, Mutiny.Transaction tx) {
 		Uni<Void> loop = Uni.createFrom().voidItem();
 		for ( int i = 0; i < 1000; i++ ) {
@@ -134,6 +300,47 @@ public class Issue881 {
 		}
 	}
 
+	/**
+	 * Sends the reads to the replicas and the writes to the primary.
+	 * <p>
+	 * {@link #withSession} uses a read-only session from the replica factory,
+	 * {@link #withTransaction} and {@link #withPrimarySession} use the primary factory.
+	 */
+	public static class ReadWriteSessionFactory implements AutoCloseable {
+
+		private final Mutiny.SessionFactory primary;
+		private final Mutiny.SessionFactory replica;
+
+		public ReadWriteSessionFactory(Mutiny.SessionFactory primary, Mutiny.SessionFactory replica) {
+			this.primary = primary;
+			this.replica = replica;
+		}
+
+		public <T> Uni<T> withSession(Function<Mutiny.Session, Uni<T>> work) {
+			return replica.withSession( session -> work.apply( session.setDefaultReadOnly( true ) ) );
+		}
+
+		public <T> Uni<T> withTransaction(BiFunction<Mutiny.Session, Mutiny.Transaction, Uni<T>> work) {
+			return primary.withTransaction( work );
+		}
+
+		/**
+		 * For the reads that must see the last writes: the replication is asynchronous.
+		 * ProxySQL sends all the queries of the {@code hreact} user to the primary.
+		 */
+		public <T> Uni<T> withPrimarySession(Function<Mutiny.Session, Uni<T>> work) {
+			return primary.withSession( work );
+		}
+
+		@Override
+		public void close() {
+			primary.close();
+			if ( replica != primary ) {
+				replica.close();
+			}
+		}
+	}
+
 	/**
 	 * Example of a class representing an entity.
 	 * <p>
@@ -170,6 +377,14 @@ public class Issue881 {
 			return name;
 		}
 
+		public LocalTime getTime() {
+			return time;
+		}
+
+		public void setTime(LocalTime time) {
+			this.time = time;
+		}
+
 		@Override
 		public String toString() {
 			return "MyEntity"
@@ -0,0 +1,181 @@
+///usr/bin/env jbang "$0" "$@" ; exit $?
+/* Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright: Red Hat Inc. and Hibernate Authors
+ */
+
+//// The same Vert.x as Issue881.java, not the one of ChaosProxy.java
+//DEPS io.vertx:vertx-core:${vertx.version:4.1.2}
+//DEPS io.vertx:vertx-mysql-client:${vertx.version:4.1.2}
+//DEPS org.hibernate.reactive:hibernate-reactive-core:${hibernate-reactive.version:1.0.0.CR8}
+//DEPS org.slf4j:slf4j-simple:1.7.30
+//DEPS org.hdrhistogram:HdrHistogram:2.1.12
+
+//SOURCES ../ChaosProxy.java
+
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+
+import org.hibernate.boot.registry.StandardServiceRegistry;
+import org.hibernate.boot.registry.StandardServiceRegistryBuilder;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.reactive.mutiny.Mutiny;
+import org.hibernate.reactive.provider.ReactiveServiceRegistryBuilder;
+import org.hibernate.reactive.provider.Settings;
+
+import io.smallrye.mutiny.Multi;
+import io.smallrye.mutiny.Uni;
+import io.vertx.core.Vertx;
+
+//DESCRIPTION Throughput and p99 latency of the Issue881 workload (persist an entity with a LocalTime, read it back
+//DESCRIPTION and check the time) with ChaosProxy.java between Hibernate Reactive and ProxySQL, for each fault profile,
+//DESCRIPTION compared to the first one. A wrong time counts as an error.
+//DESCRIPTION Usage example, after `docker-compose up`:
+//DESCRIPTION   jbang -Dchaos.seconds=20 -Dchaos.profiles=baseline,wan,resets Issue881Chaos.java
+//DESCRIPTION Options: chaos.target (127.0.0.1:6033), chaos.concurrency, chaos.seconds, chaos.profiles
+public class Issue881Chaos {
+
+	private static final String TARGET = System.getProperty( "chaos.target", "127.0.0.1:6033" );
+	private static final int CONCURRENCY = Integer.getInteger( "chaos.concurrency", 16 );
+	private static final int SECONDS = Integer.getInteger( "chaos.seconds", 10 );
+	private static final String PROFILES = System.getProperty( "chaos.profiles", "baseline,lan,wan,jitter,narrow,resets" );
+
+	/**
+	 * The {@link Configuration} for the {@link Mutiny.SessionFactory}.
+	 */
+	private static Configuration createConfiguration(int port) {
+		Configuration configuration = new Configuration();
+
+		// JDBC url, the proxy in front of ProxySQL
+		configuration.setProperty( Settings.URL, "mysql://127.0.0.1:" + port + "/hreact" );
+
+		// Credentials
+		configuration.setProperty( Settings.USER, "hreact" );
+		configuration.setProperty( Settings.PASS, "hreact" );
+
+		configuration.setProperty( Settings.POOL_SIZE, String.valueOf( CONCURRENCY ) );
+
+		// Schema generation. Supported values are create, drop, create-drop, drop-create, none
+		configuration.setProperty( Settings.HBM2DDL_AUTO, "create" );
+
+		// Register new entity classes here
+		configuration.addAnnotatedClass( ChaosEntity.class );
+		return configuration;
+	}
+
+	private static Mutiny.SessionFactory createSessionFactory(int port) {
+		Configuration configuration = createConfiguration( port );
+		StandardServiceRegistryBuilder builder = new ReactiveServiceRegistryBuilder()
+				.applySettings( configuration.getProperties() );
+		StandardServiceRegistry registry = builder.build();
+
+		return configuration.buildSessionFactory( registry )
+				.unwrap( Mutiny.SessionFactory.class );
+	}
+
+	/**
+	 * Persists an entity and reads the time back in a new session, true if it's the same.
+	 */
+	private static Uni<Boolean> operation(Mutiny.SessionFactory factory) {
+		// Whole seconds, the column has no fractional part
+		ChaosEntity entity = new ChaosEntity( LocalTime.ofSecondOfDay( ThreadLocalRandom.current().nextInt( 86_400 ) ) );
+		return factory.withTransaction( (session, tx) -> session.persist( entity ) )
+				.chain( () -> factory.withSession( session -> session.find( ChaosEntity.class, entity.id ) ) )
+				.map( found -> found != null && entity.time.equals( found.time ) );
+	}
+
+	// Errors are part of the results, the worker keeps going
+	private static Uni<Void> worker(Mutiny.SessionFactory factory, ChaosProxy.Measurement measurement, long deadline) {
+		return Multi.createBy().repeating()
+				.uni( () -> {
+					long start = System.nanoTime();
+					return operation( factory )
+							.invoke( same -> {
+								if ( same ) {
+									measurement.record( System.nanoTime() - start );
+								}
+								else {
+									measurement.error();
+								}
+							} )
+							.onFailure().invoke( measurement::error )
+							.onFailure().recoverWithItem( false );
+				} )
+				.until( v -> System.nanoTime() >= deadline )
+				.collect().last()
+				.replaceWithVoid();
+	}
+
+	private static ChaosProxy.Measurement run(Mutiny.SessionFactory factory, String name) {
+		ChaosProxy.Measurement measurement = new ChaosProxy.Measurement( name );
+		long start = System.nanoTime();
+		long deadline = start + TimeUnit.SECONDS.toNanos( SECONDS );
+		Multi.createFrom().range( 0, CONCURRENCY )
+				.onItem().transformToUni( i -> worker( factory, measurement, deadline ) )
+				.merge( CONCURRENCY )
+				.collect().last()
+				.await().indefinitely();
+		measurement.elapsed( System.nanoTime() - start );
+		return measurement;
+	}
+
+	private static <T> T join(io.vertx.core.Future<T> future) {
+		return future.toCompletionStage().toCompletableFuture().join();
+	}
+
+	public static void main(String[] args) {
+		String[] target = TARGET.split( ":" );
+		Vertx vertx = Vertx.vertx();
+		ChaosProxy proxy = join( ChaosProxy.start( vertx, 0, target[0], Integer.parseInt( target[1] ), ChaosProxy.Profile.BASELINE ) );
+		List<ChaosProxy.Measurement> results = new ArrayList<>();
+		Mutiny.SessionFactory factory = null;
+		try {
+			// The schema is created without faults
+			factory = createSessionFactory( proxy.port() );
+			for ( ChaosProxy.Profile profile : ChaosProxy.Profile.parseAll( PROFILES ) ) {
+				System.out.println( "⏱ " + profile + ": " + CONCURRENCY + " concurrent operations for " + SECONDS + "s" );
+				// The open connections of the pool get the new faults too
+				proxy.profile( profile );
+				results.add( run( factory, profile.name ) );
+				System.out.println( "💡 Proxy: " + proxy.stats().encode() );
+			}
+		}
+		finally {
+			if ( factory != null ) {
+				factory.close();
+			}
+			join( proxy.close() );
+			join( vertx.close() );
+		}
+
+		System.out.println();
+		System.out.println( "Results (" + TARGET + ", " + CONCURRENCY + " concurrent operations, " + SECONDS + "s per profile):" );
+		System.out.println( ChaosProxy.Measurement.header() );
+		results.forEach( result -> System.out.println( result.toString( results.get( 0 ) ) ) );
+	}
+
+	@Entity(name = "ChaosEntity")
+	public static class ChaosEntity {
+		@Id
+		@GeneratedValue
+		public Integer id;
+
+		@Column(name = "time")
+		public LocalTime time;
+
+		public ChaosEntity() {
+		}
+
+		public ChaosEntity(LocalTime time) {
+			this.time = time;
+		}
+	}
+}
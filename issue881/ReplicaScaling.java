@@ -0,0 +1,243 @@
+///usr/bin/env jbang "$0" "$@" ; exit $?
+/* Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright: Red Hat Inc. and Hibernate Authors
+ */
+
+//DEPS io.vertx:vertx-mysql-client:${vertx.version:4.1.2}
+//DEPS org.hibernate.reactive:hibernate-reactive-core:${hibernate-reactive.version:1.0.0.CR8}
+//DEPS org.slf4j:slf4j-simple:1.7.30
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+
+import org.hibernate.boot.registry.StandardServiceRegistry;
+import org.hibernate.boot.registry.StandardServiceRegistryBuilder;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.reactive.mutiny.Mutiny;
+import org.hibernate.reactive.provider.ReactiveServiceRegistryBuilder;
+import org.hibernate.reactive.provider.Settings;
+
+import io.smallrye.mutiny.Multi;
+import io.smallrye.mutiny.Uni;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.mysqlclient.MySQLConnectOptions;
+import io.vertx.mysqlclient.MySQLPool;
+import io.vertx.sqlclient.PoolOptions;
+
+//DESCRIPTION Read throughput of the hreact_ro user through ProxySQL, with 1 to N replicas in the reader hostgroup,
+//DESCRIPTION compared to a single replica. The replicas not in use are set OFFLINE_SOFT with the ProxySQL admin
+//DESCRIPTION interface, and they are all ONLINE again at the end.
+//DESCRIPTION Usage example, after `docker-compose up`:
+//DESCRIPTION   jbang -Dreplicas.seconds=20 ReplicaScaling.java
+//DESCRIPTION Options: replicas.hosts (mysql-replica,mysql-replica-2, as in proxysql.cnf), replicas.concurrency,
+//DESCRIPTION replicas.seconds, replicas.rows, replicas.proxysql (127.0.0.1:6033), replicas.admin (127.0.0.1:6032)
+public class ReplicaScaling {
+
+	private static final String[] HOSTS = System.getProperty( "replicas.hosts", "mysql-replica,mysql-replica-2" ).split( "," );
+	private static final int CONCURRENCY = Integer.getInteger( "replicas.concurrency", 64 );
+	private static final int SECONDS = Integer.getInteger( "replicas.seconds", 10 );
+	private static final int ROWS = Integer.getInteger( "replicas.rows", 10_000 );
+	private static final String PROXYSQL = System.getProperty( "replicas.proxysql", "127.0.0.1:6033" );
+	private static final String ADMIN = System.getProperty( "replicas.admin", "127.0.0.1:6032" );
+
+	// Rows read by each query
+	private static final int RANGE = 100;
+
+	private static Mutiny.SessionFactory createSessionFactory(String user, String schema) {
+		Configuration configuration = new Configuration();
+		configuration.setProperty( Settings.URL, "mysql://" + PROXYSQL + "/hreact" );
+		configuration.setProperty( Settings.USER, user );
+		configuration.setProperty( Settings.PASS, user );
+		configuration.setProperty( Settings.POOL_SIZE, String.valueOf( CONCURRENCY ) );
+		configuration.setProperty( Settings.HBM2DDL_AUTO, schema );
+		configuration.setProperty( Settings.STATEMENT_BATCH_SIZE, "100" );
+		configuration.addAnnotatedClass( ReplicaEntity.class );
+
+		StandardServiceRegistry registry = new ReactiveServiceRegistryBuilder()
+				.applySettings( configuration.getProperties() )
+				.build();
+		return configuration.buildSessionFactory( registry )
+				.unwrap( Mutiny.SessionFactory.class );
+	}
+
+	/**
+	 * Only the first {@code count} replicas stay in the reader hostgroup.
+	 */
+	private static Future<Void> online(MySQLPool admin, int count) {
+		String hosts = Arrays.stream( HOSTS, 0, count )
+				.map( host -> "'" + host + "'" )
+				.collect( Collectors.joining( "," ) );
+		// The admin interface doesn't support prepared statements
+		return admin.query( "UPDATE mysql_servers SET status = CASE WHEN hostname IN (" + hosts + ")"
+						+ " THEN 'ONLINE' ELSE 'OFFLINE_SOFT' END WHERE hostgroup_id = 1" ).execute()
+				.compose( rows -> admin.query( "LOAD MYSQL SERVERS TO RUNTIME" ).execute() )
+				.mapEmpty();
+	}
+
+	private static Uni<Void> seed(Mutiny.SessionFactory primary) {
+		List<ReplicaEntity> entities = new ArrayList<>();
+		for ( int i = 0; i < ROWS; i++ ) {
+			entities.add( new ReplicaEntity( "entity-" + i ) );
+		}
+		return primary.withTransaction( (session, tx) -> session.persistAll( entities.toArray() ) );
+	}
+
+	/**
+	 * Waits until the replicas in use have all the rows: the replication is asynchronous.
+	 */
+	private static void awaitReplication(Mutiny.SessionFactory replica) {
+		// The queries are spread over the replicas, a few in a row see all of them
+		for ( int i = 0; i < 10; i++ ) {
+			replica.withSession( session -> session
+							.createQuery( "select count(e) from ReplicaEntity e", Long.class )
+							.getSingleResult() )
+					.invoke( count -> {
+						if ( count < ROWS ) {
+							throw new IllegalStateException( "Rows on the replica: " + count );
+						}
+					} )
+					// The table might not exist yet
+					.onFailure().retry().withBackOff( Duration.ofMillis( 100 ), Duration.ofSeconds( 1 ) ).atMost( 300 )
+					.await().indefinitely();
+		}
+	}
+
+	private static Uni<Object[]> read(Mutiny.SessionFactory replica) {
+		int from = ThreadLocalRandom.current().nextInt( ROWS - RANGE ) + 1;
+		return replica.withSession( session -> session
+				.createNativeQuery( "select @@server_id, count(name) from ReplicaEntity where id between ? and ?", Object[].class )
+				.setParameter( 1, from )
+				.setParameter( 2, from + RANGE - 1 )
+				.getSingleResult() );
+	}
+
+	private static class Run {
+		final int replicas;
+		final LongAdder reads = new LongAdder();
+		final LongAdder errors = new LongAdder();
+		final Map<Object, LongAdder> servers = new ConcurrentHashMap<>();
+		long elapsed;
+
+		Run(int replicas) {
+			this.replicas = replicas;
+		}
+
+		double readsPerSecond() {
+			return reads.sum() * 1e9 / elapsed;
+		}
+
+		static String header() {
+			return String.format( "%-9s %12s %8s %8s   %s", "Replicas", "Reads/s", "Speedup", "Errors", "Reads by server_id" );
+		}
+
+		String toString(Run baseline) {
+			Map<Object, Long> byServer = new TreeMap<>();
+			servers.forEach( (id, count) -> byServer.put( id, count.sum() ) );
+			return String.format( "%-9d %12.1f %7.2fx %8d   %s",
+					replicas, readsPerSecond(), readsPerSecond() / baseline.readsPerSecond(), errors.sum(), byServer );
+		}
+	}
+
+	// Errors are part of the results, the worker keeps going
+	private static Uni<Void> worker(Mutiny.SessionFactory replica, Run run, long deadline) {
+		return Multi.createBy().repeating()
+				.uni( () -> read( replica )
+						.invoke( row -> {
+							run.reads.increment();
+							run.servers.computeIfAbsent( row[0], id -> new LongAdder() ).increment();
+						} )
+						.onFailure().invoke( run.errors::increment )
+						.onFailure().recoverWithNull() )
+				.until( v -> System.nanoTime() >= deadline )
+				.collect().last()
+				.replaceWithVoid();
+	}
+
+	private static Run measure(Mutiny.SessionFactory replica, int replicas) {
+		Run run = new Run( replicas );
+		long start = System.nanoTime();
+		long deadline = start + TimeUnit.SECONDS.toNanos( SECONDS );
+		Multi.createFrom().range( 0, CONCURRENCY )
+				.onItem().transformToUni( i -> worker( replica, run, deadline ) )
+				.merge( CONCURRENCY )
+				.collect().last()
+				.await().indefinitely();
+		run.elapsed = System.nanoTime() - start;
+		return run;
+	}
+
+	private static <T> T join(Future<T> future) {
+		return future.toCompletionStage().toCompletableFuture().join();
+	}
+
+	public static void main(String[] args) {
+		String[] admin = ADMIN.split( ":" );
+		Vertx vertx = Vertx.vertx();
+		MySQLPool adminPool = MySQLPool.pool( vertx, new MySQLConnectOptions()
+				.setHost( admin[0] )
+				.setPort( Integer.parseInt( admin[1] ) )
+				.setUser( "radmin" )
+				.setPassword( "radmin" ), new PoolOptions().setMaxSize( 1 ) );
+		List<Run> results = new ArrayList<>();
+		Mutiny.SessionFactory primary = null;
+		Mutiny.SessionFactory replica = null;
+		try {
+			primary = createSessionFactory( "hreact", "create" );
+			seed( primary ).await().indefinitely();
+			replica = createSessionFactory( "hreact_ro", "none" );
+			for ( int count = 1; count <= HOSTS.length; count++ ) {
+				join( online( adminPool, count ) );
+				awaitReplication( replica );
+				System.out.println( "⏱ " + count + " replicas: " + CONCURRENCY + " concurrent reads for " + SECONDS + "s" );
+				results.add( measure( replica, count ) );
+			}
+		}
+		finally {
+			join( online( adminPool, HOSTS.length ) );
+			if ( replica != null ) {
+				replica.close();
+			}
+			if ( primary != null ) {
+				primary.close();
+			}
+			join( adminPool.close() );
+			join( vertx.close() );
+		}
+
+		System.out.println();
+		System.out.println( "Results (" + PROXYSQL + ", " + CONCURRENCY + " concurrent reads of " + RANGE + " rows, " + SECONDS + "s each):" );
+		System.out.println( Run.header() );
+		results.forEach( result -> System.out.println( result.toString( results.get( 0 ) ) ) );
+	}
+
+	@Entity(name = "ReplicaEntity")
+	public static class ReplicaEntity {
+		@Id
+		@GeneratedValue
+		public Integer id;
+
+		public String name;
+
+		public ReplicaEntity() {
+		}
+
+		public ReplicaEntity(String name) {
+			this.name = name;
+		}
+	}
+}
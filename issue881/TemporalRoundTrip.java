@@ -0,0 +1,220 @@
+///usr/bin/env jbang "$0" "$@" ; exit $?
+/* Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ * Copyright: Red Hat Inc. and Hibernate Authors
+ */
+
+//DEPS io.vertx:vertx-mysql-client:${vertx.version:4.1.2}
+//DEPS org.hibernate.reactive:hibernate-reactive-core:${hibernate-reactive.version:1.0.0.CR8}
+//DEPS org.slf4j:slf4j-simple:1.7.30
+
+//SOURCES BinaryTemporalTypes.java
+
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.IntFunction;
+import java.util.stream.Collectors;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+import org.hibernate.boot.registry.StandardServiceRegistry;
+import org.hibernate.boot.registry.StandardServiceRegistryBuilder;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.reactive.mutiny.Mutiny;
+import org.hibernate.reactive.provider.ReactiveServiceRegistryBuilder;
+import org.hibernate.reactive.provider.Settings;
+
+import io.smallrye.mutiny.Multi;
+import io.smallrye.mutiny.Uni;
+
+//DESCRIPTION Round trip of LocalTime and LocalDateTime values, through ProxySQL and directly to the MySQL primary,
+//DESCRIPTION with the default types of Hibernate and with the ones in BinaryTemporalTypes.java.
+//DESCRIPTION It checks that every value comes back unchanged, to the microsecond, and measures the values written
+//DESCRIPTION and read per second.
+//DESCRIPTION Usage example, after `docker-compose up`:
+//DESCRIPTION   jbang -Dvalues=10000000 TemporalRoundTrip.java
+//DESCRIPTION Options: values, batchSize, concurrency, targets (proxysql,mysql) and types (default,binary)
+public class TemporalRoundTrip {
+
+	private static final int VALUES = Integer.getInteger( "values", 10_000_000 );
+	private static final int BATCH_SIZE = Integer.getInteger( "batchSize", 1000 );
+	private static final int CONCURRENCY = Integer.getInteger( "concurrency", 8 );
+	private static final String[] TARGETS = System.getProperty( "targets", "proxysql,mysql" ).split( "," );
+	private static final String[] TYPES = System.getProperty( "types", "default,binary" ).split( "," );
+
+	// Spans the daylight saving time changes of most time zones
+	private static final LocalDateTime FIRST_DATE_TIME = LocalDateTime.of( 2021, 1, 1, 0, 0 );
+
+	private static String url(String target) {
+		switch ( target ) {
+			case "proxysql":
+				return "mysql://127.0.0.1:6033/hreact";
+			case "mysql":
+				return "mysql://127.0.0.1:3306/hreact";
+			default:
+				throw new IllegalArgumentException( "Unknown target: " + target );
+		}
+	}
+
+	/**
+	 * The {@link Configuration} for the {@link Mutiny.SessionFactory}.
+	 */
+	private static Configuration createConfiguration(String target, String types) {
+		Configuration configuration = new Configuration();
+
+		// JDBC url
+		configuration.setProperty( Settings.URL, url( target ) );
+
+		// Credentials
+		configuration.setProperty( Settings.USER, "hreact" );
+		configuration.setProperty( Settings.PASS, "hreact" );
+
+		configuration.setProperty( Settings.POOL_SIZE, String.valueOf( CONCURRENCY ) );
+		configuration.setProperty( Settings.STATEMENT_BATCH_SIZE, String.valueOf( BATCH_SIZE ) );
+
+		// Schema generation. Supported values are create, drop, create-drop, drop-create, none
+		configuration.setProperty( Settings.HBM2DDL_AUTO, "create" );
+
+		// Register new entity classes here
+		configuration.addAnnotatedClass( TemporalEntity.class );
+
+		if ( "binary".equals( types ) ) {
+			BinaryTemporalTypes.register( configuration );
+		}
+		return configuration;
+	}
+
+	private static Mutiny.SessionFactory createSessionFactory(String target, String types) {
+		Configuration configuration = createConfiguration( target, types );
+		StandardServiceRegistryBuilder builder = new ReactiveServiceRegistryBuilder()
+				.applySettings( configuration.getProperties() );
+		StandardServiceRegistry registry = builder.build();
+
+		return configuration.buildSessionFactory( registry )
+				.unwrap( Mutiny.SessionFactory.class );
+	}
+
+	// Every microsecond of the day, more or less
+	static LocalTime expectedTime(int id) {
+		return LocalTime.ofNanoOfDay( ( id * 1_000_003L % 86_400_000_000L ) * 1000 );
+	}
+
+	// About 143 days for 10M values
+	static LocalDateTime expectedDateTime(int id) {
+		return FIRST_DATE_TIME.plusNanos( id * 1_234_567_000L );
+	}
+
+	private static Uni<Void> insert(Mutiny.SessionFactory factory, int batch) {
+		int first = batch * BATCH_SIZE;
+		int last = Math.min( first + BATCH_SIZE, VALUES );
+		Object[] entities = new Object[last - first];
+		for ( int id = first; id < last; id++ ) {
+			entities[id - first] = new TemporalEntity( id, expectedTime( id ), expectedDateTime( id ) );
+		}
+		return factory.withTransaction( (session, tx) -> session.persistAll( entities ) );
+	}
+
+	/**
+	 * The number of values that came back different.
+	 */
+	private static Uni<Long> check(Mutiny.SessionFactory factory, int batch, Queue<String> examples) {
+		int first = batch * BATCH_SIZE;
+		return factory.withSession( session -> session
+				.createQuery( "select e.id, e.time, e.dateTime from TemporalEntity e where e.id >= :first and e.id < :last", Object[].class )
+				.setParameter( "first", first )
+				.setParameter( "last", first + BATCH_SIZE )
+				.getResultList() )
+				.map( rows -> {
+					long wrong = 0;
+					for ( Object[] row : rows ) {
+						int id = (Integer) row[0];
+						if ( !expectedTime( id ).equals( row[1] ) ) {
+							wrong++;
+							example( examples, id + ": time " + row[1] + " instead of " + expectedTime( id ) );
+						}
+						if ( !expectedDateTime( id ).equals( row[2] ) ) {
+							wrong++;
+							example( examples, id + ": date time " + row[2] + " instead of " + expectedDateTime( id ) );
+						}
+					}
+					// Missing rows
+					return wrong + 2L * ( Math.min( BATCH_SIZE, VALUES - first ) - rows.size() );
+				} );
+	}
+
+	private static void example(Queue<String> examples, String example) {
+		if ( examples.size() < 5 ) {
+			examples.add( example );
+		}
+	}
+
+	private static <T> List<T> run(int batches, IntFunction<Uni<T>> operation) {
+		return Multi.createFrom().range( 0, batches )
+				.onItem().transformToUni( operation::apply )
+				.merge( CONCURRENCY )
+				.collect().asList()
+				.await().indefinitely();
+	}
+
+	public static void main(String[] args) {
+		int batches = ( VALUES + BATCH_SIZE - 1 ) / BATCH_SIZE;
+		List<String> results = new ArrayList<>();
+		for ( String target : TARGETS ) {
+			for ( String types : TYPES ) {
+				System.out.println( "⏱ " + VALUES + " values to " + target + " with the " + types + " types" );
+				Mutiny.SessionFactory factory = createSessionFactory( target, types );
+				try {
+					long start = System.nanoTime();
+					run( batches, batch -> insert( factory, batch ) );
+					double writeSeconds = ( System.nanoTime() - start ) / 1e9;
+
+					Queue<String> examples = new ConcurrentLinkedQueue<>();
+					start = System.nanoTime();
+					long wrong = run( batches, batch -> check( factory, batch, examples ) ).stream()
+							.mapToLong( Long::longValue )
+							.sum();
+					double readSeconds = ( System.nanoTime() - start ) / 1e9;
+
+					// Two values for each row
+					results.add( String.format( "%-9s %-8s %14.0f %14.0f %10d %s",
+							target, types, 2 * VALUES / writeSeconds, 2 * VALUES / readSeconds, wrong,
+							examples.stream().collect( Collectors.joining( "; " ) ) ) );
+				}
+				finally {
+					factory.close();
+				}
+			}
+		}
+		System.out.printf( "%-9s %-8s %14s %14s %10s %s%n", "Target", "Types", "Written/s", "Read/s", "Wrong", "Examples" );
+		results.forEach( System.out::println );
+	}
+
+	@Entity(name = "TemporalEntity")
+	@Table(name = "temporal_entity")
+	public static class TemporalEntity {
+		@Id
+		public Integer id;
+
+		@Column(name = "time", columnDefinition = "time(6)")
+		public LocalTime time;
+
+		@Column(name = "date_time", columnDefinition = "datetime(6)")
+		public LocalDateTime dateTime;
+
+		public TemporalEntity() {
+		}
+
+		public TemporalEntity(Integer id, LocalTime time, LocalDateTime dateTime) {
+			this.id = id;
+			this.time = time;
+			this.dateTime = dateTime;
+		}
+	}
+}
@@ -0,0 +1,13 @@
+-- Users created on the primary, they reach the replicas through the replication
+
+-- Used by the replicas
+CREATE USER 'repl'@'%' IDENTIFIED BY 'repl';
+GRANT REPLICATION SLAVE ON *.* TO 'repl'@'%';
+
+-- Used by ProxySQL to check the servers
+CREATE USER 'monitor'@'%' IDENTIFIED BY 'monitor';
+GRANT REPLICATION CLIENT ON *.* TO 'monitor'@'%';
+
+-- Read-only user, ProxySQL sends all its queries to the reader hostgroup
+CREATE USER 'hreact_ro'@'%' IDENTIFIED BY 'hreact_ro';
+GRANT SELECT ON hreact.* TO 'hreact_ro'@'%';
@@ -0,0 +1,7 @@
+-- The replica keeps retrying until the primary is up
+CHANGE MASTER TO
+    MASTER_HOST = 'mysql',
+    MASTER_USER = 'repl',
+    MASTER_PASSWORD = 'repl',
+    MASTER_AUTO_POSITION = 1;
+START SLAVE;